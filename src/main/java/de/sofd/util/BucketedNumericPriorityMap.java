@@ -1,13 +1,20 @@
 package de.sofd.util;
 
 import de.sofd.util.NumericPriorityMap.Entry;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import de.sofd.lang.Function1;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * NumericPriorityMap implementation that provides O(1) time complexity for all
@@ -15,26 +22,77 @@ import java.util.NoSuchElementException;
  * {@link #BucketedNumericPriorityMap(double, double, int, int, Function1)} to see
  * what compromises are made to achieve this).
  * <p>
+ * The element cost function is evaluated once when an element is put into
+ * the map (and in {@link #updateCost(Object)}); the result is stored with the
+ * element and used for all subsequent cost accounting. See
+ * {@link #setLongCostAccounting(boolean)} for exact total cost accounting.
+ * <p>
+ * If the priorities of the elements are concentrated in a small part of the
+ * lowPrio..highPrio range, most elements end up in the same few buckets and
+ * the ordering degrades to insertion order. Use
+ * {@link #setAdaptiveBuckets(boolean) adaptive buckets} in that case.
+ * {@link #setStatisticsEnabled(boolean) Usage statistics} help with choosing
+ * the bucket layout and maxTotalCost.
+ * <p>
+ * Elements may also expire after a time-to-live and/or an idle timeout (see
+ * {@link #setExpireAfterWrite(long, TimeUnit)},
+ * {@link #setExpireAfterAccess(long, TimeUnit)} and
+ * {@link #put(Object, Object, double, long, TimeUnit)}). Expired elements are
+ * removed like evicted ones, with {@link RemovalReason#EXPIRED}.
+ * <p>
+ * An optional frequency-based {@link #setAdmissionFilter(FrequencySketch)
+ * admission filter} keeps large one-time scans from flushing out frequently
+ * used elements. Several maps can share one maximum total cost via a
+ * {@link SharedCostBudget}.
+ * <p>
  * Please note that this class is synchronized (TODO: undo that and have a
- * separate synchronized wrapper)
- * 
+ * separate synchronized wrapper). For maps that are written by many threads at
+ * once, use {@link ConcurrentBucketedNumericPriorityMap} instead. Removal
+ * listeners are called after the map's monitor has been released. The
+ * {@link EntryIterator iterators} are weakly consistent and may be used while
+ * other threads modify the map; they can be split for processing the entries
+ * in parallel. In {@link #setAsyncEviction(boolean) async eviction mode},
+ * excess elements are evicted by a background thread in small batches.
+ * Priorities may {@link #setPriorityDecay(long, TimeUnit) decay} over time.
+ * A pluggable {@link #setEvictionPolicy(EvictionPolicy) eviction policy} can
+ * make the eviction order cost-aware. Elements that are in use can be
+ * protected from eviction with {@link #acquire(Object) leases}.
+ *
  * @author olaf
  * 
  * @param <K>
  * @param <V>
  */
-public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V> {
+public class BucketedNumericPriorityMap<K, V> implements MonitoredNumericPriorityMap<K, V> {
 
-    protected static class EntryImpl<K, V> implements Entry<K,V> {
+    /**
+     * Map entry. Also serves as the node of the intrusive, circular,
+     * doubly-linked bucket list the entry is currently in, so moving an entry
+     * to another bucket is just a relink and doesn't allocate anything. Each
+     * bucket list has a sentinel entry (k == null) as its head.
+     */
+    protected static class EntryImpl<K, V> implements Entry<K,V>, CostedEntry {
         K k;
         V v;
         double priority;
+        double cost;  // elementCostFunction(v), memoized
+        double key;   // eviction key, determines the bucket (== priority under EvictionPolicy.PRIORITY)
+        int hits;     // number of puts and get hits
+        int bucketNr;
+        EntryImpl<K, V> prev, next;
+
+        List<Lease<K>> leases;  // outstanding leases; null == not pinned
+
+        long writeExpiry = Long.MAX_VALUE;  // nanoTime() at which the TTL runs out
+        long expiresAt = Long.MAX_VALUE;    // min(writeExpiry, last access + idle timeout)
+        EntryImpl<K, V> wheelPrev, wheelNext;  // timer wheel slot list; null == not scheduled
 
         public EntryImpl(K k, V v, double priority) {
             super();
             this.k = k;
             this.v = v;
             this.priority = priority;
+            this.key = priority;
         }
 
         @Override
@@ -51,22 +109,125 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
         public double getPriority() {
             return priority;
         }
+
+        @Override
+        public double getCost() {
+            return cost;
+        }
     }
 
     private final Map<K, EntryImpl<K,V>> entries = new HashMap<K, EntryImpl<K,V>>();
 
     private final double lowPrio, highPrio;
     private final int nBuckets, maxBucketNr;
-    private LinkedHashMap<K, EntryImpl<K,V>>[] buckets;
+    private final EntryImpl<K,V>[] buckets;  // sentinel heads of the bucket lists
+    private final int[] bucketSizes;
+    private final double[] bucketCosts;
     private final double bucketWidth;
 
+    /**
+     * Adaptive bucket mode: null as long as the initial equal-width layout is
+     * in effect, otherwise the lower bounds of buckets 1..nBuckets-1
+     * (ascending).
+     */
+    private double[] bucketLowerBounds;
+    private boolean adaptiveBuckets = false;
+    private int opsSinceRepartition = 0;
+    private int repartitionCount = 0;
+
+    /**
+     * Minimum number of modifications between two checks whether the buckets
+     * should be re-partitioned.
+     */
+    private static final int MIN_REPARTITION_INTERVAL = 1024;
+
+    /**
+     * The buckets are re-partitioned if the largest one holds more than this
+     * many times its fair share (size / nBuckets) of the elements.
+     */
+    private static final double REPARTITION_SKEW = 2.0;
+
+    /**
+     * Number of priority samples taken per bucket for determining the
+     * quantiles.
+     */
+    private static final int SAMPLES_PER_BUCKET = 64;
+
     private final Function1<V, Double> elementCostFunction;
 
     double totalCost = 0;
+    long longTotalCost = 0;
+    boolean longCostAccounting = false;
     double maxTotalCost;
 
     boolean reverseEviction = false;
 
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<K, V>();
+
+    private volatile StatsCounter stats;  // null == statistics disabled; written under the monitor
+
+    private FrequencySketch<? super K> admissionFilter;  // null == admit everything
+
+    private EvictionPolicy evictionPolicy = EvictionPolicy.PRIORITY;
+
+    private volatile SharedCostBudget sharedCostBudget;  // null == none
+
+    /**
+     * Priority decay: in decay mode, EntryImpl.priority holds the element's
+     * priority as of decayEpoch, i.e. the priority it was given at time t
+     * times exp(decayRate * (t - decayEpoch)). Since all effective priorities
+     * decay by the same factor over time, the order of the stored values is
+     * the order of the effective priorities at any time.
+     */
+    private volatile double decayRate = 0;  // per nanosecond; 0 == no decay
+    private long decayEpoch;
+    private int rebaseCount = 0;
+
+    /**
+     * The decay epoch is moved forward when the effective priorities have
+     * decayed by this factor since the epoch (i.e. after one half-life).
+     */
+    private static final double REBASE_FACTOR = 2;
+
+    private double pinnedCost = 0;
+    private double maxPinnedCost = -1;  // < 0 == no limit
+    private boolean leaseTracking = false;
+
+    private double hardMaxTotalCost = -1;  // < 0 == none
+    private int evictionBatchSize = 32;
+    private Evictor evictor;  // non-null == async eviction mode
+
+    /**
+     * Time after which an idle evictor thread checks whether the map is still
+     * alive.
+     */
+    private static final long EVICTOR_IDLE_MILLIS = 1000;
+
+    private long expireAfterWriteNanos = -1;   // < 0 == none
+    private long expireAfterAccessNanos = -1;  // < 0 == none
+
+    /**
+     * Timer wheel for expiry: slot i holds (in a circular list with a sentinel
+     * head, linked via wheelPrev/wheelNext) all elements whose expiresAt falls
+     * into a tick t with t % WHEEL_SLOTS == i. Elements that expire more than
+     * one wheel rotation in the future just stay in their slot when it is
+     * swept before they're due. Allocated when the first element with an
+     * expiry time is put.
+     */
+    private EntryImpl<K,V>[] wheel;
+    private long wheelOrigin;
+    private long tickNanos = TimeUnit.SECONDS.toNanos(1);
+    private long lastSweptTick;
+
+    private static final int WHEEL_SLOTS = 256;
+
+    /**
+     * Max. number of wheel slots swept per put(). Sweeping is incremental;
+     * if many ticks have passed since the last put, the remaining slots are
+     * swept by the following put()s.
+     */
+    private static final int MAX_SLOTS_PER_SWEEP = 4;
+
     /**
      * Creates a default map with a 0..10 sensitive priority range and
      * 10 buckets. The maximum total cost will be 1000, the element cost
@@ -90,8 +251,9 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
      * bucket. The interval between lowPrio and highPrio is divided into
      * nBuckets equal-length areas (buckets), and element with priorities in
      * that range will be put into the corresponding bucket. Inside a bucket,
-     * elements won't be sorted by priority anymore (but by access order
-     * instead). By making this compromise we can ensure that all operations
+     * elements won't be sorted by priority anymore (but by insertion order
+     * instead; changing an element's priority counts as re-inserting it).
+     * By making this compromise we can ensure that all operations
      * will have O(1) time complexity (rather than O(log n) for strictly
      * priority-ordered data structures like tree sets).
      * 
@@ -112,10 +274,15 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
         this.highPrio = highPrio;
         this.nBuckets = nBuckets;
         this.maxBucketNr = nBuckets - 1;
-        this.buckets = new LinkedHashMap[nBuckets];
+        this.buckets = (EntryImpl<K,V>[]) new EntryImpl<?,?>[nBuckets];
+        this.bucketSizes = new int[nBuckets];
+        this.bucketCosts = new double[nBuckets];
         this.reverseEviction = reverseEviction;
         for (int i = 0; i < nBuckets; i++) {
-            buckets[i] = new LinkedHashMap<K, EntryImpl<K,V>>(256, 0.75F, false);  //TODO: could access-order really be guaranteed to the outside (b/c internal accesses)?
+            EntryImpl<K,V> head = new EntryImpl<K,V>(null, null, 0);
+            head.bucketNr = i;
+            head.prev = head.next = head;
+            buckets[i] = head;
         }
         this.bucketWidth = (highPrio - lowPrio) / nBuckets;
         this.maxTotalCost = maxTotalCost;
@@ -132,51 +299,362 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
     }
 
     protected int prio2bucketNr(double prio) {
+        if (bucketLowerBounds != null) {
+            // number of lower bounds <= prio
+            int lo = 0, hi = bucketLowerBounds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bucketLowerBounds[mid] <= prio) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
         return Math.max(0, Math.min(maxBucketNr,
                 (int) ((prio - lowPrio) / bucketWidth)));
     }
 
+    public synchronized boolean isAdaptiveBuckets() {
+        return adaptiveBuckets;
+    }
+
+    /**
+     * In adaptive bucket mode, the map keeps an eye on how the elements are
+     * distributed over the buckets. If the distribution becomes skewed (the
+     * largest bucket holds more than twice its fair share of the elements),
+     * the bucket boundaries are re-computed so that each bucket covers an
+     * equal quantile of the current elements' priorities (determined from a
+     * fixed-size sample), and all elements are re-distributed accordingly.
+     * The lowPrio/highPrio/nBuckets constructor parameters then only define
+     * the initial layout. Checks are done at most every max(size(), 1024)
+     * modifications, so a re-partitioning, which takes O(n), has amortized O(1)
+     * cost. See {@link #getBucketStatistics()} for the current layout.
+     * <p>
+     * Switching adaptive mode off keeps the current bucket layout.
+     * 
+     * @param adaptiveBuckets
+     */
+    public synchronized void setAdaptiveBuckets(boolean adaptiveBuckets) {
+        this.adaptiveBuckets = adaptiveBuckets;
+        opsSinceRepartition = 0;
+    }
+
+    private void maybeRepartition() {
+        if (!adaptiveBuckets || opsSinceRepartition < MIN_REPARTITION_INTERVAL
+                || opsSinceRepartition < entries.size()) {
+            return;
+        }
+        opsSinceRepartition = 0;
+        int n = entries.size();
+        if (n < 2 * nBuckets) {
+            return;
+        }
+        int maxSize = 0;
+        for (int size : bucketSizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        if (maxSize > REPARTITION_SKEW * n / nBuckets) {
+            repartition();
+        }
+    }
+
+    /**
+     * Re-compute the bucket boundaries from the quantiles of the current
+     * priorities and re-distribute all elements. Elements that end up in the
+     * same bucket keep their relative order.
+     */
+    protected void repartition() {
+        int n = entries.size();
+        if (n == 0 || nBuckets == 1) {
+            return;
+        }
+        int nSamples = Math.min(n, SAMPLES_PER_BUCKET * nBuckets);
+        double[] samples = new double[nSamples];
+        double stride = (double) n / nSamples;
+        int i = 0, iSample = 0;
+        double nextSampleAt = 0;
+        for (EntryImpl<K,V> head : buckets) {
+            for (EntryImpl<K,V> e = head.next; e != head; e = e.next, i++) {
+                if (i >= nextSampleAt && iSample < nSamples) {
+                    samples[iSample++] = e.key;
+                    nextSampleAt += stride;
+                }
+            }
+        }
+        Arrays.sort(samples, 0, iSample);
+        double[] lowerBounds = new double[maxBucketNr];
+        for (int b = 1; b < nBuckets; b++) {
+            lowerBounds[b - 1] = samples[(int) ((long) b * iSample / nBuckets)];
+        }
+        bucketLowerBounds = lowerBounds;
+        relinkAll();
+        // relinking counted every element as an operation; reset, or a skew
+        // that re-partitioning can't remove (e.g. many equal priorities)
+        // would trigger another O(n) re-partitioning on the next operation
+        opsSinceRepartition = 0;
+        repartitionCount++;
+    }
+
+    /**
+     * Re-distribute all elements over the buckets according to their current
+     * eviction keys. Elements that end up in the same bucket keep their relative
+     * order.
+     */
+    private void relinkAll() {
+        EntryImpl<K,V>[] oldHeads = Arrays.copyOf(buckets, nBuckets);
+        for (int b = 0; b < nBuckets; b++) {
+            EntryImpl<K,V> head = new EntryImpl<K,V>(null, null, 0);
+            head.bucketNr = b;
+            head.prev = head.next = head;
+            buckets[b] = head;
+            bucketSizes[b] = 0;
+            bucketCosts[b] = 0;
+        }
+        for (EntryImpl<K,V> oldHead : oldHeads) {
+            EntryImpl<K,V> e = oldHead.next;
+            while (e != oldHead) {
+                EntryImpl<K,V> next = e.next;
+                link(e, prio2bucketNr(e.key));
+                e = next;
+            }
+        }
+    }
+
+    /**
+     * Append e to the end of bucket bucketNr's list.
+     */
+    private void link(EntryImpl<K,V> e, int bucketNr) {
+        EntryImpl<K,V> head = buckets[bucketNr];
+        e.bucketNr = bucketNr;
+        e.next = head;
+        e.prev = head.prev;
+        head.prev.next = e;
+        head.prev = e;
+        bucketSizes[bucketNr]++;
+        bucketCosts[bucketNr] += e.cost;
+        opsSinceRepartition++;
+    }
+
+    /**
+     * Compute e's eviction key from its priority, cost and hits, and append it
+     * to the end of the corresponding bucket.
+     */
+    private void linkWithNewKey(EntryImpl<K,V> e) {
+        e.key = evictionPolicy.evictionKey(e.priority, e.cost, e.hits);
+        link(e, prio2bucketNr(e.key));
+    }
+
+    private void unlink(EntryImpl<K,V> e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+        if (--bucketSizes[e.bucketNr] == 0) {
+            bucketCosts[e.bucketNr] = 0;  // drop accumulated rounding errors
+        } else {
+            bucketCosts[e.bucketNr] -= e.cost;
+        }
+    }
+
+    private double roundCost(double cost) {
+        return longCostAccounting ? Math.round(cost) : cost;
+    }
+
+    private void addToTotalCost(double cost) {
+        if (longCostAccounting) {
+            longTotalCost += (long) cost;
+        } else {
+            totalCost += cost;
+        }
+    }
+
+    /**
+     * Remove e from the map. Must be called with the monitor held.
+     */
+    private void removeEntry(EntryImpl<K,V> e, RemovalReason reason) {
+        unlink(e);
+        unschedule(e);
+        entries.remove(e.k);
+        if (e.leases != null) {
+            pinnedCost -= e.cost;
+            e.leases = null;
+        }
+        addToTotalCost(-e.cost);
+        removalNotifier.enqueue(e.k, e.v, decayed(e.priority), reason);
+    }
+
+    /**
+     * Evict victim e to make room, reporting it to the statistics and the
+     * eviction policy. Must be called with the monitor held.
+     */
+    private void evictEntry(EntryImpl<K,V> e) {
+        if (stats != null) {
+            stats.recordEviction(e.bucketNr, e.cost);
+        }
+        evictionPolicy.evicted(e.key);
+        removeEntry(e, RemovalReason.EVICTED);
+    }
+
     @Override
-    public synchronized V put(K k, V v, double priority) {
+    public V put(K k, V v, double priority) {
+        return put(k, v, priority, true, -1);
+    }
+
+    /**
+     * Like {@link #put(Object, Object, double)}, but with a time-to-live for
+     * this element that overrides the map's
+     * {@link #setExpireAfterWrite(long, TimeUnit) default}.
+     * 
+     * @param ttl
+     *            < 0 == never expires (except via the idle timeout)
+     */
+    public V put(K k, V v, double priority, long ttl, TimeUnit unit) {
+        return put(k, v, priority, false, ttl < 0 ? -1 : unit.toNanos(ttl));
+    }
+
+    private V put(K k, V v, double priority, boolean defaultTtl, long ttlNanos) {
         V result = null;
-        EntryImpl<K,V> newE = new EntryImpl<K,V>(k, v, priority);
-        EntryImpl<K,V> oldE = entries.put(k, newE);
-        if (null != oldE) {
-            buckets[prio2bucketNr(oldE.priority)].remove(k);
-            totalCost -= elementCostFunction.run(oldE.v);
-            result = oldE.v;
-        }
-        buckets[prio2bucketNr(newE.priority)].put(k, newE);
-        totalCost += elementCostFunction.run(newE.v);
-        evictExcessElements();
+        double rawCost = elementCostFunction.run(v);
+        synchronized (this) {
+            if (defaultTtl) {
+                ttlNanos = expireAfterWriteNanos;
+            }
+            double cost = roundCost(rawCost);
+            maybeRebase();
+            priority = toStored(priority);
+            EntryImpl<K,V> e = entries.get(k);
+            boolean isNew = (null == e);
+            if (!isNew) {
+                unlink(e);
+                addToTotalCost(-e.cost);
+                removalNotifier.enqueue(k, e.v, decayed(e.priority), RemovalReason.REPLACED);
+                result = e.v;
+                e.v = v;
+                e.priority = priority;
+            } else {
+                e = new EntryImpl<K,V>(k, v, priority);
+                entries.put(k, e);
+            }
+            if (e.leases != null) {
+                pinnedCost += cost - e.cost;
+            }
+            e.cost = cost;
+            e.hits++;
+            linkWithNewKey(e);
+            addToTotalCost(cost);
+            if (stats != null) {
+                stats.recordPut();
+            }
+            if (ttlNanos >= 0 || expireAfterAccessNanos >= 0 || wheel != null) {
+                long now = nanoTime();
+                e.writeExpiry = ttlNanos >= 0 ? saturatedAdd(now, ttlNanos) : Long.MAX_VALUE;
+                updateExpiry(e, now);
+                sweep(now, MAX_SLOTS_PER_SWEEP);
+            }
+            if (isNew && admissionFilter != null && !admit(e)) {
+                // reported as evicted, but it's no victim, so the eviction
+                // policy doesn't hear of it
+                if (stats != null) {
+                    stats.recordEviction(e.bucketNr, e.cost);
+                }
+                removeEntry(e, RemovalReason.EVICTED);
+            }
+            evictExcessElements();
+            maybeRepartition();
+        }
+        removalNotifier.deliverPending();
+        enforceSharedCostBudget();
         return result;
     }
 
     @Override
-    public synchronized V get(K k) {
+    public V get(K k) {
+        V result = null;
+        synchronized (this) {
+            if (admissionFilter != null) {
+                admissionFilter.increment(k);
+            }
+            EntryImpl<K,V> e = liveEntry(k);
+            if (e == null) {
+                if (stats != null) {
+                    stats.recordMiss();
+                }
+            } else {
+                if (stats != null) {
+                    stats.recordHit();
+                }
+                if (expireAfterAccessNanos >= 0) {
+                    updateExpiry(e, nanoTime());
+                }
+                if (evictionPolicy.isUsageDependent()) {
+                    e.hits++;
+                    unlink(e);
+                    linkWithNewKey(e);
+                    maybeRepartition();
+                }
+                result = e.v;
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * @return k's entry, or null if there is none or it has expired (in which
+     *         case it is removed, unless it's pinned -- then that happens when
+     *         the last lease is released). Must be called with the monitor
+     *         held; the caller must call removalNotifier.deliverPending() after
+     *         releasing the monitor.
+     */
+    private EntryImpl<K,V> liveEntry(K k) {
         EntryImpl<K,V> e = entries.get(k);
-        if (e == null) {
+        if (e != null && e.expiresAt != Long.MAX_VALUE && e.expiresAt <= nanoTime()) {
+            if (e.leases == null) {
+                removeEntry(e, RemovalReason.EXPIRED);
+            }
             return null;
-        } else {
-            return e.v;
         }
+        return e;
     }
 
+    /**
+     * Like {@link #get(Object)}, an expired element that hasn't been swept yet
+     * is removed as {@link RemovalReason#EXPIRED}, and null is returned.
+     */
     @Override
-    public synchronized V remove(K k) {
-        EntryImpl<K,V> oldE = entries.remove(k);
-        if (oldE != null) {
-            buckets[prio2bucketNr(oldE.priority)].remove(k);
-            totalCost -= elementCostFunction.run(oldE.v);
-            return oldE.v;
-        } else {
-            return null;
+    public V remove(K k) {
+        V result = null;
+        synchronized (this) {
+            EntryImpl<K,V> oldE = liveEntry(k);
+            if (oldE != null) {
+                removeEntry(oldE, RemovalReason.REMOVED);
+                result = oldE.v;
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * @return the priority of k, or NaN if k isn't stored (or has expired)
+     */
+    public synchronized double getPriority(K k) {
+        EntryImpl<K,V> e = entries.get(k);
+        if (e == null || (e.expiresAt != Long.MAX_VALUE && e.expiresAt <= nanoTime())) {
+            return Double.NaN;
         }
+        return decayed(e.priority);
     }
 
     @Override
-    public synchronized boolean contains(K k) {
-        return entries.containsKey(k);
+    public boolean contains(K k) {
+        boolean result;
+        synchronized (this) {
+            result = liveEntry(k) != null;
+        }
+        removalNotifier.deliverPending();
+        return result;
     }
 
     @Override
@@ -195,18 +673,136 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
      */
     @Override
     public synchronized void setPriority(K k, double priority) {
-        EntryImpl<K,V> oldE = entries.remove(k);
-        if (oldE != null) {
-            buckets[prio2bucketNr(oldE.priority)].remove(k);
-            EntryImpl<K,V> newE = new EntryImpl<K,V>(k, oldE.v, priority);
-            entries.put(k, newE);
-            buckets[prio2bucketNr(newE.priority)].put(k, newE);
+        EntryImpl<K,V> e = entries.get(k);
+        if (e != null) {
+            maybeRebase();
+            unlink(e);
+            e.priority = toStored(priority);
+            linkWithNewKey(e);
+            maybeRepartition();
         }
     }
 
+    /**
+     * Moves each element with an O(1) unlink/link, so this takes time linear
+     * in the size of priorities. Rebuilding all buckets in one walk (like
+     * {@link #reprioritize(Function1)}) would take O(n) even for small
+     * batches, and still need one lookup per key.
+     */
+    @Override
+    public synchronized void setPriorities(Map<K, Double> priorities) {
+        maybeRebase();
+        for (Map.Entry<K, Double> pe : priorities.entrySet()) {
+            EntryImpl<K,V> e = entries.get(pe.getKey());
+            if (e != null) {
+                unlink(e);
+                e.priority = toStored(pe.getValue());
+                linkWithNewKey(e);
+            }
+        }
+        maybeRepartition();
+    }
+
+    /**
+     * Walks the bucket lists once, unlinking the elements whose priority
+     * changes (so they aren't visited twice), and then appends them to their
+     * new buckets in the order they were found.
+     */
+    @Override
+    public synchronized void reprioritize(Function1<K, Double> priorityFunction) {
+        maybeRebase();
+        List<EntryImpl<K,V>> moved = new ArrayList<EntryImpl<K,V>>();
+        for (EntryImpl<K,V> head : buckets) {
+            EntryImpl<K,V> e = head.next;
+            while (e != head) {
+                EntryImpl<K,V> next = e.next;
+                Double priority = priorityFunction.run(e.k);
+                if (priority != null && toStored(priority) != e.priority) {
+                    unlink(e);
+                    e.priority = toStored(priority);
+                    moved.add(e);
+                }
+                e = next;
+            }
+        }
+        for (EntryImpl<K,V> e : moved) {
+            linkWithNewKey(e);
+        }
+        maybeRepartition();
+    }
+
+    /**
+     * Re-evaluates the element cost function for k's value and adjusts the
+     * total cost accordingly, evicting other elements if the maximum total
+     * cost is exceeded afterwards. Use this for values whose cost changes
+     * while they're in the map. Doesn't do anything if k isn't currently
+     * stored.
+     */
+    @Override
+    public void updateCost(K k) {
+        synchronized (this) {
+            EntryImpl<K,V> e = entries.get(k);
+            if (e != null) {
+                double cost = roundCost(elementCostFunction.run(e.v));
+                addToTotalCost(cost - e.cost);
+                bucketCosts[e.bucketNr] += cost - e.cost;
+                if (e.leases != null) {
+                    pinnedCost += cost - e.cost;
+                }
+                e.cost = cost;
+                if (evictionPolicy.isUsageDependent()) {
+                    unlink(e);
+                    linkWithNewKey(e);
+                }
+                evictExcessElements();
+            }
+        }
+        removalNotifier.deliverPending();
+        enforceSharedCostBudget();
+    }
+
     @Override
     public synchronized double getCurrentTotalCost() {
-        return totalCost;
+        return longCostAccounting ? longTotalCost : totalCost;
+    }
+
+    public synchronized boolean isLongCostAccounting() {
+        return longCostAccounting;
+    }
+
+    /**
+     * In long cost accounting mode, each element's cost is rounded to the
+     * nearest integer and the total cost is summed up in a long, so it stays
+     * exact no matter how many elements are added and removed over time
+     * (summing up doubles accumulates rounding errors). Use this if the
+     * element cost function returns integral values anyway (e.g. byte sizes)
+     * or can be scaled to return them. Switching the mode recomputes the total
+     * cost from the elements' costs, which takes O(n).
+     * 
+     * @param longCostAccounting
+     */
+    public void setLongCostAccounting(boolean longCostAccounting) {
+        synchronized (this) {
+            if (longCostAccounting == this.longCostAccounting) {
+                return;
+            }
+            this.longCostAccounting = longCostAccounting;
+            totalCost = 0;
+            longTotalCost = 0;
+            pinnedCost = 0;
+            Arrays.fill(bucketCosts, 0);
+            for (EntryImpl<K,V> e : entries.values()) {
+                e.cost = roundCost(e.cost);
+                addToTotalCost(e.cost);
+                bucketCosts[e.bucketNr] += e.cost;
+                if (e.leases != null) {
+                    pinnedCost += e.cost;
+                }
+            }
+            evictExcessElements();
+        }
+        removalNotifier.deliverPending();
+        enforceSharedCostBudget();
     }
 
     @Override
@@ -215,9 +811,26 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
     }
 
     @Override
-    public synchronized void setMaxTotalCost(double maxTotalCost) {
-        this.maxTotalCost = maxTotalCost;
-        evictExcessElements();
+    public void setMaxTotalCost(double maxTotalCost) {
+        setMaxTotalCostDeferred(maxTotalCost);
+        deliverPendingRemovals();
+    }
+
+    /**
+     * setMaxTotalCost() for maps that manage this one's budget under their
+     * own lock: the removal notifications stay pending in the calling thread,
+     * which must call {@link #deliverPendingRemovals()} after releasing its
+     * lock.
+     */
+    void setMaxTotalCostDeferred(double maxTotalCost) {
+        synchronized (this) {
+            this.maxTotalCost = maxTotalCost;
+            evictExcessElements();
+        }
+    }
+
+    void deliverPendingRemovals() {
+        removalNotifier.deliverPending();
     }
 
     @Override
@@ -226,104 +839,1302 @@ public class BucketedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V
     }
 
     @Override
-    public Iterator<Entry<K,V>> entryIterator() {
-        return new EntryIterator(false);
+    public void addRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener, null);
     }
 
-    /**
-     * Iterator that returns the entries back-to-front. Won't be the complete reverse
-     * to entryIterator(): entries from the same bucket will be returned in the same
-     * order as in the entryIterator() (due to implementation issues).
-     * 
-     * @return
-     */
     @Override
-    public Iterator<Entry<K,V>> reverseEntryIterator() {
-        return new EntryIterator(true);
+    public void addRemovalListener(RemovalListener<K, V> listener, Executor executor) {
+        removalNotifier.addListener(listener, executor);
     }
 
     @Override
-    public boolean isReverseEviction() {
-        return reverseEviction;
+    public void removeRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
     }
 
-    @Override
-    public void setReverseEviction(boolean reverseEviction) {
-        this.reverseEviction = reverseEviction;
+    /**
+     * The current time for expiry purposes. Overridable for testing.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
     }
 
-    //TODO: synchronization...
-    protected class EntryIterator implements Iterator<Entry<K, V>> {
-        private boolean hasNext;
-        private Entry<K, V> lastNext;
-        private int currBucketNo;
-        private Iterator<Map.Entry<K, EntryImpl<K,V>>> currBucketIterator, lastBucketIterator;
-        private boolean isReverse;
+    private static long saturatedAdd(long t, long duration) {
+        long result = t + duration;
+        return result < t ? Long.MAX_VALUE : result;
+    }
 
-        public EntryIterator(boolean isReverse) {
-            this.isReverse = isReverse;
-            currBucketNo = isReverse ? nBuckets - 1 : 0;
-            currBucketIterator = buckets[currBucketNo].entrySet().iterator();
-            advanceToNext();
-        }
+    private long tickOf(long t) {
+        return (t - wheelOrigin) / tickNanos;
+    }
 
-        private void advanceToNext() {
-            if (currBucketIterator.hasNext()) {
-                hasNext = true;
-            } else {
-                int increment = isReverse ? -1 : 1;
-                int stop = isReverse ? -1 : nBuckets;
-                for (int iBucket = currBucketNo + increment; iBucket != stop; iBucket += increment) {
-                    LinkedHashMap<K, EntryImpl<K,V>> bucket = buckets[iBucket];
-                    if (bucket.isEmpty()) {
-                        continue;
-                    }
-                    currBucketIterator = bucket.entrySet().iterator(); //no reverseIterator() for isReverse :-(
-                    currBucketNo = iBucket;
-                    hasNext = true;
-                    return;
-                }
-                hasNext = false;
-            }
+    /**
+     * Recompute e.expiresAt after a write or access at time now, and
+     * (re-)schedule e in the timer wheel accordingly.
+     */
+    private void updateExpiry(EntryImpl<K,V> e, long now) {
+        long expiresAt = e.writeExpiry;
+        if (expireAfterAccessNanos >= 0) {
+            expiresAt = Math.min(expiresAt, saturatedAdd(now, expireAfterAccessNanos));
         }
+        e.expiresAt = expiresAt;
+        schedule(e);
+    }
 
-        @Override
-        public boolean hasNext() {
-            return hasNext;
+    @SuppressWarnings("unchecked")
+    private void schedule(EntryImpl<K,V> e) {
+        unschedule(e);
+        if (e.expiresAt == Long.MAX_VALUE) {
+            return;
         }
-
-        @Override
-        public Entry<K, V> next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
+        if (wheel == null) {
+            wheel = (EntryImpl<K,V>[]) new EntryImpl<?,?>[WHEEL_SLOTS];
+            for (int i = 0; i < WHEEL_SLOTS; i++) {
+                EntryImpl<K,V> head = new EntryImpl<K,V>(null, null, 0);
+                head.wheelPrev = head.wheelNext = head;
+                wheel[i] = head;
             }
-            lastNext = currBucketIterator.next().getValue();
-            lastBucketIterator = currBucketIterator;
-            advanceToNext();
-            return lastNext;
+            wheelOrigin = nanoTime();
+            lastSweptTick = -1;
         }
+        EntryImpl<K,V> head = wheel[(int) (tickOf(e.expiresAt) & (WHEEL_SLOTS - 1))];
+        e.wheelNext = head;
+        e.wheelPrev = head.wheelPrev;
+        head.wheelPrev.wheelNext = e;
+        head.wheelPrev = e;
+    }
 
-        @Override
-        public void remove() {
-            if (lastNext == null) {
-                throw new IllegalStateException();
-            }
-            lastBucketIterator.remove();
-            entries.remove(lastNext.getKey());
-            totalCost -= elementCostFunction.run(lastNext.getValue());
-            lastNext = null;
+    private void unschedule(EntryImpl<K,V> e) {
+        if (e.wheelNext != null) {
+            e.wheelPrev.wheelNext = e.wheelNext;
+            e.wheelNext.wheelPrev = e.wheelPrev;
+            e.wheelPrev = e.wheelNext = null;
         }
-    };
+    }
 
-    protected void evictExcessElements() {
-        if (maxTotalCost < 0) {
+    /**
+     * Sweep up to maxSlots wheel slots whose tick has completely elapsed,
+     * removing the expired elements in them. Must be called with the monitor
+     * held; the caller must call removalNotifier.deliverPending() after
+     * releasing the monitor.
+     */
+    private void sweep(long now, int maxSlots) {
+        if (wheel == null) {
             return;
         }
-        Iterator<Entry<K,V>> it = isReverseEviction() ? reverseEntryIterator() : entryIterator();
-        while ((totalCost > maxTotalCost) && (entries.size() > 1)) {
-            it.next();
-            it.remove();
+        long dueTick = tickOf(now) - 1;
+        if (dueTick - lastSweptTick > WHEEL_SLOTS) {
+            // slots repeat after one rotation
+            lastSweptTick = dueTick - WHEEL_SLOTS;
+        }
+        for (int i = 0; i < maxSlots && lastSweptTick < dueTick; i++) {
+            lastSweptTick++;
+            EntryImpl<K,V> head = wheel[(int) (lastSweptTick & (WHEEL_SLOTS - 1))];
+            EntryImpl<K,V> e = head.wheelNext;
+            while (e != head) {
+                EntryImpl<K,V> next = e.wheelNext;
+                if (e.expiresAt <= now) {
+                    if (e.leases == null) {
+                        removeEntry(e, RemovalReason.EXPIRED);
+                    } else {
+                        // removed by release()
+                        unschedule(e);
+                    }
+                }
+                e = next;
+            }
+        }
+    }
+
+    /**
+     * Remove all elements that have expired by now. Takes time proportional
+     * to the number of elements whose expiry falls into the elapsed wheel
+     * ticks, never a full scan. Expired elements are also removed lazily
+     * when they're accessed, and incrementally by put(), so this only needs
+     * to be called (e.g. periodically from a timer) if the map may go without
+     * puts for a long time, or before calling {@link #size()} or iterating if
+     * expired elements must not be counted.
+     */
+    public void expireEntries() {
+        synchronized (this) {
+            sweep(nanoTime(), WHEEL_SLOTS);
+        }
+        removalNotifier.deliverPending();
+    }
+
+    public synchronized long getExpireAfterWrite(TimeUnit unit) {
+        return expireAfterWriteNanos < 0 ? -1 : unit.convert(expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Default time-to-live of elements put into the map from now on (
+     * {@link #put(Object, Object, double, long, TimeUnit)} may override it
+     * per element). Doesn't affect elements that are already in the map.
+     * 
+     * @param duration
+     *            < 0 == no time-to-live (the default)
+     * @param unit
+     */
+    public synchronized void setExpireAfterWrite(long duration, TimeUnit unit) {
+        expireAfterWriteNanos = duration < 0 ? -1 : unit.toNanos(duration);
+    }
+
+    public synchronized long getExpireAfterAccess(TimeUnit unit) {
+        return expireAfterAccessNanos < 0 ? -1 : unit.convert(expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Idle timeout: elements expire if they haven't been put or gotten (via
+     * {@link #get(Object)}) for this long. Applies to each element from its
+     * next put or get on.
+     * 
+     * @param duration
+     *            < 0 == no idle timeout (the default)
+     * @param unit
+     */
+    public synchronized void setExpireAfterAccess(long duration, TimeUnit unit) {
+        expireAfterAccessNanos = duration < 0 ? -1 : unit.toNanos(duration);
+    }
+
+    /**
+     * Granularity of the timer wheel that drives the incremental removal of
+     * expired elements (default: 1 second). Elements are removed at most one
+     * tick (plus the time until the next put() or
+     * {@link #expireEntries()}) after they've expired, unless they're accessed
+     * earlier. Should be a small fraction of the TTLs/idle timeouts in use;
+     * elements that are due more than 256 ticks in the future are looked at
+     * once per 256 ticks until they're due. Changing the granularity
+     * re-schedules all elements, which takes O(n).
+     */
+    public void setExpiryResolution(long duration, TimeUnit unit) {
+        long nanos = unit.toNanos(duration);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (this) {
+            tickNanos = nanos;
+            if (wheel != null) {
+                long now = nanoTime();
+                List<EntryImpl<K,V>> scheduled = new ArrayList<EntryImpl<K,V>>();
+                for (EntryImpl<K,V> head : wheel) {
+                    for (EntryImpl<K,V> e = head.wheelNext; e != head; e = e.wheelNext) {
+                        scheduled.add(e);
+                    }
+                    head.wheelPrev = head.wheelNext = head;
+                }
+                lastSweptTick = tickOf(now) - 1;
+                for (EntryImpl<K,V> e : scheduled) {
+                    e.wheelPrev = e.wheelNext = null;
+                    if (e.expiresAt <= now) {
+                        removeEntry(e, RemovalReason.EXPIRED);
+                    } else {
+                        schedule(e);
+                    }
+                }
+            }
+        }
+        removalNotifier.deliverPending();
+    }
+
+    /**
+     * Snapshot of the current bucket layout and occupancy, mainly for seeing
+     * how finely the priorities of the current elements are resolved.
+     */
+    public static class BucketStatistics {
+        private final double[] lowerBounds;
+        private final int[] sizes;
+        private final int repartitionCount;
+
+        BucketStatistics(double[] lowerBounds, int[] sizes, int repartitionCount) {
+            this.lowerBounds = lowerBounds;
+            this.sizes = sizes;
+            this.repartitionCount = repartitionCount;
+        }
+
+        public int getBucketCount() {
+            return sizes.length;
+        }
+
+        /**
+         * @return lower priority bound of each bucket. Element 0 is always
+         *         -Infinity because the lowest bucket also takes all lower
+         *         priorities.
+         */
+        public double[] getBucketLowerBounds() {
+            return lowerBounds.clone();
+        }
+
+        /**
+         * @return number of elements in each bucket
+         */
+        public int[] getBucketSizes() {
+            return sizes.clone();
+        }
+
+        /**
+         * @return how many times the buckets have been re-partitioned in
+         *         adaptive mode
+         */
+        public int getRepartitionCount() {
+            return repartitionCount;
+        }
+
+        /**
+         * @return fraction of all elements that are in the largest bucket
+         *         (1/nBuckets in the ideal case, 1.0 in the worst case)
+         */
+        public double getLargestBucketFraction() {
+            long total = 0;
+            int max = 0;
+            for (int size : sizes) {
+                total += size;
+                max = Math.max(max, size);
+            }
+            return total == 0 ? 0 : (double) max / total;
+        }
+
+        /**
+         * @return the number of equally filled buckets that would resolve the
+         *         priorities as finely as the current ones (the inverse
+         *         Simpson index of the bucket sizes). Ranges from 1 (all
+         *         elements in one bucket) to nBuckets.
+         */
+        public double getEffectiveBucketCount() {
+            double total = 0, sumOfSquares = 0;
+            for (int size : sizes) {
+                total += size;
+                sumOfSquares += (double) size * size;
+            }
+            return sumOfSquares == 0 ? 0 : total * total / sumOfSquares;
+        }
+    }
+
+    public synchronized EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Set the policy that determines the eviction order, e.g. a
+     * {@link GreedyDualSizePolicy} to take the elements' costs into account
+     * rather than evicting strictly by priority (the default,
+     * {@link EvictionPolicy#PRIORITY}). The buckets then hold the elements by
+     * their eviction keys instead of their priorities, and the iterators
+     * return the elements in eviction order. With a
+     * {@link EvictionPolicy#isUsageDependent() usage dependent} policy, each
+     * get() hit, put() and {@link #updateCost(Object)} re-computes the
+     * element's key and moves it to the corresponding bucket, which is O(1)
+     * like all other operations.
+     * <p>
+     * Setting a policy other than PRIORITY switches on
+     * {@link #setAdaptiveBuckets(boolean) adaptive buckets}, since eviction
+     * keys generally don't fall into the lowPrio..highPrio range. It can't be
+     * combined with {@link #setPriorityDecay(long, TimeUnit) priority decay}.
+     * Changing the policy re-computes all keys, which takes O(n).
+     *
+     * @param evictionPolicy
+     * @throws IllegalStateException
+     *             if priority decay is active
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("null evictionPolicy");
+        }
+        if (evictionPolicy != EvictionPolicy.PRIORITY && decayRate != 0) {
+            throw new IllegalStateException("eviction policies other than PRIORITY can't be combined with priority decay");
+        }
+        this.evictionPolicy = evictionPolicy;
+        for (EntryImpl<K,V> e : entries.values()) {
+            e.key = evictionPolicy.evictionKey(e.priority, e.cost, e.hits);
+        }
+        if (evictionPolicy != EvictionPolicy.PRIORITY) {
+            setAdaptiveBuckets(true);
+        }
+        if (adaptiveBuckets) {
+            repartition();
+        } else {
+            relinkAll();
+        }
+    }
+
+    public synchronized FrequencySketch<? super K> getAdmissionFilter() {
+        return admissionFilter;
+    }
+
+    /**
+     * Set a TinyLFU-style admission filter, or null (the default) to disable
+     * it. With a filter, each get() (hit or miss) is recorded in the sketch,
+     * and a new key that needs other elements evicted is only admitted if none
+     * of those victims has a higher estimated access frequency than the new
+     * key. Otherwise the new element itself is evicted right away (and
+     * reported as {@link RemovalReason#EVICTED}). This keeps one-time accesses,
+     * e.g. a sequential pass through a large series, from flushing out
+     * frequently revisited elements. Victims that have a lower priority than
+     * the new element are compared like all others; if the new element would
+     * be evicted itself by priority before enough cost is freed, it is
+     * admitted and evicted normally. Ties are admitted, so if the map is only
+     * ever filled via put(), it behaves as if there was no filter.
+     * <p>
+     * The sketch should be sized for about the maximum number of elements in
+     * the map. It must not be shared with other maps.
+     *
+     * @param admissionFilter
+     */
+    public synchronized void setAdmissionFilter(FrequencySketch<? super K> admissionFilter) {
+        this.admissionFilter = admissionFilter;
+    }
+
+    /**
+     * Decide whether the just-linked new element candidate may displace the
+     * elements that would have to be evicted for it. Must be called with the
+     * monitor held.
+     */
+    private boolean admit(EntryImpl<K,V> candidate) {
+        double excess = getCurrentTotalCost() - maxTotalCost;
+        if (maxTotalCost < 0 || excess <= 0) {
+            return true;
+        }
+        int candidateFrequency = admissionFilter.frequency(candidate.k);
+        int remaining = entries.size();
+        boolean reverse = isReverseEviction();
+        for (int bucketNr = reverse ? maxBucketNr : 0; bucketNr >= 0 && bucketNr < nBuckets; bucketNr += reverse ? -1 : 1) {
+            EntryImpl<K,V> head = buckets[bucketNr];
+            for (EntryImpl<K,V> e = reverse ? head.prev : head.next; e != head; e = reverse ? e.prev : e.next) {
+                if (excess <= 0 || remaining <= 1 || e == candidate) {
+                    return true;
+                }
+                if (e.leases != null) {
+                    continue;  // pinned, won't be evicted for the candidate
+                }
+                if (admissionFilter.frequency(e.k) > candidateFrequency) {
+                    return false;
+                }
+                excess -= e.cost;
+                remaining--;
+            }
+        }
+        return true;
+    }
+
+    public synchronized BucketStatistics getBucketStatistics() {
+        double[] lowerBounds = new double[nBuckets];
+        lowerBounds[0] = Double.NEGATIVE_INFINITY;
+        for (int b = 1; b < nBuckets; b++) {
+            lowerBounds[b] = bucketLowerBounds != null ? bucketLowerBounds[b - 1] : lowPrio + b * bucketWidth;
+        }
+        return new BucketStatistics(lowerBounds, bucketSizes.clone(), repartitionCount);
+    }
+
+    @Override
+    public synchronized boolean isStatisticsEnabled() {
+        return stats != null;
+    }
+
+    @Override
+    public synchronized void setStatisticsEnabled(boolean statisticsEnabled) {
+        if (statisticsEnabled != (stats != null)) {
+            stats = statisticsEnabled ? new StatsCounter(nBuckets) : null;
+        }
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        if (stats != null) {
+            stats = new StatsCounter(nBuckets);
+        }
+    }
+
+    @Override
+    public synchronized NumericPriorityMapStatistics getStatistics() {
+        double[] costPerBucket = bucketCosts.clone();
+        if (stats == null) {
+            return StatsCounter.emptySnapshot(entries.size(), getCurrentTotalCost(), maxTotalCost, costPerBucket);
+        }
+        return stats.snapshot(entries.size(), getCurrentTotalCost(), maxTotalCost, costPerBucket);
+    }
+
+    @Override
+    public NumericPriorityMapStatistics getCounters() {
+        StatsCounter st = stats;
+        return st == null ? StatsCounter.emptyCounters(nBuckets) : st.counters();
+    }
+
+    @Override
+    public EntryIterator entryIterator() {
+        return new EntryIterator(false);
+    }
+
+    /**
+     * Iterator that returns the entries back-to-front, i.e. the exact reverse
+     * of {@link #entryIterator()}.
+     * 
+     * @return
+     */
+    @Override
+    public EntryIterator reverseEntryIterator() {
+        return new EntryIterator(true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Entry> DESCENDING_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e2.getPriority(), e1.getPriority());
+        }
+    };
+
+    @Override
+    public synchronized List<Entry<K,V>> entriesInPriorityRange(double lo, double hi) {
+        List<Entry<K,V>> result = new ArrayList<Entry<K,V>>();
+        if (!(lo <= hi)) {
+            return result;
+        }
+        lo = toStored(lo);
+        hi = toStored(hi);
+        boolean byPriority = (evictionPolicy == EvictionPolicy.PRIORITY);
+        int end = byPriority ? prio2bucketNr(hi) : maxBucketNr;
+        for (int bucketNr = byPriority ? prio2bucketNr(lo) : 0; bucketNr <= end; bucketNr++) {
+            EntryImpl<K,V> head = buckets[bucketNr];
+            for (EntryImpl<K,V> e = head.next; e != head; e = e.next) {
+                if (e.priority >= lo && e.priority <= hi) {
+                    result.add(exposed(e));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc} Takes the highest buckets that hold at least k elements
+     * together and sorts their elements by priority, so the result is exact
+     * despite the bucketing. With an {@link #setEvictionPolicy(EvictionPolicy)
+     * eviction policy} other than {@link EvictionPolicy#PRIORITY}, the buckets
+     * aren't ordered by priority, so this (like
+     * {@link #entriesInPriorityRange(double, double)}) looks at all elements.
+     */
+    @Override
+    public synchronized List<Entry<K,V>> topK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("invalid k: " + k);
+        }
+        int needed = (evictionPolicy == EvictionPolicy.PRIORITY ? k : Integer.MAX_VALUE);
+        List<EntryImpl<K,V>> candidates = new ArrayList<EntryImpl<K,V>>();
+        for (int bucketNr = maxBucketNr; bucketNr >= 0 && candidates.size() < needed; bucketNr--) {
+            EntryImpl<K,V> head = buckets[bucketNr];
+            for (EntryImpl<K,V> e = head.prev; e != head; e = e.prev) {
+                candidates.add(e);
+            }
+        }
+        Collections.sort(candidates, DESCENDING_PRIORITY);  // stable
+        List<Entry<K,V>> result = new ArrayList<Entry<K,V>>(Math.min(k, candidates.size()));
+        for (EntryImpl<K,V> e : candidates.subList(0, Math.min(k, candidates.size()))) {
+            result.add(exposed(e));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isReverseEviction() {
+        return reverseEviction;
+    }
+
+    @Override
+    public void setReverseEviction(boolean reverseEviction) {
+        this.reverseEviction = reverseEviction;
+    }
+
+    /**
+     * Weakly consistent iterator: it may be used while other threads modify
+     * the map, never throws ConcurrentModificationException, and returns the
+     * elements of each bucket as they were when the iterator got to that
+     * bucket (taking a copy of the bucket list with the map's monitor held).
+     * Elements that are moved to another bucket while the iteration is in
+     * progress may be returned twice or not at all.
+     * <p>
+     * {@link #trySplit()} hands off part of the buckets that haven't been
+     * reached yet to a new iterator, so the entries can be processed by several
+     * threads at once (e.g. for computing statistics over a large map).
+     * trySplit() and {@link #estimateSize()} follow the contract of Java 8's
+     * Spliterator methods of the same names; this class doesn't implement
+     * Spliterator because the library sticks to the Java 6 API.
+     */
+    public class EntryIterator implements Iterator<Entry<K, V>> {
+        private final boolean isReverse;
+        // bucket positions in iteration order (position p is bucket p, or
+        // maxBucketNr - p if isReverse); [nextPos, endPos) haven't been reached yet
+        private int nextPos, endPos;
+        private List<EntryImpl<K, V>> currBucket = Collections.emptyList();
+        private int currIndex;
+        private EntryImpl<K, V> lastNext;
+        // lastNext's value when it was returned; put() replaces values in the
+        // same EntryImpl, so lastNext alone doesn't tell whether it has been
+        // replaced since
+        private V lastValue;
+
+        public EntryIterator(boolean isReverse) {
+            this(isReverse, 0, nBuckets);
+        }
+
+        private EntryIterator(boolean isReverse, int fromPos, int endPos) {
+            this.isReverse = isReverse;
+            this.nextPos = fromPos;
+            this.endPos = endPos;
+            advanceToNext();
+        }
+
+        private int bucketNrAt(int pos) {
+            return isReverse ? maxBucketNr - pos : pos;
+        }
+
+        private void advanceToNext() {
+            while (currIndex >= currBucket.size() && nextPos < endPos) {
+                int bucketNr = bucketNrAt(nextPos++);
+                synchronized (BucketedNumericPriorityMap.this) {
+                    if (bucketSizes[bucketNr] == 0) {
+                        continue;
+                    }
+                    List<EntryImpl<K, V>> bucket = new ArrayList<EntryImpl<K, V>>(bucketSizes[bucketNr]);
+                    EntryImpl<K, V> head = buckets[bucketNr];
+                    for (EntryImpl<K, V> e = isReverse ? head.prev : head.next; e != head; e = isReverse ? e.prev : e.next) {
+                        bucket.add(e);
+                    }
+                    currBucket = bucket;
+                    currIndex = 0;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currIndex < currBucket.size();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastNext = currBucket.get(currIndex++);
+            lastValue = lastNext.v;
+            advanceToNext();
+            return exposed(lastNext);
+        }
+
+        /**
+         * Removes the last returned element, unless it has been removed or
+         * replaced in the meantime.
+         */
+        @Override
+        public void remove() {
+            if (lastNext == null) {
+                throw new IllegalStateException();
+            }
+            synchronized (BucketedNumericPriorityMap.this) {
+                if (entries.get(lastNext.k) == lastNext && lastNext.v == lastValue) {
+                    removeEntry(lastNext, RemovalReason.REMOVED);
+                }
+            }
+            lastNext = null;
+            lastValue = null;
+            removalNotifier.deliverPending();
+        }
+
+        /**
+         * @return the number of elements this iterator would currently return
+         *         if the map isn't modified any further
+         */
+        public int estimateSize() {
+            int result = currBucket.size() - currIndex;
+            synchronized (BucketedNumericPriorityMap.this) {
+                for (int p = nextPos; p < endPos; p++) {
+                    result += bucketSizes[bucketNrAt(p)];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Splits off the later part of the buckets this iterator hasn't reached
+         * yet, so that both parts hold about the same number of elements. This
+         * iterator then stops before those buckets, and the returned iterator
+         * (same direction) covers them, so concatenating the two yields the
+         * original iteration.
+         * 
+         * @return the new iterator, or null if there's nothing left to split
+         *         off
+         */
+        public EntryIterator trySplit() {
+            int currRemaining = currBucket.size() - currIndex;
+            int splitPos;
+            synchronized (BucketedNumericPriorityMap.this) {
+                int minPos = currRemaining > 0 ? nextPos : nextPos + 1;
+                if (minPos >= endPos) {
+                    return null;
+                }
+                int total = currRemaining;
+                for (int p = nextPos; p < endPos; p++) {
+                    total += bucketSizes[bucketNrAt(p)];
+                }
+                int acc = currRemaining;
+                splitPos = nextPos;
+                while (splitPos < endPos - 1 && (splitPos < minPos || 2 * acc < total)) {
+                    acc += bucketSizes[bucketNrAt(splitPos++)];
+                }
+            }
+            EntryIterator result = new EntryIterator(isReverse, splitPos, endPos);
+            endPos = splitPos;
+            return result;
+        }
+    }
+
+    /**
+     * @return the {@link SharedCostBudget} this map is a member of, or null
+     */
+    public SharedCostBudget getSharedCostBudget() {
+        return sharedCostBudget;
+    }
+
+    /**
+     * Called by {@link SharedCostBudget#register(BucketedNumericPriorityMap, double)}.
+     *
+     * @return false if the map already belongs to another budget
+     */
+    synchronized boolean setSharedCostBudget(SharedCostBudget budget) {
+        if (sharedCostBudget != null && sharedCostBudget != budget) {
+            return false;
+        }
+        sharedCostBudget = budget;
+        return true;
+    }
+
+    synchronized void clearSharedCostBudget(SharedCostBudget budget) {
+        if (sharedCostBudget == budget) {
+            sharedCostBudget = null;
+        }
+    }
+
+    /**
+     * Let the shared budget (if any) evict elements across its members. Must
+     * be called without the monitor held.
+     */
+    private void enforceSharedCostBudget() {
+        SharedCostBudget budget = sharedCostBudget;
+        if (budget != null) {
+            budget.evictExcessElements();
+        }
+    }
+
+    /**
+     * @return the element that {@link #evictExcessElements()} would evict
+     *         next, or null if the map is empty or all elements are pinned
+     */
+    synchronized Entry<K,V> peekEvictionCandidate() {
+        boolean reverse = isReverseEviction();
+        for (int bucketNr = reverse ? maxBucketNr : 0; bucketNr >= 0 && bucketNr < nBuckets; bucketNr += reverse ? -1 : 1) {
+            EntryImpl<K,V> head = buckets[bucketNr];
+            for (EntryImpl<K,V> e = reverse ? head.prev : head.next; e != head; e = reverse ? e.prev : e.next) {
+                if (e.leases == null) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evict the element e (returned by {@link #peekEvictionCandidate()}) on
+     * behalf of the shared budget, unless it has been removed or replaced in
+     * the meantime.
+     *
+     * @return whether e was evicted
+     */
+    boolean evictIfCurrent(Entry<?,?> e) {
+        boolean result = false;
+        synchronized (this) {
+            EntryImpl<K,V> current = entries.get(e.getKey());
+            if (current == e && current.leases == null) {
+                evictEntry(current);
+                result = true;
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * @return the half-life of the priority decay, or -1 if there is none
+     */
+    public synchronized long getPriorityDecay(TimeUnit unit) {
+        return decayRate == 0 ? -1 : unit.convert(Math.round(Math.log(2) / decayRate), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Priority decay mode: the priority of each element decays exponentially
+     * from the time it's put or set (i.e. the element was last used), with
+     * decay constant ln(2) / halfLife, so an element that hasn't been touched
+     * for one half-life has half its priority (and one with a negative
+     * priority creeps up towards 0 likewise). Elements that are used
+     * frequently thus keep their high priorities, and elements that aren't
+     * lose them gradually, without anyone having to set their priorities
+     * periodically.
+     * <p>
+     * This takes no per-element work over time: since all priorities decay
+     * by the same factor, the order of the elements doesn't change by itself;
+     * the elements are stored with their priorities as of a global epoch, and
+     * newly given priorities are scaled up accordingly. Once per half-life
+     * (on the next modification), the epoch is moved forward to the current
+     * time and the stored priorities and bucket boundaries are rebased, which
+     * takes O(n). In between, new elements end up in up to 2 times higher
+     * buckets than without decay, which should be taken into account when
+     * choosing lowPrio and highPrio (or use {@link #setAdaptiveBuckets(boolean)
+     * adaptive buckets}).
+     * <p>
+     * All priorities passed to and returned from the map (by
+     * {@link #getPriority(Object)}, the iterators and queries, and in removal
+     * notifications) are the current, decayed ones. The
+     * {@link Entry#getPriority()} of an entry returned by the map reports its
+     * decayed priority as of the time of the call, as long as the element
+     * stays in the map.
+     * <p>
+     * Switching the mode or changing the half-life keeps the current
+     * effective priorities.
+     * 
+     * @param halfLife
+     *            &lt;= 0 == no decay (the default)
+     * @param unit
+     */
+    public synchronized void setPriorityDecay(long halfLife, TimeUnit unit) {
+        double rate = halfLife <= 0 ? 0 : Math.log(2) / unit.toNanos(halfLife);
+        if (rate != 0 && evictionPolicy != EvictionPolicy.PRIORITY) {
+            throw new IllegalStateException("priority decay requires the PRIORITY eviction policy");
+        }
+        rebase(nanoTime(), rate);
+    }
+
+    /**
+     * @return number of times the decay epoch has been moved forward
+     */
+    public synchronized int getRebaseCount() {
+        return rebaseCount;
+    }
+
+    /**
+     * @return priority given now, converted to the stored value. Must be
+     *         called with the monitor held.
+     */
+    private double toStored(double priority) {
+        return decayRate == 0 ? priority : priority * Math.exp(decayRate * (nanoTime() - decayEpoch));
+    }
+
+    /**
+     * @return the current effective priority of a stored value. Must be called
+     *         with the monitor held.
+     */
+    private double decayed(double stored) {
+        return decayRate == 0 ? stored : stored / Math.exp(decayRate * (nanoTime() - decayEpoch));
+    }
+
+    /**
+     * Rebase if the decay since the epoch has reached REBASE_FACTOR. Must be
+     * called with the monitor held.
+     */
+    private void maybeRebase() {
+        if (decayRate != 0) {
+            long now = nanoTime();
+            if (decayRate * (now - decayEpoch) >= Math.log(REBASE_FACTOR)) {
+                rebase(now, decayRate);
+            }
+        }
+    }
+
+    /**
+     * Convert the stored priorities to the effective ones at time now, and
+     * continue with the decay rate newRate from there. Must be called with the
+     * monitor held.
+     */
+    private void rebase(long now, double newRate) {
+        double factor = decayRate == 0 ? 1 : Math.exp(decayRate * (now - decayEpoch));
+        decayRate = newRate;
+        decayEpoch = now;
+        if (factor == 1) {
+            return;
+        }
+        // decay is only allowed with the PRIORITY policy, so key == priority
+        for (EntryImpl<K,V> e : entries.values()) {
+            e.priority /= factor;
+            e.key = e.priority;
+        }
+        if (bucketLowerBounds != null) {
+            // scaling preserves the order, so nobody changes buckets
+            for (int i = 0; i < bucketLowerBounds.length; i++) {
+                bucketLowerBounds[i] /= factor;
+            }
+        } else {
+            relinkAll();
+        }
+        rebaseCount++;
+    }
+
+    /**
+     * In decay mode, an entry of the map as presented to the outside:
+     * reports the decayed priority.
+     */
+    private class DecayingEntry implements Entry<K,V>, CostedEntry {
+        private final EntryImpl<K,V> e;
+
+        DecayingEntry(EntryImpl<K,V> e) {
+            this.e = e;
+        }
+
+        @Override
+        public K getKey() {
+            return e.k;
+        }
+
+        @Override
+        public V getValue() {
+            return e.v;
+        }
+
+        @Override
+        public double getPriority() {
+            synchronized (BucketedNumericPriorityMap.this) {
+                return decayed(e.priority);
+            }
+        }
+
+        @Override
+        public double getCost() {
+            return e.cost;
+        }
+    }
+
+    private Entry<K,V> exposed(EntryImpl<K,V> e) {
+        return decayRate == 0 ? e : new DecayingEntry(e);
+    }
+
+    /**
+     * @return e's current effective priority, for an entry returned by
+     *         {@link #peekEvictionCandidate()}; its eviction key under an
+     *         eviction policy other than {@link EvictionPolicy#PRIORITY}
+     */
+    synchronized double effectivePriority(Entry<?,?> e) {
+        if (evictionPolicy != EvictionPolicy.PRIORITY && e instanceof EntryImpl) {
+            return ((EntryImpl<?,?>) e).key;
+        }
+        return decayed(e.getPriority());
+    }
+
+    /**
+     * A lease on an element, see {@link BucketedNumericPriorityMap#acquire(Object)}.
+     */
+    public static class Lease<K> {
+        private final K key;
+        private final long threadId;
+        private final String threadName;
+        private final long acquireNanos;
+        private final Throwable acquireSite;
+
+        Lease(K key, long acquireNanos, boolean trackSite) {
+            Thread t = Thread.currentThread();
+            this.key = key;
+            this.threadId = t.getId();
+            this.threadName = t.getName();
+            this.acquireNanos = acquireNanos;
+            this.acquireSite = trackSite ? new Throwable("lease on " + key + " acquired here") : null;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return name of the thread that acquired the lease
+         */
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * @return the map's nanoTime() at which the lease was acquired
+         */
+        public long getAcquireNanos() {
+            return acquireNanos;
+        }
+
+        /**
+         * @return a Throwable whose stack trace shows where the lease was
+         *         acquired, or null if {@link BucketedNumericPriorityMap#setLeaseTracking(boolean)
+         *         lease tracking} was off at the time
+         */
+        public Throwable getAcquireSite() {
+            return acquireSite;
+        }
+
+        @Override
+        public String toString() {
+            return "Lease[" + key + ", thread=" + threadName + "]";
+        }
+    }
+
+    /**
+     * Pin k's element: until the lease is given back via
+     * {@link #release(Object)}, the element isn't evicted (neither by this
+     * map's maxTotalCost nor by a {@link SharedCostBudget}), so its value can
+     * safely be used outside the map (e.g. uploaded to the GPU) without
+     * copying it. Pinned elements still count toward the total cost, so the
+     * map may exceed its maxTotalCost while they're pinned; the
+     * {@link #setMaxPinnedCost(double) maximum pinned cost} bounds that.
+     * Leases are reference counted: an element stays pinned until all leases
+     * on it have been released. They survive a put() that replaces the value,
+     * but not an explicit remove(). A pinned element that expires is hidden
+     * from get(), contains() etc. right away, but only removed (and reported
+     * as {@link RemovalReason#EXPIRED}) when its last lease is released.
+     * <p>
+     * Doesn't count as an access to the element (use get() for that).
+     *
+     * @return k's value, or null if k isn't stored (then no lease has been
+     *         acquired)
+     * @throws IllegalStateException
+     *             if pinning the element would exceed the maximum pinned cost
+     */
+    public V acquire(K k) {
+        V result = null;
+        synchronized (this) {
+            EntryImpl<K,V> e = liveEntry(k);
+            if (e != null) {
+                if (e.leases == null) {
+                    if (maxPinnedCost >= 0 && pinnedCost + e.cost > maxPinnedCost) {
+                        throw new IllegalStateException("can't pin " + k + ": pinned cost would exceed " + maxPinnedCost);
+                    }
+                    e.leases = new ArrayList<Lease<K>>(1);
+                    pinnedCost += e.cost;
+                }
+                e.leases.add(new Lease<K>(k, nanoTime(), leaseTracking));
+                result = e.v;
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * Give back a lease acquired by {@link #acquire(Object)}: one acquired by
+     * the calling thread if there is one, otherwise the oldest one. When the
+     * last lease on the element has been released, the element may be evicted
+     * again, which happens right away if the map is over its maxTotalCost, and
+     * it's removed if it has expired meanwhile.
+     *
+     * @return false if k has no outstanding leases, e.g. because it has been
+     *         removed in the meantime
+     */
+    public boolean release(K k) {
+        synchronized (this) {
+            EntryImpl<K,V> e = entries.get(k);
+            if (e == null || e.leases == null) {
+                return false;
+            }
+            long threadId = Thread.currentThread().getId();
+            int i = e.leases.size() - 1;
+            while (i > 0 && e.leases.get(i).threadId != threadId) {
+                i--;
+            }
+            e.leases.remove(i);
+            if (!e.leases.isEmpty()) {
+                return true;
+            }
+            e.leases = null;
+            pinnedCost -= e.cost;
+            if (e.expiresAt != Long.MAX_VALUE && e.expiresAt <= nanoTime()) {
+                removeEntry(e, RemovalReason.EXPIRED);
+            }
+            evictExcessElements();
+        }
+        removalNotifier.deliverPending();
+        enforceSharedCostBudget();
+        return true;
+    }
+
+    /**
+     * @return whether k is stored and has outstanding leases
+     */
+    public synchronized boolean isPinned(K k) {
+        EntryImpl<K,V> e = entries.get(k);
+        return e != null && e.leases != null;
+    }
+
+    /**
+     * @return total cost of the pinned elements
+     */
+    public synchronized double getPinnedCost() {
+        return pinnedCost;
+    }
+
+    public synchronized double getMaxPinnedCost() {
+        return maxPinnedCost;
+    }
+
+    /**
+     * Set the maximum total cost of the pinned elements. {@link #acquire(Object)}
+     * fails for an element that isn't pinned yet if pinning it would exceed
+     * this; elements that are pinned already stay pinned if it's lowered.
+     *
+     * @param maxPinnedCost
+     *            &lt; 0 == no limit (the default)
+     */
+    public synchronized void setMaxPinnedCost(double maxPinnedCost) {
+        this.maxPinnedCost = maxPinnedCost;
+    }
+
+    public synchronized boolean isLeaseTracking() {
+        return leaseTracking;
+    }
+
+    /**
+     * With lease tracking on, each {@link #acquire(Object)} records its stack
+     * trace in the {@link Lease#getAcquireSite() lease}, so leaked leases
+     * found via {@link #getLeases(long, TimeUnit)} can be traced back to the
+     * code that acquired them. Off by default, since recording the stack
+     * trace makes acquire() considerably more expensive.
+     */
+    public synchronized void setLeaseTracking(boolean leaseTracking) {
+        this.leaseTracking = leaseTracking;
+    }
+
+    /**
+     * Leak diagnostics: list the outstanding leases that were acquired at
+     * least minAge ago, oldest first. Leases that are held much longer than
+     * the element is normally in use were most likely leaked, i.e. never
+     * released, and keep their elements from ever being evicted. Takes O(n).
+     *
+     * @param minAge
+     *            0 == all outstanding leases
+     */
+    public synchronized List<Lease<K>> getLeases(long minAge, TimeUnit unit) {
+        long now = nanoTime();
+        long minAgeNanos = unit.toNanos(minAge);
+        List<Lease<K>> result = new ArrayList<Lease<K>>();
+        for (EntryImpl<K,V> e : entries.values()) {
+            if (e.leases != null) {
+                for (Lease<K> lease : e.leases) {
+                    if (now - lease.acquireNanos >= minAgeNanos) {
+                        result.add(lease);
+                    }
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<Lease<K>>() {
+            @Override
+            public int compare(Lease<K> l1, Lease<K> l2) {
+                return Long.signum(l1.acquireNanos - l2.acquireNanos);
+            }
+        });
+        return result;
+    }
+
+    public synchronized boolean isAsyncEviction() {
+        return evictor != null;
+    }
+
+    /**
+     * In async eviction mode, put() and the other operations that may make the
+     * total cost exceed maxTotalCost don't evict the excess elements
+     * themselves, but leave that to a dedicated daemon thread, which evicts
+     * them in batches of {@link #setEvictionBatchSize(int) evictionBatchSize}
+     * elements and releases the map's monitor between batches. So a put() of
+     * a large element that displaces many small ones doesn't stall the other
+     * threads using the map, at the expense of the total cost exceeding
+     * maxTotalCost for a short time. If it exceeds the
+     * {@link #setHardMaxTotalCost(double) hard maximum total cost}, the
+     * modifying thread evicts elements inline until it's below that limit
+     * again.
+     * <p>
+     * Switching the mode off stops the thread and evicts any excess right
+     * away. The thread also terminates by itself some time after the map has
+     * become unreachable.
+     * 
+     * @param asyncEviction
+     */
+    public void setAsyncEviction(boolean asyncEviction) {
+        synchronized (this) {
+            if (asyncEviction == (evictor != null)) {
+                return;
+            }
+            if (asyncEviction) {
+                evictor = new Evictor(this);
+                evictor.start();
+            } else {
+                evictor.wakeUp();
+                evictor = null;
+            }
+            evictExcessElements();
+        }
+        removalNotifier.deliverPending();
+    }
+
+    public synchronized double getHardMaxTotalCost() {
+        return hardMaxTotalCost;
+    }
+
+    /**
+     * Total cost above which elements are evicted inline even in
+     * {@link #setAsyncEviction(boolean) async eviction mode}. Values below
+     * maxTotalCost act like maxTotalCost.
+     * 
+     * @param hardMaxTotalCost
+     *            &lt; 0 == none (the default)
+     */
+    public void setHardMaxTotalCost(double hardMaxTotalCost) {
+        synchronized (this) {
+            this.hardMaxTotalCost = hardMaxTotalCost;
+            evictExcessElements();
+        }
+        removalNotifier.deliverPending();
+    }
+
+    public synchronized int getEvictionBatchSize() {
+        return evictionBatchSize;
+    }
+
+    /**
+     * Max. number of elements the evictor thread evicts per acquisition of the
+     * map's monitor in {@link #setAsyncEviction(boolean) async eviction mode}
+     * (default: 32).
+     */
+    public synchronized void setEvictionBatchSize(int evictionBatchSize) {
+        if (evictionBatchSize <= 0) {
+            throw new IllegalArgumentException("invalid evictionBatchSize: " + evictionBatchSize);
+        }
+        this.evictionBatchSize = evictionBatchSize;
+    }
+
+    /**
+     * The evictor thread of the async eviction mode. Only holds a weak
+     * reference to the map while it's idle: it waits on its own monitor, not
+     * the map's, with no reference to the map on its stack.
+     */
+    private static class Evictor extends Thread {
+        private final WeakReference<BucketedNumericPriorityMap<?, ?>> mapRef;
+        private boolean wokenUp = false;  // guarded by this
+
+        Evictor(BucketedNumericPriorityMap<?, ?> map) {
+            super("BucketedNumericPriorityMap evictor");
+            setDaemon(true);
+            mapRef = new WeakReference<BucketedNumericPriorityMap<?, ?>>(map);
+        }
+
+        /**
+         * Called by the map (with its monitor held) when there's work to do or
+         * the thread should terminate.
+         */
+        synchronized void wakeUp() {
+            wokenUp = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    BucketedNumericPriorityMap<?, ?> map = mapRef.get();
+                    if (map == null) {
+                        return;
+                    }
+                    int count = map.evictBatch(this);
+                    map = null;
+                    if (count < 0) {
+                        return;
+                    }
+                    if (count == 0) {
+                        synchronized (this) {
+                            if (!wokenUp) {
+                                wait(EVICTOR_IDLE_MILLIS);
+                            }
+                            wokenUp = false;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // terminate
+            }
+        }
+    }
+
+    /**
+     * One iteration of the evictor thread: evict a batch of elements if the
+     * map is over its maxTotalCost.
+     * 
+     * @return number of evicted elements. 0 == nothing to do, or only pinned
+     *         elements left; ev should wait until it's woken up (or until
+     *         {@link #EVICTOR_IDLE_MILLIS} have passed). -1 == ev should
+     *         terminate
+     */
+    private int evictBatch(Evictor ev) {
+        int count;
+        synchronized (this) {
+            if (evictor != ev) {
+                return -1;
+            }
+            if (maxTotalCost < 0 || getCurrentTotalCost() <= maxTotalCost || entries.size() <= 1) {
+                return 0;
+            }
+            count = evictDownTo(maxTotalCost, evictionBatchSize);
+        }
+        removalNotifier.deliverPending();
+        return count;
+    }
+
+    /**
+     * Must be called with the monitor held. The caller must call
+     * removalNotifier.deliverPending() after releasing the monitor.
+     */
+    protected void evictExcessElements() {
+        if (maxTotalCost < 0) {
+            return;
+        }
+        if (evictor != null) {
+            if (hardMaxTotalCost >= 0) {
+                evictDownTo(Math.max(hardMaxTotalCost, maxTotalCost), Integer.MAX_VALUE);
+            }
+            if (getCurrentTotalCost() > maxTotalCost) {
+                evictor.wakeUp();
+            }
+            return;
+        }
+        evictDownTo(maxTotalCost, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evict up to maxCount elements in eviction order until the total cost is
+     * at most limit (or there's only one element left), skipping pinned
+     * elements. Must be called with the monitor held.
+     *
+     * @return number of evicted elements
+     */
+    private int evictDownTo(double limit, int maxCount) {
+        boolean reverse = isReverseEviction();
+        int bucketNr = reverse ? maxBucketNr : 0;
+        EntryImpl<K,V> head = buckets[bucketNr];
+        EntryImpl<K,V> victim = reverse ? head.prev : head.next;
+        int count = 0;
+        while ((getCurrentTotalCost() > limit) && (entries.size() > 1) && count < maxCount) {
+            if (victim == head) {
+                bucketNr += reverse ? -1 : 1;
+                if (bucketNr < 0 || bucketNr >= nBuckets) {
+                    break;  // only pinned elements left
+                }
+                head = buckets[bucketNr];
+                victim = reverse ? head.prev : head.next;
+                continue;
+            }
+            EntryImpl<K,V> next = reverse ? victim.prev : victim.next;
+            if (victim.leases == null) {
+                evictEntry(victim);
+                count++;
+            }
+            victim = next;
         }
+        return count;
     }
 
 }
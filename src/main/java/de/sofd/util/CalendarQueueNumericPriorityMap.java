@@ -0,0 +1,851 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+
+/**
+ * NumericPriorityMap that keeps its elements in exact priority order (elements
+ * with equal priorities in insertion order, where changing an element's
+ * priority counts as re-inserting it), with amortized O(1) expected time
+ * complexity for all operations -- unlike {@link BucketedNumericPriorityMap},
+ * which only orders elements up to the bucket granularity, and unlike TreeMap
+ * et al., which take O(log n).
+ * <p>
+ * The data structure is a calendar queue (R. Brown, "Calendar Queues", CACM
+ * 31(10), 1988): the priority axis is divided into "days" of equal width, and
+ * day d is stored in bucket d mod nBuckets, i.e. the buckets form a "year"
+ * that wraps around, so any priority fits in without a fixed priority range.
+ * Each bucket is a list sorted by priority. The bucket count follows the
+ * number of elements (nBuckets is a power of 2 between size/2 and 4*size),
+ * and the day width is re-estimated from a sample of the priorities on each
+ * resize, so that the buckets stay short. If the priority
+ * distribution drifts so far that the operations do too much list walking or
+ * empty-day skipping on average, the calendar is rebuilt with a new width as
+ * well. Rebuilds take O(n) and happen at most every n operations.
+ * <p>
+ * Empty buckets are skipped using an occupancy bitmap, 64 buckets per step.
+ * This matters for cache-like usage, where elements are frequently inserted
+ * below the current minimum and evicted right away, leaving a gap of empty
+ * days to the next element. Elements farther away (more than a year) are found
+ * by a direct search over all buckets, which takes O(n).
+ * <p>
+ * Priorities must not be NaN. The element cost function is evaluated once
+ * when an element is put into the map (and in {@link #updateCost(Object)}).
+ * <p>
+ * Like {@link BucketedNumericPriorityMap}, this class is synchronized, and
+ * removal listeners are called after the map's monitor has been released.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class CalendarQueueNumericPriorityMap<K, V> implements NumericPriorityMap<K, V> {
+
+    /**
+     * Map entry, and node of the circular, doubly-linked bucket list it is in.
+     * Each bucket list has a sentinel entry as its head.
+     */
+    protected static class EntryImpl<K, V> implements Entry<K, V>, CostedEntry {
+        K k;
+        V v;
+        double priority;
+        double cost;  // elementCostFunction(v), memoized
+        long day;     // floor(priority / bucketWidth)
+        long seq;     // link order, for ordering equal priorities
+        EntryImpl<K, V> prev, next;
+
+        public EntryImpl(K k, V v, double priority) {
+            this.k = k;
+            this.v = v;
+            this.priority = priority;
+        }
+
+        @Override
+        public K getKey() {
+            return k;
+        }
+
+        @Override
+        public V getValue() {
+            return v;
+        }
+
+        @Override
+        public double getPriority() {
+            return priority;
+        }
+
+        @Override
+        public double getCost() {
+            return cost;
+        }
+
+        boolean isBefore(EntryImpl<K, V> other) {
+            return priority < other.priority || (priority == other.priority && seq < other.seq);
+        }
+    }
+
+    private static final int MIN_BUCKETS = 16;
+
+    /**
+     * Minimum number of modifications between two checks whether the calendar
+     * should be rebuilt because the day width doesn't fit the priorities
+     * anymore.
+     */
+    private static final int MIN_REBUILD_INTERVAL = 64;
+
+    /**
+     * The calendar is rebuilt if the operations since the last check took more
+     * than this many list/day steps on average.
+     */
+    private static final int MAX_STEPS_PER_OP = 16;
+
+    /**
+     * Number of priorities sampled for estimating the day width.
+     */
+    private static final int WIDTH_SAMPLES = 256;
+
+    /**
+     * Target average number of elements per day in the dense part of the
+     * priority distribution.
+     */
+    private static final double ELEMENTS_PER_DAY = 3;
+
+    private final Map<K, EntryImpl<K, V>> entries = new HashMap<K, EntryImpl<K, V>>();
+
+    private EntryImpl<K, V>[] buckets;  // sentinel heads; length is a power of 2
+    private int bucketMask;
+    private long[] occupied;  // bit b set == bucket b is non-empty
+    private double bucketWidth;
+    private long seqCounter = 0;
+    private int nLinked = 0;
+
+    /**
+     * No linked element has a day outside lowDay..highDay (they're not
+     * necessarily tight bounds).
+     */
+    private long lowDay = Long.MAX_VALUE, highDay = Long.MIN_VALUE;
+
+    private int opsSinceCheck = 0;
+    private long stepsSinceCheck = 0;
+    private int rebuildCount = 0;
+
+    private final Function1<V, Double> elementCostFunction;
+    private double totalCost = 0;
+    private double maxTotalCost;
+    private boolean reverseEviction;
+
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<K, V>();
+
+    /**
+     * Creates a map with an initial bucket width of 1, a maximum total cost of
+     * 1000 and an element cost function that always returns 1 -- so the map
+     * will grow up to a maximum of 1000 elements.
+     */
+    public CalendarQueueNumericPriorityMap() {
+        this(1, 1000, null, false);
+    }
+
+    public CalendarQueueNumericPriorityMap(double maxTotalCost, Function1<V, Double> elementCostFunction) {
+        this(1, maxTotalCost, elementCostFunction, false);
+    }
+
+    /**
+     *
+     * @param initialBucketWidth
+     *            width of a "day" (see class comment) until the first rebuild,
+     *            ideally about the average distance between the priorities
+     * @param maxTotalCost
+     * @param elementCostFunction
+     *            null == 1 for all elements
+     * @param reverseEviction
+     */
+    public CalendarQueueNumericPriorityMap(double initialBucketWidth, double maxTotalCost, Function1<V, Double> elementCostFunction,
+            boolean reverseEviction) {
+        if (!(initialBucketWidth > 0) || Double.isInfinite(initialBucketWidth)) {
+            throw new IllegalArgumentException("invalid bucket width: " + initialBucketWidth);
+        }
+        this.bucketWidth = initialBucketWidth;
+        this.maxTotalCost = maxTotalCost;
+        this.reverseEviction = reverseEviction;
+        if (elementCostFunction != null) {
+            this.elementCostFunction = elementCostFunction;
+        } else {
+            this.elementCostFunction = new Function1<V, Double>() {
+                @Override
+                public Double run(V v) {
+                    return 1.0;
+                }
+            };
+        }
+        this.buckets = newBuckets(MIN_BUCKETS);
+        this.bucketMask = MIN_BUCKETS - 1;
+        this.occupied = new long[1];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> EntryImpl<K, V>[] newBuckets(int n) {
+        EntryImpl<K, V>[] result = (EntryImpl<K, V>[]) new EntryImpl<?, ?>[n];
+        for (int i = 0; i < n; i++) {
+            EntryImpl<K, V> head = new EntryImpl<K, V>(null, null, 0);
+            head.prev = head.next = head;
+            result[i] = head;
+        }
+        return result;
+    }
+
+    private long dayOf(double priority) {
+        return (long) Math.floor(priority / bucketWidth);  // saturates for huge priorities
+    }
+
+    private EntryImpl<K, V> headOf(long day) {
+        return buckets[(int) day & bucketMask];
+    }
+
+    private static void checkPriority(double priority) {
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("NaN priority");
+        }
+    }
+
+    /**
+     * Insert e into its bucket, after all elements with a priority &lt;=
+     * e.priority (if newSeq) or before e in (priority, seq) order (otherwise).
+     */
+    private void link(EntryImpl<K, V> e, boolean newSeq) {
+        if (newSeq) {
+            e.seq = ++seqCounter;
+        }
+        e.day = dayOf(e.priority);
+        int b = (int) e.day & bucketMask;
+        EntryImpl<K, V> head = buckets[b];
+        if (head.next == head) {
+            occupied[b >>> 6] |= 1L << b;
+        }
+        EntryImpl<K, V> pos = head.prev;
+        while (pos != head && e.isBefore(pos)) {
+            pos = pos.prev;
+            stepsSinceCheck++;
+        }
+        e.prev = pos;
+        e.next = pos.next;
+        pos.next.prev = e;
+        pos.next = e;
+        nLinked++;
+        lowDay = Math.min(lowDay, e.day);
+        highDay = Math.max(highDay, e.day);
+        opsSinceCheck++;
+    }
+
+    private void unlink(EntryImpl<K, V> e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+        int b = (int) e.day & bucketMask;
+        if (buckets[b].next == buckets[b]) {
+            occupied[b >>> 6] &= ~(1L << b);
+        }
+        if (--nLinked == 0) {
+            lowDay = Long.MAX_VALUE;
+            highDay = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return distance (0..nBuckets-1) from bucket b to the next non-empty
+     *         bucket at or after it (wrapping around), or -1 if all are empty
+     */
+    private int distanceToNextOccupied(int b) {
+        int w = b >>> 6;
+        long bits = occupied[w] & (-1L << b);
+        for (int i = 0; i <= occupied.length; i++) {
+            if (bits != 0) {
+                return ((w << 6) + Long.numberOfTrailingZeros(bits) - b) & bucketMask;
+            }
+            w = (w + 1) % occupied.length;
+            bits = occupied[w];
+        }
+        return -1;
+    }
+
+    /**
+     * @return distance (0..nBuckets-1) from bucket b to the next non-empty
+     *         bucket at or before it (wrapping around), or -1 if all are empty
+     */
+    private int distanceToPrevOccupied(int b) {
+        int w = b >>> 6;
+        long bits = occupied[w] & (-1L >>> (63 - (b & 63)));
+        for (int i = 0; i <= occupied.length; i++) {
+            if (bits != 0) {
+                return (b - (w << 6) - 63 + Long.numberOfLeadingZeros(bits)) & bucketMask;
+            }
+            w = (w + occupied.length - 1) % occupied.length;
+            bits = occupied[w];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first element (in ascending order) with a day &gt;= day, or
+     *         null
+     */
+    private EntryImpl<K, V> firstFrom(long day) {
+        if (nLinked == 0) {
+            return null;
+        }
+        day = Math.max(day, lowDay);
+        if (day > highDay) {
+            return null;
+        }
+        // skip empty buckets via the occupancy bitmap, for at most one year
+        int skipped = 0;
+        while (true) {
+            int dist = distanceToNextOccupied((int) day & bucketMask);
+            long remaining = highDay - day;  // < 0 == overflow, i.e. far enough
+            if (remaining >= 0 && dist > remaining) {
+                return null;
+            }
+            skipped += dist;
+            if (skipped >= buckets.length) {
+                break;
+            }
+            day += dist;
+            stepsSinceCheck++;
+            EntryImpl<K, V> head = headOf(day);
+            for (EntryImpl<K, V> e = head.next; e != head; e = e.next) {
+                stepsSinceCheck++;
+                if (e.day >= day) {
+                    if (e.day == day) {
+                        return e;
+                    }
+                    break;
+                }
+            }
+            if (day >= highDay) {
+                return null;
+            }
+            day++;
+            skipped++;
+        }
+        // a whole year without elements -- look for the next one directly
+        EntryImpl<K, V> result = null;
+        for (EntryImpl<K, V> head : buckets) {
+            for (EntryImpl<K, V> e = head.next; e != head; e = e.next) {
+                stepsSinceCheck++;
+                if (e.day >= day) {
+                    if (result == null || e.isBefore(result)) {
+                        result = e;
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the last element (in ascending order) with a day &lt;= day, or
+     *         null
+     */
+    private EntryImpl<K, V> lastUpTo(long day) {
+        if (nLinked == 0) {
+            return null;
+        }
+        day = Math.min(day, highDay);
+        if (day < lowDay) {
+            return null;
+        }
+        int skipped = 0;
+        while (true) {
+            int dist = distanceToPrevOccupied((int) day & bucketMask);
+            long remaining = day - lowDay;
+            if (remaining >= 0 && dist > remaining) {
+                return null;
+            }
+            skipped += dist;
+            if (skipped >= buckets.length) {
+                break;
+            }
+            day -= dist;
+            stepsSinceCheck++;
+            EntryImpl<K, V> head = headOf(day);
+            for (EntryImpl<K, V> e = head.prev; e != head; e = e.prev) {
+                stepsSinceCheck++;
+                if (e.day <= day) {
+                    if (e.day == day) {
+                        return e;
+                    }
+                    break;
+                }
+            }
+            if (day <= lowDay) {
+                return null;
+            }
+            day--;
+            skipped++;
+        }
+        EntryImpl<K, V> result = null;
+        for (EntryImpl<K, V> head : buckets) {
+            for (EntryImpl<K, V> e = head.prev; e != head; e = e.prev) {
+                stepsSinceCheck++;
+                if (e.day <= day) {
+                    if (result == null || result.isBefore(e)) {
+                        result = e;
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private EntryImpl<K, V> first() {
+        EntryImpl<K, V> result = firstFrom(lowDay);
+        if (result != null) {
+            lowDay = result.day;
+        }
+        return result;
+    }
+
+    private EntryImpl<K, V> last() {
+        EntryImpl<K, V> result = lastUpTo(highDay);
+        if (result != null) {
+            highDay = result.day;
+        }
+        return result;
+    }
+
+    private EntryImpl<K, V> successor(EntryImpl<K, V> e) {
+        EntryImpl<K, V> next = e.next;
+        if (next != headOf(e.day) && next.day == e.day) {
+            return next;
+        }
+        return e.day == Long.MAX_VALUE ? null : firstFrom(e.day + 1);
+    }
+
+    private EntryImpl<K, V> predecessor(EntryImpl<K, V> e) {
+        EntryImpl<K, V> prev = e.prev;
+        if (prev != headOf(e.day) && prev.day == e.day) {
+            return prev;
+        }
+        return e.day == Long.MIN_VALUE ? null : lastUpTo(e.day - 1);
+    }
+
+    /**
+     * Resize the calendar if the number of elements has left the
+     * nBuckets/2..2*nBuckets range, or rebuild it with a new width if the
+     * operations have become too expensive. Must be called with the monitor
+     * held.
+     */
+    private void maybeRebuild() {
+        int n = entries.size();
+        int nBuckets = buckets.length;
+        if (n > 2 * nBuckets) {
+            rebuild(2 * nBuckets);
+        } else if (n < nBuckets / 4 && nBuckets > MIN_BUCKETS) {
+            rebuild(nBuckets / 2);
+        } else if (opsSinceCheck >= Math.max(MIN_REBUILD_INTERVAL, n)) {
+            if (stepsSinceCheck > (long) MAX_STEPS_PER_OP * opsSinceCheck) {
+                rebuild(nBuckets);
+            } else {
+                opsSinceCheck = 0;
+                stepsSinceCheck = 0;
+            }
+        }
+    }
+
+    /**
+     * Re-estimate the day width from a sample of the current priorities, and
+     * re-distribute all elements into nBuckets new buckets. The elements keep
+     * their order.
+     */
+    private void rebuild(int nBuckets) {
+        int n = nLinked;
+        EntryImpl<K, V>[] oldBuckets = buckets;
+        if (n >= 2) {
+            int nSamples = Math.min(n, WIDTH_SAMPLES);
+            double[] samples = new double[nSamples];
+            double stride = (double) n / nSamples;
+            int i = 0, iSample = 0;
+            double nextSampleAt = 0;
+            for (EntryImpl<K, V> head : oldBuckets) {
+                for (EntryImpl<K, V> e = head.next; e != head && iSample < nSamples; e = e.next, i++) {
+                    if (i >= nextSampleAt) {
+                        samples[iSample++] = e.priority;
+                        nextSampleAt += stride;
+                    }
+                }
+            }
+            Arrays.sort(samples, 0, iSample);
+            // width from the density of the middle 80% of the priorities, so
+            // outliers don't stretch the days
+            double range = samples[iSample * 9 / 10] - samples[iSample / 10];
+            double width = ELEMENTS_PER_DAY * range / (0.8 * n);
+            if (width > 0 && !Double.isInfinite(width)) {
+                bucketWidth = width;
+            }
+        }
+        buckets = newBuckets(nBuckets);
+        bucketMask = nBuckets - 1;
+        occupied = new long[(nBuckets + 63) >>> 6];
+        nLinked = 0;
+        lowDay = Long.MAX_VALUE;
+        highDay = Long.MIN_VALUE;
+        for (EntryImpl<K, V> head : oldBuckets) {
+            EntryImpl<K, V> e = head.next;
+            while (e != head) {
+                EntryImpl<K, V> next = e.next;
+                link(e, false);
+                e = next;
+            }
+        }
+        opsSinceCheck = 0;
+        stepsSinceCheck = 0;
+        rebuildCount++;
+    }
+
+    /**
+     * Remove e from the map. Must be called with the monitor held.
+     */
+    private void removeEntry(EntryImpl<K, V> e, RemovalReason reason) {
+        unlink(e);
+        entries.remove(e.k);
+        totalCost -= e.cost;
+        removalNotifier.enqueue(e.k, e.v, e.priority, reason);
+    }
+
+    /**
+     * Must be called with the monitor held. The caller must call
+     * removalNotifier.deliverPending() after releasing the monitor.
+     */
+    protected void evictExcessElements() {
+        if (maxTotalCost < 0) {
+            return;
+        }
+        while (totalCost > maxTotalCost && entries.size() > 1) {
+            removeEntry(reverseEviction ? last() : first(), RemovalReason.EVICTED);
+        }
+    }
+
+    @Override
+    public V put(K k, V v, double priority) {
+        checkPriority(priority);
+        V result = null;
+        double cost = elementCostFunction.run(v);
+        synchronized (this) {
+            EntryImpl<K, V> e = entries.get(k);
+            if (e != null) {
+                unlink(e);
+                totalCost -= e.cost;
+                removalNotifier.enqueue(k, e.v, e.priority, RemovalReason.REPLACED);
+                result = e.v;
+                e.v = v;
+                e.priority = priority;
+            } else {
+                e = new EntryImpl<K, V>(k, v, priority);
+                entries.put(k, e);
+            }
+            link(e, true);
+            e.cost = cost;
+            totalCost += cost;
+            evictExcessElements();
+            maybeRebuild();
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    @Override
+    public synchronized V get(K k) {
+        EntryImpl<K, V> e = entries.get(k);
+        return e == null ? null : e.v;
+    }
+
+    @Override
+    public V remove(K k) {
+        V result = null;
+        synchronized (this) {
+            EntryImpl<K, V> e = entries.get(k);
+            if (e != null) {
+                removeEntry(e, RemovalReason.REMOVED);
+                result = e.v;
+                maybeRebuild();
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    @Override
+    public synchronized boolean contains(K k) {
+        return entries.containsKey(k);
+    }
+
+    /**
+     * @return the priority of k, or NaN if k isn't stored
+     */
+    public synchronized double getPriority(K k) {
+        EntryImpl<K, V> e = entries.get(k);
+        return e == null ? Double.NaN : e.priority;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public synchronized void setPriority(K k, double priority) {
+        checkPriority(priority);
+        EntryImpl<K, V> e = entries.get(k);
+        if (e != null) {
+            unlink(e);
+            e.priority = priority;
+            link(e, true);
+            maybeRebuild();
+        }
+    }
+
+    @Override
+    public synchronized void setPriorities(Map<K, Double> priorities) {
+        for (Double priority : priorities.values()) {
+            checkPriority(priority);
+        }
+        for (Map.Entry<K, Double> pe : priorities.entrySet()) {
+            EntryImpl<K, V> e = entries.get(pe.getKey());
+            if (e != null) {
+                unlink(e);
+                e.priority = pe.getValue();
+                link(e, true);
+            }
+        }
+        maybeRebuild();
+    }
+
+    /**
+     * Walks the elements once in ascending order, unlinking the ones whose
+     * priority changes, and then re-inserts them in the order they were found.
+     */
+    @Override
+    public synchronized void reprioritize(Function1<K, Double> priorityFunction) {
+        List<EntryImpl<K, V>> moved = new ArrayList<EntryImpl<K, V>>();
+        List<Double> newPriorities = new ArrayList<Double>();
+        EntryImpl<K, V> e = first();
+        while (e != null) {
+            EntryImpl<K, V> next = successor(e);
+            Double priority = priorityFunction.run(e.k);
+            if (priority != null && priority != e.priority) {
+                checkPriority(priority);
+                moved.add(e);
+                newPriorities.add(priority);
+            }
+            e = next;
+        }
+        for (int i = 0; i < moved.size(); i++) {
+            unlink(moved.get(i));
+        }
+        for (int i = 0; i < moved.size(); i++) {
+            EntryImpl<K, V> m = moved.get(i);
+            m.priority = newPriorities.get(i);
+            link(m, true);
+        }
+        maybeRebuild();
+    }
+
+    @Override
+    public void updateCost(K k) {
+        synchronized (this) {
+            EntryImpl<K, V> e = entries.get(k);
+            if (e != null) {
+                double cost = elementCostFunction.run(e.v);
+                totalCost += cost - e.cost;
+                e.cost = cost;
+                evictExcessElements();
+            }
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public synchronized double getCurrentTotalCost() {
+        return totalCost;
+    }
+
+    @Override
+    public synchronized double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        synchronized (this) {
+            this.maxTotalCost = maxTotalCost;
+            evictExcessElements();
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public Function1<V, Double> getElementCostFunction() {
+        return elementCostFunction;
+    }
+
+    @Override
+    public synchronized boolean isReverseEviction() {
+        return reverseEviction;
+    }
+
+    @Override
+    public synchronized void setReverseEviction(boolean reverseEviction) {
+        this.reverseEviction = reverseEviction;
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener, null);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener, Executor executor) {
+        removalNotifier.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
+    }
+
+    public synchronized int getBucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * @return the current width of a "day" (see class comment)
+     */
+    public synchronized double getBucketWidth() {
+        return bucketWidth;
+    }
+
+    /**
+     * @return number of times the calendar has been resized or rebuilt
+     */
+    public synchronized int getRebuildCount() {
+        return rebuildCount;
+    }
+
+    /**
+     * Iterates over the elements in ascending priority order (equal priorities
+     * in insertion order).
+     */
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new EntryIterator(false);
+    }
+
+    /**
+     * Iterator that returns the entries back-to-front, i.e. the exact reverse
+     * of {@link #entryIterator()}.
+     */
+    @Override
+    public Iterator<Entry<K, V>> reverseEntryIterator() {
+        return new EntryIterator(true);
+    }
+
+    @Override
+    public synchronized List<Entry<K, V>> entriesInPriorityRange(double lo, double hi) {
+        List<Entry<K, V>> result = new ArrayList<Entry<K, V>>();
+        if (!(lo <= hi)) {
+            return result;
+        }
+        EntryImpl<K, V> e = firstFrom(dayOf(lo));
+        while (e != null && e.priority < lo) {
+            e = successor(e);
+        }
+        while (e != null && e.priority <= hi) {
+            result.add(e);
+            e = successor(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<Entry<K, V>> topK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("invalid k: " + k);
+        }
+        List<Entry<K, V>> result = new ArrayList<Entry<K, V>>(Math.min(k, entries.size()));
+        for (EntryImpl<K, V> e = k > 0 ? last() : null; e != null; e = predecessor(e)) {
+            result.add(e);
+            if (result.size() == k) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * If the map is modified other than through the iterator's remove() during
+     * the iteration, elements may be skipped or returned twice, and next() may
+     * throw a ConcurrentModificationException.
+     */
+    protected class EntryIterator implements Iterator<Entry<K, V>> {
+        private EntryImpl<K, V> nextE, lastNext;
+        private final boolean isReverse;
+
+        public EntryIterator(boolean isReverse) {
+            this.isReverse = isReverse;
+            synchronized (CalendarQueueNumericPriorityMap.this) {
+                nextE = isReverse ? last() : first();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextE != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            synchronized (CalendarQueueNumericPriorityMap.this) {
+                if (nextE.prev == null) {
+                    throw new ConcurrentModificationException();
+                }
+                lastNext = nextE;
+                nextE = isReverse ? predecessor(nextE) : successor(nextE);
+            }
+            return lastNext;
+        }
+
+        @Override
+        public void remove() {
+            if (lastNext == null) {
+                throw new IllegalStateException();
+            }
+            synchronized (CalendarQueueNumericPriorityMap.this) {
+                if (lastNext.prev != null) {
+                    removeEntry(lastNext, RemovalReason.REMOVED);
+                }
+            }
+            lastNext = null;
+            removalNotifier.deliverPending();
+        }
+    }
+
+}
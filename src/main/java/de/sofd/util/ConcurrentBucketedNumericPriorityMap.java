@@ -0,0 +1,909 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe NumericPriorityMap implementation for maps that are accessed by
+ * many threads at once. Uses the same bucketing scheme as
+ * {@link BucketedNumericPriorityMap} (see there for the compromises that are
+ * made with respect to priority ordering), but rather than synchronizing every
+ * method on one monitor, it works like this:
+ * <ul>
+ * <li>{@link #get(Object)} and {@link #contains(Object)} never block; they are
+ * plain lookups in a {@link ConcurrentHashMap}.
+ * <li>Modifications (put(), remove(), setPriority()) are striped by key hash:
+ * the keys are distributed over a number of "stripes", each of which has its
+ * own lock and its own set of bucket lists. Writes for keys in different
+ * stripes don't contend with each other.
+ * <li>Eviction is serialized by a separate lock and still honors the global
+ * {@link #getMaxTotalCost() maxTotalCost} and the global bucket order: it always
+ * throws out an element of the lowest (highest, for reverse eviction) non-empty
+ * bucket across all stripes. Inside a bucket, the elements are ordered by a
+ * global insertion sequence number, so the iteration and eviction order is the
+ * same as in BucketedNumericPriorityMap as long as the map isn't modified
+ * concurrently.
+ * </ul>
+ * The iterators are weakly consistent: they never throw
+ * ConcurrentModificationException, and they return the elements of each bucket
+ * as they were when the iterator got to that bucket.
+ * {@link #getCurrentTotalCost()} and {@link #size()} are sums over the stripes
+ * and thus not atomic snapshots while other threads are modifying the map.
+ * <p>
+ * The element cost function is evaluated exactly once per put(), outside of any
+ * lock; the result is stored with the element. Removal listeners are called
+ * outside of any lock, too.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentBucketedNumericPriorityMap<K, V> implements MonitoredNumericPriorityMap<K, V>, ExclusivelyLockable {
+
+    protected static class Node<K, V> implements Entry<K, V>, CostedEntry {
+        final K k;
+        volatile V v;
+        volatile double priority;
+
+        // all of the following are guarded by the lock of the node's stripe
+        double cost;
+        long seq;
+        int bucketNr = -1;  // -1 == not linked into a bucket list
+        Node<K, V> prev, next;
+
+        Node(K k) {
+            this.k = k;
+        }
+
+        @Override
+        public K getKey() {
+            return k;
+        }
+
+        @Override
+        public V getValue() {
+            return v;
+        }
+
+        @Override
+        public double getPriority() {
+            return priority;
+        }
+
+        /**
+         * Only up to date while the node's stripe is locked.
+         */
+        @Override
+        public double getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * One stripe: a lock and the bucket lists of all elements whose keys hash
+     * into this stripe. Each bucket list is a circular doubly-linked list with
+     * a sentinel node, ordered by ascending {@link Node#seq}.
+     */
+    @SuppressWarnings("serial")
+    protected static class Stripe<K, V> extends ReentrantLock {
+        final Node<K, V>[] heads;
+        final AtomicIntegerArray bucketSizes;
+        final double[] bucketCosts;  // guarded by the lock
+        volatile int size;
+        volatile double cost;
+
+        @SuppressWarnings("unchecked")
+        Stripe(int nBuckets) {
+            heads = (Node<K, V>[]) new Node<?, ?>[nBuckets];
+            for (int i = 0; i < nBuckets; i++) {
+                Node<K, V> head = new Node<K, V>(null);
+                head.prev = head.next = head;
+                heads[i] = head;
+            }
+            bucketSizes = new AtomicIntegerArray(nBuckets);
+            bucketCosts = new double[nBuckets];
+        }
+    }
+
+    /**
+     * How often {@link #evictOne()} looks for a victim again when the one it
+     * picked has been moved away by another thread, before it gives up.
+     */
+    private static final int MAX_EVICTION_ATTEMPTS = 8;
+
+    private final ConcurrentHashMap<K, Node<K, V>> entries;
+    private final Stripe<K, V>[] stripes;
+    private final int stripeMask;
+
+    private final double lowPrio, highPrio;
+    private final int nBuckets, maxBucketNr;
+    private final double bucketWidth;
+    private final AtomicIntegerArray globalBucketSizes;
+    private final AtomicLong seqGenerator = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final Function1<V, Double> elementCostFunction;
+
+    private volatile double maxTotalCost;
+    private volatile boolean reverseEviction;
+
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<K, V>();
+
+    private volatile StatsCounter stats;  // null == statistics disabled
+
+    /**
+     * Creates a default map with a 0..10 sensitive priority range,
+     * 10 buckets and 16 stripes. The maximum total cost will be 1000, the
+     * element cost function will be one that always returns 1 -- so the cache
+     * will grow up to a maximum of 1000 elements.
+     */
+    public ConcurrentBucketedNumericPriorityMap() {
+        this(0, 10, 10, 1000, null, false, 16);
+    }
+
+    public ConcurrentBucketedNumericPriorityMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction) {
+        this(lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction, false, 16);
+    }
+
+    public ConcurrentBucketedNumericPriorityMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction, boolean reverseEviction) {
+        this(lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction, reverseEviction, 16);
+    }
+
+    /**
+     * lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction and
+     * reverseEviction have the same meaning as in
+     * {@link BucketedNumericPriorityMap#BucketedNumericPriorityMap(double, double, int, double, Function1, boolean)}.
+     *
+     * @param lowPrio
+     * @param highPrio
+     * @param nBuckets
+     * @param maxTotalCost
+     * @param elementCostFunction
+     * @param reverseEviction
+     * @param concurrencyLevel
+     *            estimated number of concurrently writing threads. The number
+     *            of stripes will be the smallest power of two that is >= this.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentBucketedNumericPriorityMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction, boolean reverseEviction,
+            int concurrencyLevel) {
+        if (lowPrio >= highPrio || nBuckets <= 0 || concurrencyLevel <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.lowPrio = lowPrio;
+        this.highPrio = highPrio;
+        this.nBuckets = nBuckets;
+        this.maxBucketNr = nBuckets - 1;
+        this.bucketWidth = (highPrio - lowPrio) / nBuckets;
+        this.globalBucketSizes = new AtomicIntegerArray(nBuckets);
+        int nStripes = 1;
+        while (nStripes < concurrencyLevel) {
+            nStripes <<= 1;
+        }
+        this.stripes = (Stripe<K, V>[]) new Stripe<?, ?>[nStripes];
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i] = new Stripe<K, V>(nBuckets);
+        }
+        this.stripeMask = nStripes - 1;
+        this.entries = new ConcurrentHashMap<K, Node<K, V>>(256, 0.75F, nStripes);
+        this.maxTotalCost = maxTotalCost;
+        this.reverseEviction = reverseEviction;
+        if (elementCostFunction != null) {
+            this.elementCostFunction = elementCostFunction;
+        } else {
+            this.elementCostFunction = new Function1<V, Double>() {
+                @Override
+                public Double run(V v) {
+                    return 1.0;
+                }
+            };
+        }
+    }
+
+    protected int prio2bucketNr(double prio) {
+        return Math.max(0, Math.min(maxBucketNr,
+                (int) ((prio - lowPrio) / bucketWidth)));
+    }
+
+    protected Stripe<K, V> stripeFor(Object k) {
+        return stripes[stripeIndexFor(k)];
+    }
+
+    private int stripeIndexFor(Object k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return h & stripeMask;
+    }
+
+    // must be called with s locked
+    private void link(Stripe<K, V> s, Node<K, V> n, int bucketNr) {
+        Node<K, V> head = s.heads[bucketNr];
+        n.seq = seqGenerator.incrementAndGet();
+        n.bucketNr = bucketNr;
+        n.next = head;
+        n.prev = head.prev;
+        head.prev.next = n;
+        head.prev = n;
+        s.bucketSizes.set(bucketNr, s.bucketSizes.get(bucketNr) + 1);
+        s.bucketCosts[bucketNr] += n.cost;
+        globalBucketSizes.incrementAndGet(bucketNr);
+    }
+
+    // must be called with s locked
+    private void unlink(Stripe<K, V> s, Node<K, V> n) {
+        int bucketNr = n.bucketNr;
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = n.next = null;
+        n.bucketNr = -1;
+        int bucketSize = s.bucketSizes.get(bucketNr) - 1;
+        s.bucketSizes.set(bucketNr, bucketSize);
+        // reset when empty to drop accumulated rounding errors
+        s.bucketCosts[bucketNr] = bucketSize == 0 ? 0 : s.bucketCosts[bucketNr] - n.cost;
+        globalBucketSizes.decrementAndGet(bucketNr);
+    }
+
+    // must be called with s locked; n must be linked
+    private void removeNode(Stripe<K, V> s, Node<K, V> n, RemovalReason reason) {
+        entries.remove(n.k);
+        unlink(s, n);
+        s.size = s.size - 1;
+        s.cost = s.cost - n.cost;
+        removalNotifier.enqueue(n.k, n.v, n.priority, reason);
+    }
+
+    @Override
+    public V put(K k, V v, double priority) {
+        double cost = elementCostFunction.run(v);
+        V result = null;
+        Stripe<K, V> s = stripeFor(k);
+        s.lock();
+        try {
+            Node<K, V> n = entries.get(k);
+            if (n != null) {
+                result = n.v;
+                unlink(s, n);
+                s.cost = s.cost - n.cost;
+                removalNotifier.enqueue(k, n.v, n.priority, RemovalReason.REPLACED);
+            } else {
+                n = new Node<K, V>(k);
+                s.size = s.size + 1;
+            }
+            n.v = v;
+            n.priority = priority;
+            n.cost = cost;
+            link(s, n, prio2bucketNr(priority));
+            s.cost = s.cost + cost;
+            entries.put(k, n);
+        } finally {
+            s.unlock();
+        }
+        StatsCounter st = stats;
+        if (st != null) {
+            st.recordPut();
+        }
+        evictExcessElements();
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    @Override
+    public V get(K k) {
+        Node<K, V> n = entries.get(k);
+        StatsCounter st = stats;
+        if (st != null) {
+            if (n == null) {
+                st.recordMiss();
+            } else {
+                st.recordHit();
+            }
+        }
+        return n == null ? null : n.v;
+    }
+
+    @Override
+    public boolean contains(K k) {
+        return entries.containsKey(k);
+    }
+
+    @Override
+    public V remove(K k) {
+        V result = null;
+        Stripe<K, V> s = stripeFor(k);
+        s.lock();
+        try {
+            Node<K, V> n = entries.get(k);
+            if (n != null) {
+                removeNode(s, n, RemovalReason.REMOVED);
+                result = n.v;
+            }
+        } finally {
+            s.unlock();
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * Remove n if it is still the node that's stored for its key.
+     */
+    protected boolean removeIfCurrent(Node<K, V> n) {
+        boolean result = false;
+        Stripe<K, V> s = stripeFor(n.k);
+        s.lock();
+        try {
+            if (entries.get(n.k) == n) {
+                removeNode(s, n, RemovalReason.REMOVED);
+                result = true;
+            }
+        } finally {
+            s.unlock();
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * Doesn't do anything if k isn't currently stored. The caller should be
+     * aware of that if needed.
+     */
+    @Override
+    public void setPriority(K k, double priority) {
+        Stripe<K, V> s = stripeFor(k);
+        s.lock();
+        try {
+            Node<K, V> n = entries.get(k);
+            if (n != null) {
+                unlink(s, n);
+                n.priority = priority;
+                link(s, n, prio2bucketNr(priority));
+            }
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Groups the keys by stripe (counting sort) and locks each affected stripe
+     * once.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setPriorities(Map<K, Double> priorities) {
+        int n = priorities.size();
+        Map.Entry<K, Double>[] unsorted = (Map.Entry<K, Double>[]) new Map.Entry<?, ?>[n];
+        int[] stripeIndices = new int[n];
+        int[] stripeStarts = new int[stripes.length + 1];
+        int i = 0;
+        for (Map.Entry<K, Double> pe : priorities.entrySet()) {
+            unsorted[i] = pe;
+            stripeIndices[i] = stripeIndexFor(pe.getKey());
+            stripeStarts[stripeIndices[i] + 1]++;
+            i++;
+        }
+        for (int s = 0; s < stripes.length; s++) {
+            stripeStarts[s + 1] += stripeStarts[s];
+        }
+        Map.Entry<K, Double>[] sorted = (Map.Entry<K, Double>[]) new Map.Entry<?, ?>[n];
+        int[] fill = stripeStarts.clone();
+        for (i = 0; i < n; i++) {
+            sorted[fill[stripeIndices[i]]++] = unsorted[i];
+        }
+        for (int si = 0; si < stripes.length; si++) {
+            if (stripeStarts[si] == stripeStarts[si + 1]) {
+                continue;
+            }
+            Stripe<K, V> s = stripes[si];
+            s.lock();
+            try {
+                for (i = stripeStarts[si]; i < stripeStarts[si + 1]; i++) {
+                    Node<K, V> node = entries.get(sorted[i].getKey());
+                    if (node != null) {
+                        unlink(s, node);
+                        node.priority = sorted[i].getValue();
+                        link(s, node, prio2bucketNr(node.priority));
+                    }
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+    /**
+     * Processes one stripe at a time, in one pass over its bucket lists.
+     * Within a bucket, the moved elements are ordered by stripe rather than
+     * by their previous position, so the resulting order is only exactly the
+     * same as with setPriority() calls if there's just one stripe.
+     */
+    @Override
+    public void reprioritize(Function1<K, Double> priorityFunction) {
+        List<Node<K, V>> moved = new ArrayList<Node<K, V>>();
+        for (Stripe<K, V> s : stripes) {
+            s.lock();
+            try {
+                for (Node<K, V> head : s.heads) {
+                    Node<K, V> n = head.next;
+                    while (n != head) {
+                        Node<K, V> next = n.next;
+                        Double priority = priorityFunction.run(n.k);
+                        if (priority != null && priority != n.priority) {
+                            unlink(s, n);
+                            n.priority = priority;
+                            moved.add(n);
+                        }
+                        n = next;
+                    }
+                }
+                for (Node<K, V> n : moved) {
+                    link(s, n, prio2bucketNr(n.priority));
+                }
+            } finally {
+                s.unlock();
+            }
+            moved.clear();
+        }
+    }
+
+    /**
+     * Re-evaluates the element cost function for k's value (outside of any
+     * lock) and adjusts the total cost accordingly, evicting other elements if
+     * necessary. Doesn't do anything if k isn't currently stored.
+     */
+    @Override
+    public void updateCost(K k) {
+        Node<K, V> n = entries.get(k);
+        if (n == null) {
+            return;
+        }
+        V v = n.v;
+        double cost = elementCostFunction.run(v);
+        Stripe<K, V> s = stripeFor(k);
+        s.lock();
+        try {
+            if (entries.get(k) != n || n.v != v) {
+                return;  // removed or replaced in the meantime
+            }
+            s.cost = s.cost + cost - n.cost;
+            s.bucketCosts[n.bucketNr] += cost - n.cost;
+            n.cost = cost;
+        } finally {
+            s.unlock();
+        }
+        evictExcessElements();
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (Stripe<K, V> s : stripes) {
+            result += s.size;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Stripe<K, V> s : stripes) {
+            if (s.size != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double getCurrentTotalCost() {
+        double result = 0;
+        for (Stripe<K, V> s : stripes) {
+            result += s.cost;
+        }
+        return result;
+    }
+
+    @Override
+    public double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        this.maxTotalCost = maxTotalCost;
+        evictExcessElements();
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public Function1<V, Double> getElementCostFunction() {
+        return elementCostFunction;
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener, null);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener, Executor executor) {
+        removalNotifier.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
+    }
+
+    @Override
+    public boolean isReverseEviction() {
+        return reverseEviction;
+    }
+
+    @Override
+    public void setReverseEviction(boolean reverseEviction) {
+        this.reverseEviction = reverseEviction;
+    }
+
+    /**
+     * The caller must call removalNotifier.deliverPending() afterwards.
+     */
+    protected void evictExcessElements() {
+        double max = maxTotalCost;
+        if (max < 0 || getCurrentTotalCost() <= max) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            while (getCurrentTotalCost() > maxTotalCost && maxTotalCost >= 0 && size() > 1) {
+                if (!evictOne()) {
+                    break;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evict the first (last, for reverse eviction) element of the lowest
+     * (highest) non-empty bucket. Must be called with evictionLock held.
+     *
+     * @return false if there was nothing to evict, or if other threads kept
+     *         moving the chosen victims away (the next modification will
+     *         evict again then)
+     */
+    private boolean evictOne() {
+        boolean reverse = reverseEviction;
+        for (int attempt = 0; attempt < MAX_EVICTION_ATTEMPTS; attempt++) {
+            int bucketNr = -1;
+            if (reverse) {
+                for (int i = maxBucketNr; i >= 0; i--) {
+                    if (globalBucketSizes.get(i) > 0) {
+                        bucketNr = i;
+                        break;
+                    }
+                }
+            } else {
+                for (int i = 0; i <= maxBucketNr; i++) {
+                    if (globalBucketSizes.get(i) > 0) {
+                        bucketNr = i;
+                        break;
+                    }
+                }
+            }
+            if (bucketNr == -1) {
+                return false;
+            }
+            // pick the stripe whose candidate in that bucket is the oldest
+            // (newest, for reverse eviction) one. The unlocked reads of the
+            // candidates are only a hint (a stripe whose candidate can't be
+            // read consistently ranks last); the victim is re-read under the
+            // stripe's lock.
+            Stripe<K, V> victimStripe = null;
+            long victimSeq = 0;
+            for (Stripe<K, V> s : stripes) {
+                if (s.bucketSizes.get(bucketNr) == 0) {
+                    continue;
+                }
+                Node<K, V> head = s.heads[bucketNr];
+                Node<K, V> candidate = reverse ? head.prev : head.next;
+                long seq = (candidate == null || candidate == head) ? (reverse ? Long.MIN_VALUE : Long.MAX_VALUE) : candidate.seq;
+                if (victimStripe == null || (reverse ? seq > victimSeq : seq < victimSeq)) {
+                    victimStripe = s;
+                    victimSeq = seq;
+                }
+            }
+            if (victimStripe == null) {
+                // the global bucket sizes were ahead of the stripes'
+                return false;
+            }
+            victimStripe.lock();
+            try {
+                Node<K, V> head = victimStripe.heads[bucketNr];
+                Node<K, V> victim = reverse ? head.prev : head.next;
+                if (victim != head) {
+                    StatsCounter st = stats;
+                    if (st != null) {
+                        st.recordEviction(bucketNr, victim.cost);
+                    }
+                    removeNode(victimStripe, victim, RemovalReason.EVICTED);
+                    return true;
+                }
+            } finally {
+                victimStripe.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Locks the eviction lock and then all stripes, in index order.
+     */
+    @Override
+    public void runExclusively(Runnable action) {
+        evictionLock.lock();
+        int nLocked = 0;
+        try {
+            for (Stripe<K, V> s : stripes) {
+                s.lock();
+                nLocked++;
+            }
+            action.run();
+        } finally {
+            while (nLocked > 0) {
+                stripes[--nLocked].unlock();
+            }
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isStatisticsEnabled() {
+        return stats != null;
+    }
+
+    @Override
+    public synchronized void setStatisticsEnabled(boolean statisticsEnabled) {
+        if (statisticsEnabled != (stats != null)) {
+            stats = statisticsEnabled ? new StatsCounter(nBuckets) : null;
+        }
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        if (stats != null) {
+            stats = new StatsCounter(nBuckets);
+        }
+    }
+
+    /**
+     * The per-bucket costs are summed up one stripe at a time, so they're not
+     * an atomic snapshot while other threads are modifying the map.
+     */
+    @Override
+    public NumericPriorityMapStatistics getStatistics() {
+        double[] costPerBucket = new double[nBuckets];
+        for (Stripe<K, V> s : stripes) {
+            s.lock();
+            try {
+                for (int b = 0; b < nBuckets; b++) {
+                    costPerBucket[b] += s.bucketCosts[b];
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        StatsCounter st = stats;
+        if (st == null) {
+            return StatsCounter.emptySnapshot(size(), getCurrentTotalCost(), maxTotalCost, costPerBucket);
+        }
+        return st.snapshot(size(), getCurrentTotalCost(), maxTotalCost, costPerBucket);
+    }
+
+    @Override
+    public NumericPriorityMapStatistics getCounters() {
+        StatsCounter st = stats;
+        return st == null ? StatsCounter.emptyCounters(nBuckets) : st.counters();
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new EntryIterator(false);
+    }
+
+    /**
+     * Iterator that returns the entries back-to-front, i.e. the exact reverse
+     * of {@link #entryIterator()}.
+     *
+     * @return
+     */
+    @Override
+    public Iterator<Entry<K, V>> reverseEntryIterator() {
+        return new EntryIterator(true);
+    }
+
+    /**
+     * A node together with the sequence number and priority it had when it
+     * was seen.
+     */
+    private static class SeqdNode<K, V> {
+        final Node<K, V> n;
+        final long seq;
+        final double priority;
+
+        SeqdNode(Node<K, V> n) {
+            this.n = n;
+            this.seq = n.seq;
+            this.priority = n.priority;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<SeqdNode> SEQ_COMPARATOR = new Comparator<SeqdNode>() {
+        @Override
+        public int compare(SeqdNode o1, SeqdNode o2) {
+            return o1.seq < o2.seq ? -1 : (o1.seq > o2.seq ? 1 : 0);
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<SeqdNode> DESCENDING_PRIORITY = new Comparator<SeqdNode>() {
+        @Override
+        public int compare(SeqdNode o1, SeqdNode o2) {
+            return Double.compare(o2.priority, o1.priority);
+        }
+    };
+
+    /**
+     * @return the nodes of bucket bucketNr across all stripes, in sequence
+     *         order. Locks one stripe at a time.
+     */
+    private List<SeqdNode<K, V>> snapshotBucket(int bucketNr) {
+        List<SeqdNode<K, V>> seqdNodes = new ArrayList<SeqdNode<K, V>>();
+        if (globalBucketSizes.get(bucketNr) == 0) {
+            return seqdNodes;
+        }
+        for (Stripe<K, V> s : stripes) {
+            if (s.bucketSizes.get(bucketNr) == 0) {
+                continue;
+            }
+            s.lock();
+            try {
+                Node<K, V> head = s.heads[bucketNr];
+                for (Node<K, V> n = head.next; n != head; n = n.next) {
+                    seqdNodes.add(new SeqdNode<K, V>(n));
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        Collections.sort(seqdNodes, SEQ_COMPARATOR);
+        return seqdNodes;
+    }
+
+    /**
+     * {@inheritDoc} Weakly consistent like the iterators.
+     */
+    @Override
+    public List<Entry<K, V>> entriesInPriorityRange(double lo, double hi) {
+        List<Entry<K, V>> result = new ArrayList<Entry<K, V>>();
+        if (!(lo <= hi)) {
+            return result;
+        }
+        for (int bucketNr = prio2bucketNr(lo), end = prio2bucketNr(hi); bucketNr <= end; bucketNr++) {
+            for (SeqdNode<K, V> sn : snapshotBucket(bucketNr)) {
+                if (sn.priority >= lo && sn.priority <= hi) {
+                    result.add(sn.n);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc} Weakly consistent like the iterators; the elements are
+     * sorted by the priorities they had when their buckets were looked at.
+     */
+    @Override
+    public List<Entry<K, V>> topK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("invalid k: " + k);
+        }
+        List<SeqdNode<K, V>> candidates = new ArrayList<SeqdNode<K, V>>();
+        for (int bucketNr = maxBucketNr; bucketNr >= 0 && candidates.size() < k; bucketNr--) {
+            List<SeqdNode<K, V>> bucket = snapshotBucket(bucketNr);
+            Collections.reverse(bucket);
+            candidates.addAll(bucket);
+        }
+        Collections.sort(candidates, DESCENDING_PRIORITY);  // stable
+        int n = Math.min(k, candidates.size());
+        List<Entry<K, V>> result = new ArrayList<Entry<K, V>>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(candidates.get(i).n);
+        }
+        return result;
+    }
+
+    /**
+     * Weakly consistent iterator. Snapshots one bucket (across all stripes) at
+     * a time and returns its elements in sequence order.
+     */
+    protected class EntryIterator implements Iterator<Entry<K, V>> {
+        private final boolean isReverse;
+        private int currBucketNo;
+        private List<Node<K, V>> currBucket = Collections.emptyList();
+        private int currPos;
+        private Node<K, V> lastNext;
+
+        public EntryIterator(boolean isReverse) {
+            this.isReverse = isReverse;
+            currBucketNo = isReverse ? nBuckets : -1;
+            advanceToNext();
+        }
+
+        private void advanceToNext() {
+            int increment = isReverse ? -1 : 1;
+            int stop = isReverse ? -1 : nBuckets;
+            while (currPos >= currBucket.size()) {
+                currBucketNo += increment;
+                if (currBucketNo == stop) {
+                    return;
+                }
+                if (globalBucketSizes.get(currBucketNo) == 0) {
+                    continue;
+                }
+                List<SeqdNode<K, V>> seqdNodes = snapshotBucket(currBucketNo);
+                if (isReverse) {
+                    Collections.reverse(seqdNodes);
+                }
+                List<Node<K, V>> nodes = new ArrayList<Node<K, V>>(seqdNodes.size());
+                for (SeqdNode<K, V> sn : seqdNodes) {
+                    nodes.add(sn.n);
+                }
+                currBucket = nodes;
+                currPos = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currPos < currBucket.size();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastNext = currBucket.get(currPos++);
+            advanceToNext();
+            return lastNext;
+        }
+
+        @Override
+        public void remove() {
+            if (lastNext == null) {
+                throw new IllegalStateException();
+            }
+            removeIfCurrent(lastNext);
+            lastNext = null;
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package de.sofd.util;
+
+/**
+ * Implemented by the entries of the maps that memoize their elements' costs,
+ * so that {@link NumericPriorityMapSnapshot#of(NumericPriorityMap)} can use
+ * the stored cost rather than calling the element cost function again.
+ * <p>
+ * Package-private.
+ *
+ * @author olaf
+ */
+interface CostedEntry {
+
+    /**
+     * @return the element's cost as accounted by the map
+     */
+    double getCost();
+
+}
@@ -0,0 +1,70 @@
+package de.sofd.util;
+
+/**
+ * Determines the order in which {@link BucketedNumericPriorityMap} evicts its
+ * elements (see
+ * {@link BucketedNumericPriorityMap#setEvictionPolicy(EvictionPolicy)}). The
+ * policy computes an eviction key for each element from the element's
+ * priority, cost and number of accesses; the map buckets and evicts the
+ * elements by ascending key, exactly as it does with the priorities
+ * themselves under the default {@link #PRIORITY} policy.
+ * <p>
+ * A policy may have state (see {@link #evicted(double)}), so unless stated
+ * otherwise, a policy instance must not be shared by several maps. It is
+ * only called with the map's monitor held.
+ *
+ * @author olaf
+ */
+public interface EvictionPolicy {
+
+    /**
+     * The default policy: the eviction key is the priority, so elements are
+     * evicted strictly by priority regardless of their costs. Stateless, may
+     * be shared.
+     */
+    EvictionPolicy PRIORITY = new EvictionPolicy() {
+        @Override
+        public double evictionKey(double priority, double cost, int hits) {
+            return priority;
+        }
+
+        @Override
+        public boolean isUsageDependent() {
+            return false;
+        }
+
+        @Override
+        public void evicted(double evictionKey) {
+        }
+
+        @Override
+        public String toString() {
+            return "PRIORITY";
+        }
+    };
+
+    /**
+     * @param priority
+     *            the element's priority
+     * @param cost
+     *            the element's cost (result of the map's element cost
+     *            function)
+     * @param hits
+     *            number of times the element has been put or gotten since it
+     *            was first put
+     * @return the element's eviction key: lower == evicted earlier
+     */
+    double evictionKey(double priority, double cost, int hits);
+
+    /**
+     * @return whether the keys depend on more than the priority, i.e. need to
+     *         be recomputed when an element is accessed or its cost changes
+     */
+    boolean isUsageDependent();
+
+    /**
+     * Called when an element with key evictionKey has been evicted.
+     */
+    void evicted(double evictionKey);
+
+}
@@ -0,0 +1,22 @@
+package de.sofd.util;
+
+/**
+ * Implemented by the maps whose modifications can't all be excluded by
+ * synchronizing on the map, because they use several locks (stripes, shards).
+ * {@link NumericPriorityMapSnapshot#of(NumericPriorityMap)} uses this to take
+ * a consistent snapshot of them.
+ * <p>
+ * Package-private.
+ *
+ * @author olaf
+ */
+interface ExclusivelyLockable {
+
+    /**
+     * Run action with all of the map's locks held, so no other thread can
+     * modify the map meanwhile. The action may read the map (including
+     * iterating over it) but must not modify it.
+     */
+    void runExclusively(Runnable action);
+
+}
@@ -0,0 +1,138 @@
+package de.sofd.util;
+
+import java.util.Arrays;
+
+/**
+ * Compact, approximate access frequency counter for keys: a count-min sketch
+ * with 4-bit counters, as used by the TinyLFU admission policy (Einziger et
+ * al., "TinyLFU: A Highly Efficient Cache Admission Policy", 2017).
+ * <p>
+ * Each key is hashed to 4 counters (one per hash function) in a table of
+ * 16 counters per long; its estimated frequency is the minimum of those
+ * counters, which can overestimate (due to collisions) but never
+ * underestimate the number of recorded accesses, up to the counter maximum of
+ * 15. The table takes 8 bytes per expected key.
+ * <p>
+ * Aging: after 10 increments per expected key, all counters are halved, so
+ * the frequencies reflect recent history and formerly popular keys fade out.
+ * <p>
+ * This class is not thread-safe; a map using it accesses it with its own lock
+ * held.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ */
+public class FrequencySketch<K> {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int size = 0;  // increments since the last reset
+    private int resetCount = 0;
+
+    /**
+     * @param expectedKeys
+     *            number of distinct keys expected to be tracked at a time,
+     *            e.g. the map's maximum number of elements (rounded up to a
+     *            power of 2 internally)
+     */
+    public FrequencySketch(int expectedKeys) {
+        if (expectedKeys <= 0) {
+            throw new IllegalArgumentException();
+        }
+        int tableLength = Integer.highestOneBit(Math.max(2, Math.min(expectedKeys, 1 << 26)) - 1) << 1;
+        table = new long[tableLength];
+        counterMask = (tableLength << 4) - 1;
+        sampleSize = 10 * tableLength;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * @return index of hash function i's counter for the (spread) hash h
+     */
+    private int indexOf(int h, int i) {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int) hash & counterMask;
+    }
+
+    private int counterAt(int index) {
+        return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 0xf;
+    }
+
+    /**
+     * Record an access to k.
+     */
+    public void increment(K k) {
+        int h = spread(k.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(h, i);
+            if (counterAt(index) < MAX_COUNT) {
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent accesses to k (0..15)
+     */
+    public int frequency(K k) {
+        int h = spread(k.hashCode());
+        int result = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            result = Math.min(result, counterAt(indexOf(h, i)));
+        }
+        return result;
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+        resetCount++;
+    }
+
+    /**
+     * Forget all recorded accesses.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    /**
+     * @return number of agings (halvings) so far
+     */
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * @return size of the counter table in bytes
+     */
+    public int getTableBytes() {
+        return table.length * 8;
+    }
+
+}
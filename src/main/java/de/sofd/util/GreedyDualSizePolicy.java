@@ -0,0 +1,72 @@
+package de.sofd.util;
+
+/**
+ * The GreedyDual-Size (GDS) and GreedyDual-Size-Frequency (GDSF) cache
+ * replacement policies (Cao and Irani, "Cost-Aware WWW Proxy Caching
+ * Algorithms", 1997; Cherkasova, "Improving WWW Proxy Performance with
+ * Greedy-Dual-Size-Frequency Caching Policy", 1998) as an
+ * {@link EvictionPolicy} for {@link BucketedNumericPriorityMap}.
+ * <p>
+ * The element's priority is taken as the penalty of having to re-fetch it
+ * (e.g. the load time), and the element cost as its size. The eviction key
+ * of an element is set to L + penalty / size (GDS) or L + hits * penalty /
+ * size (GDSF) whenever it is put or accessed, where L is the key of the most
+ * recently evicted element. So among elements of equal penalty, large ones
+ * go first, and elements that haven't been used for a while age out as L
+ * rises. Priorities should thus be positive.
+ * <p>
+ * Since the keys grow with L, they don't stay in a fixed lowPrio..highPrio
+ * range, which is why the map switches to adaptive buckets when this policy
+ * is set. Instances must not be shared between maps.
+ *
+ * @author olaf
+ */
+public class GreedyDualSizePolicy implements EvictionPolicy {
+
+    private final boolean frequencyAware;
+    private double inflation = 0;
+
+    /**
+     * @param frequencyAware
+     *            true == GDSF, false == GDS
+     */
+    public GreedyDualSizePolicy(boolean frequencyAware) {
+        this.frequencyAware = frequencyAware;
+    }
+
+    public boolean isFrequencyAware() {
+        return frequencyAware;
+    }
+
+    /**
+     * @return the current value of L
+     */
+    public double getInflation() {
+        return inflation;
+    }
+
+    @Override
+    public double evictionKey(double priority, double cost, int hits) {
+        double value = (cost > 0 ? priority / cost : priority);
+        return inflation + (frequencyAware ? hits * value : value);
+    }
+
+    @Override
+    public boolean isUsageDependent() {
+        return true;
+    }
+
+    @Override
+    public void evicted(double evictionKey) {
+        // with bucketing, victims may come slightly out of key order; keep L monotonic
+        if (evictionKey > inflation) {
+            inflation = evictionKey;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return frequencyAware ? "GDSF" : "GDS";
+    }
+
+}
@@ -0,0 +1,489 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Variant of {@link BucketedNumericPriorityMap} for primitive long keys. Has
+ * the same semantics as BucketedNumericPriorityMap (bucketed priorities,
+ * insertion order within a bucket, cost-based eviction, reverse eviction),
+ * and an API that mirrors {@link NumericPriorityMap}, but avoids boxing the
+ * keys and priorities:
+ * <ul>
+ * <li>The key table is an open-addressing (linear probing) hash table of int
+ * indices into a set of parallel arrays that hold the keys, values,
+ * priorities, costs and the bucket list links of all elements.
+ * <li>{@link #get(long)}, {@link #contains(long)}, {@link #remove(long)} and
+ * {@link #setPriority(long, double)} don't allocate anything. put() only
+ * allocates when the arrays need to grow (and for the Double returned by the
+ * element cost function).
+ * </ul>
+ * This class is synchronized.
+ *
+ * @author olaf
+ *
+ * @param <V>
+ */
+public class LongNumericPriorityMap<V> {
+
+    public interface Entry<V> {
+        long getKey();
+        V getValue();
+        double getPriority();
+    }
+
+    private static final int NIL = -1;
+
+    // hash table: slot -> element index, NIL == empty
+    private int[] table;
+    private int tableMask;
+
+    // element data, indexed by element index. Indices 0..nBuckets-1 are the
+    // sentinel heads of the (circular, doubly-linked) bucket lists.
+    private long[] keys;
+    private Object[] values;
+    private double[] priorities;
+    private double[] costs;
+    private int[] prev, next;
+    private int[] bucketNrs;
+    private int freeList = NIL;     // free element indices, chained via next[]
+    private int nextUnused;         // first never-used element index
+    private int size = 0;
+
+    private final double lowPrio, highPrio;
+    private final int nBuckets, maxBucketNr;
+    private final double bucketWidth;
+
+    private final Function1<V, Double> elementCostFunction;
+
+    private double totalCost = 0;
+    private double maxTotalCost;
+    private boolean reverseEviction = false;
+
+    /**
+     * Creates a default map with a 0..10 sensitive priority range and
+     * 10 buckets. The maximum total cost will be 1000, the element cost
+     * function will be one that always returns 1 -- so the cache will grow up
+     * to a maximum of 1000 elements.
+     */
+    public LongNumericPriorityMap() {
+        this(0, 10, 10, 1000, null, false);
+    }
+
+    public LongNumericPriorityMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction) {
+        this(lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction, false);
+    }
+
+    /**
+     * See
+     * {@link BucketedNumericPriorityMap#BucketedNumericPriorityMap(double, double, int, double, Function1, boolean)}.
+     */
+    public LongNumericPriorityMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction, boolean reverseEviction) {
+        if (lowPrio >= highPrio || nBuckets <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.lowPrio = lowPrio;
+        this.highPrio = highPrio;
+        this.nBuckets = nBuckets;
+        this.maxBucketNr = nBuckets - 1;
+        this.bucketWidth = (highPrio - lowPrio) / nBuckets;
+        this.maxTotalCost = maxTotalCost;
+        this.reverseEviction = reverseEviction;
+        if (elementCostFunction != null) {
+            this.elementCostFunction = elementCostFunction;
+        } else {
+            this.elementCostFunction = new Function1<V, Double>() {
+                @Override
+                public Double run(V v) {
+                    return 1.0;
+                }
+            };
+        }
+        int capacity = nBuckets + 64;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        priorities = new double[capacity];
+        costs = new double[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        bucketNrs = new int[capacity];
+        for (int i = 0; i < nBuckets; i++) {
+            prev[i] = next[i] = i;
+            bucketNrs[i] = i;
+        }
+        nextUnused = nBuckets;
+        table = new int[128];
+        Arrays.fill(table, NIL);
+        tableMask = table.length - 1;
+    }
+
+    protected int prio2bucketNr(double prio) {
+        return Math.max(0, Math.min(maxBucketNr,
+                (int) ((prio - lowPrio) / bucketWidth)));
+    }
+
+    private static int hash(long k) {
+        // murmur3 fmix64
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return (int) k;
+    }
+
+    /**
+     * @return table slot holding k, or NIL
+     */
+    private int findSlot(long k) {
+        for (int slot = hash(k) & tableMask;; slot = (slot + 1) & tableMask) {
+            int idx = table[slot];
+            if (idx == NIL) {
+                return NIL;
+            }
+            if (keys[idx] == k) {
+                return slot;
+            }
+        }
+    }
+
+    private int indexOf(long k) {
+        int slot = findSlot(k);
+        return slot == NIL ? NIL : table[slot];
+    }
+
+    private void tableInsert(int idx) {
+        int slot = hash(keys[idx]) & tableMask;
+        while (table[slot] != NIL) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = idx;
+    }
+
+    /**
+     * Deletion with backward shifting of the following entries of the probe
+     * sequence, so no tombstones are needed.
+     */
+    private void tableDelete(int slot) {
+        int hole = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & tableMask;
+            int idx = table[j];
+            if (idx == NIL) {
+                break;
+            }
+            int home = hash(keys[idx]) & tableMask;
+            // move idx into the hole unless its home slot is cyclically in (hole, j]
+            boolean homeInRange = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!homeInRange) {
+                table[hole] = idx;
+                hole = j;
+            }
+        }
+        table[hole] = NIL;
+    }
+
+    private void growTableIfNeeded() {
+        if (2 * (size + 1) <= table.length) {
+            return;
+        }
+        int[] oldTable = table;
+        table = new int[oldTable.length * 2];
+        Arrays.fill(table, NIL);
+        tableMask = table.length - 1;
+        for (int idx : oldTable) {
+            if (idx != NIL) {
+                tableInsert(idx);
+            }
+        }
+    }
+
+    private int allocIndex() {
+        if (freeList != NIL) {
+            int idx = freeList;
+            freeList = next[idx];
+            return idx;
+        }
+        if (nextUnused == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            costs = Arrays.copyOf(costs, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+            bucketNrs = Arrays.copyOf(bucketNrs, capacity);
+        }
+        return nextUnused++;
+    }
+
+    private void freeIndex(int idx) {
+        values[idx] = null;
+        next[idx] = freeList;
+        freeList = idx;
+    }
+
+    private void link(int idx, int bucketNr) {
+        int head = bucketNr;
+        bucketNrs[idx] = bucketNr;
+        next[idx] = head;
+        prev[idx] = prev[head];
+        next[prev[head]] = idx;
+        prev[head] = idx;
+    }
+
+    private void unlink(int idx) {
+        next[prev[idx]] = next[idx];
+        prev[next[idx]] = prev[idx];
+    }
+
+    private void removeAt(int slot) {
+        int idx = table[slot];
+        tableDelete(slot);
+        unlink(idx);
+        totalCost -= costs[idx];
+        freeIndex(idx);
+        size--;
+    }
+
+    /**
+     * @return the previous value for k, or null
+     */
+    public synchronized V put(long k, V v, double priority) {
+        double cost = elementCostFunction.run(v);
+        V result = null;
+        int idx = indexOf(k);
+        if (idx != NIL) {
+            unlink(idx);
+            totalCost -= costs[idx];
+            result = valueAt(idx);
+        } else {
+            growTableIfNeeded();
+            idx = allocIndex();
+            keys[idx] = k;
+            tableInsert(idx);
+            size++;
+        }
+        values[idx] = v;
+        priorities[idx] = priority;
+        costs[idx] = cost;
+        link(idx, prio2bucketNr(priority));
+        totalCost += cost;
+        evictExcessElements();
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int idx) {
+        return (V) values[idx];
+    }
+
+    public synchronized V get(long k) {
+        int idx = indexOf(k);
+        return idx == NIL ? null : valueAt(idx);
+    }
+
+    public synchronized boolean contains(long k) {
+        return findSlot(k) != NIL;
+    }
+
+    /**
+     * @return the priority of k, or NaN if k isn't stored
+     */
+    public synchronized double getPriority(long k) {
+        int idx = indexOf(k);
+        return idx == NIL ? Double.NaN : priorities[idx];
+    }
+
+    public synchronized V remove(long k) {
+        int slot = findSlot(k);
+        if (slot == NIL) {
+            return null;
+        }
+        V result = valueAt(table[slot]);
+        removeAt(slot);
+        return result;
+    }
+
+    /**
+     * Doesn't do anything if k isn't currently stored. The caller should be
+     * aware of that if needed.
+     */
+    public synchronized void setPriority(long k, double priority) {
+        int idx = indexOf(k);
+        if (idx != NIL) {
+            unlink(idx);
+            priorities[idx] = priority;
+            link(idx, prio2bucketNr(priority));
+        }
+    }
+
+    /**
+     * See {@link NumericPriorityMap#updateCost(Object)}.
+     */
+    public synchronized void updateCost(long k) {
+        int idx = indexOf(k);
+        if (idx != NIL) {
+            double cost = elementCostFunction.run(valueAt(idx));
+            totalCost += cost - costs[idx];
+            costs[idx] = cost;
+            evictExcessElements();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized double getCurrentTotalCost() {
+        return totalCost;
+    }
+
+    public synchronized double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    public synchronized void setMaxTotalCost(double maxTotalCost) {
+        this.maxTotalCost = maxTotalCost;
+        evictExcessElements();
+    }
+
+    public Function1<V, Double> getElementCostFunction() {
+        return elementCostFunction;
+    }
+
+    public synchronized boolean isReverseEviction() {
+        return reverseEviction;
+    }
+
+    public synchronized void setReverseEviction(boolean reverseEviction) {
+        this.reverseEviction = reverseEviction;
+    }
+
+    protected void evictExcessElements() {
+        if (maxTotalCost < 0) {
+            return;
+        }
+        int bucketNr = reverseEviction ? maxBucketNr : 0;
+        while (totalCost > maxTotalCost && size > 1) {
+            int victim = reverseEviction ? prev[bucketNr] : next[bucketNr];
+            if (victim == bucketNr) {
+                bucketNr += reverseEviction ? -1 : 1;
+                continue;
+            }
+            removeAt(findSlot(keys[victim]));
+        }
+    }
+
+    public Iterator<Entry<V>> entryIterator() {
+        return new EntryIterator(false);
+    }
+
+    /**
+     * @return iterator that returns the entries back-to-front, i.e. the exact
+     *         reverse of {@link #entryIterator()}
+     */
+    public Iterator<Entry<V>> reverseEntryIterator() {
+        return new EntryIterator(true);
+    }
+
+    private static class EntrySnapshot<V> implements Entry<V> {
+        final long k;
+        final V v;
+        final double priority;
+
+        EntrySnapshot(long k, V v, double priority) {
+            this.k = k;
+            this.v = v;
+            this.priority = priority;
+        }
+
+        @Override
+        public long getKey() {
+            return k;
+        }
+
+        @Override
+        public V getValue() {
+            return v;
+        }
+
+        @Override
+        public double getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * Not safe against concurrent modification (like
+     * BucketedNumericPriorityMap's iterators).
+     */
+    protected class EntryIterator implements Iterator<Entry<V>> {
+        private final boolean isReverse;
+        private int nextIdx;
+        private long lastKey;
+        private boolean canRemove = false;
+
+        public EntryIterator(boolean isReverse) {
+            this.isReverse = isReverse;
+            synchronized (LongNumericPriorityMap.this) {
+                nextIdx = firstInBucketFrom(isReverse ? maxBucketNr : 0);
+            }
+        }
+
+        private int firstInBucketFrom(int bucketNr) {
+            int increment = isReverse ? -1 : 1;
+            int stop = isReverse ? -1 : nBuckets;
+            for (int b = bucketNr; b != stop; b += increment) {
+                int idx = isReverse ? prev[b] : next[b];
+                if (idx != b) {
+                    return idx;
+                }
+            }
+            return NIL;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIdx != NIL;
+        }
+
+        @Override
+        public Entry<V> next() {
+            synchronized (LongNumericPriorityMap.this) {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int idx = nextIdx;
+                Entry<V> result = new EntrySnapshot<V>(keys[idx], valueAt(idx), priorities[idx]);
+                int succ = isReverse ? prev[idx] : next[idx];
+                if (succ == bucketNrs[idx]) {
+                    succ = firstInBucketFrom(bucketNrs[idx] + (isReverse ? -1 : 1));
+                }
+                nextIdx = succ;
+                lastKey = keys[idx];
+                canRemove = true;
+                return result;
+            }
+        }
+
+        @Override
+        public void remove() {
+            if (!canRemove) {
+                throw new IllegalStateException();
+            }
+            LongNumericPriorityMap.this.remove(lastKey);
+            canRemove = false;
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package de.sofd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SlabAllocator} whose slabs are memory-mapped regions of a file, so
+ * the chunks live in the OS page cache (and on disk) rather than in the Java
+ * heap or direct memory. Reading a chunk reads straight from the mapping, no
+ * copying through Java buffers is involved.
+ * <p>
+ * Slab n is mapped at file offset n * slabSize; the file grows as slabs are
+ * added. Slabs are never unmapped, so {@link #trimEmptySlabs()} doesn't do
+ * anything. Chunks larger than the slab size aren't supported.
+ * <p>
+ * The file's contents are not meant to survive the allocator; call
+ * {@link #close()} when done.
+ *
+ * @author olaf
+ */
+public class MappedFileSlabAllocator extends SlabAllocator {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean deleteOnClose;
+    private long fileSize = 0;
+
+    /**
+     * @param file
+     *            the file to map. Will be created or truncated.
+     * @param slabSize
+     * @param minChunkSize
+     * @param deleteOnClose
+     *            whether {@link #close()} should delete the file
+     * @throws IOException
+     */
+    public MappedFileSlabAllocator(File file, int slabSize, int minChunkSize, boolean deleteOnClose) throws IOException {
+        super(slabSize, minChunkSize);
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.channel = raf.getChannel();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    protected ByteBuffer allocateSlab(int slabSize) {
+        try {
+            ByteBuffer result = channel.map(FileChannel.MapMode.READ_WRITE, fileSize, slabSize);
+            fileSize += slabSize;
+            return result;
+        } catch (IOException e) {
+            throw new IllegalStateException("couldn't map slab in " + file, e);
+        }
+    }
+
+    @Override
+    protected ByteBuffer allocateOversized(int size) {
+        throw new IllegalArgumentException("chunk size " + size + " exceeds slab size " + getSlabSize());
+    }
+
+    @Override
+    public void trimEmptySlabs() {
+    }
+
+    /**
+     * Closes (and optionally deletes) the file. The chunks handed out by this
+     * allocator must not be used anymore after this.
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+        raf.close();
+        if (deleteOnClose) {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,531 @@
+package de.sofd.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Adjusts the maxTotalCost of a set of registered {@link NumericPriorityMap}s
+ * according to the JVM's memory situation, so the maps don't have to be sized
+ * for the smallest machine they may run on.
+ * <p>
+ * The memory usage is the highest fill ratio (used / max) of the heap pools
+ * that support usage thresholds (i.e. the old generation), measured after the
+ * last garbage collection where the JVM supports that, and optionally of the
+ * direct buffer pool (see {@link #setDirectMemoryLimit(long)}; requires a Java
+ * 7 or later JVM).
+ * <p>
+ * If the usage exceeds the {@link #getHighWatermark() high watermark}, each
+ * map's maxTotalCost is reduced to {@link #getShrinkFactor() shrinkFactor}
+ * times its current value (but not below the map's floor given at
+ * registration), which makes full maps evict their lowest-priority elements
+ * right away and keeps the others from filling up again. Only when the usage has dropped below the
+ * {@link #getLowWatermark() low watermark} again, the maxTotalCosts are raised
+ * by {@link #getGrowStep() growStep} times their original values per step,
+ * until the original values are reached again. Between two adjustments at
+ * least {@link #getCooldown() cooldown} must have passed, which gives the GC
+ * time to reflect the previous adjustment in the usage numbers. The gap between
+ * the watermarks and the cooldown together keep the budgets from oscillating.
+ * <p>
+ * {@link #start()} installs collection usage thresholds (or usage thresholds,
+ * if the former aren't supported) at the high watermark on the heap pools and
+ * listens for the JVM's threshold notifications, so the maps are shrunk as soon
+ * as the threshold is crossed. Since the JVM doesn't notify about usage going
+ * down again (nor about direct memory), the usage is also polled periodically
+ * on a daemon thread. The thresholds are process-wide settings; the previous
+ * values are restored by {@link #stop()}. Alternatively, {@link #check()} may
+ * be called manually without starting the controller.
+ * <p>
+ * The new maxTotalCosts are applied after the controller has released its
+ * lock, so the maps' removal listeners may call the controller.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author olaf
+ */
+public class MemoryPressureController {
+
+    private static class Registration {
+        final NumericPriorityMap<?, ?> map;
+        final double ceiling;
+        final double floor;
+
+        Registration(NumericPriorityMap<?, ?> map, double ceiling, double floor) {
+            this.map = map;
+            this.ceiling = ceiling;
+            this.floor = floor;
+        }
+    }
+
+    private final List<Registration> registrations = new ArrayList<Registration>();
+
+    private double highWatermark = 0.85;
+    private double lowWatermark = 0.65;
+    private double shrinkFactor = 0.75;
+    private double growStep = 0.1;
+    private long cooldownNanos = TimeUnit.SECONDS.toNanos(5);
+    private long pollIntervalMillis = 1000;
+    private long directMemoryLimit = -1;
+
+    private long lastAdjustment;
+    private boolean adjusted = false;
+    private boolean shrunk = false;
+    private long shrinkCount = 0;
+    private long growCount = 0;
+
+    private ScheduledExecutorService poller;
+    private final Map<MemoryPoolMXBean, Long> savedThresholds = new HashMap<MemoryPoolMXBean, Long>();
+
+    private final NotificationListener thresholdListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                    || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+                thresholdExceeded(MemoryNotificationInfo.from((CompositeData) notification.getUserData()).getPoolName());
+            }
+        }
+    };
+
+    /**
+     * Register map with its current maxTotalCost as the ceiling and 0 as the
+     * floor.
+     *
+     * @throws IllegalArgumentException
+     *             if map has no maxTotalCost limit; use
+     *             {@link #register(NumericPriorityMap, double, double)} to
+     *             give it one
+     */
+    public void register(NumericPriorityMap<?, ?> map) {
+        double ceiling = map.getMaxTotalCost();
+        if (ceiling < 0) {
+            throw new IllegalArgumentException("map has no maxTotalCost limit; register it with an explicit ceiling");
+        }
+        register(map, ceiling, 0);
+    }
+
+    /**
+     * @param map
+     * @param ceiling
+     *            maxTotalCost of map when there's no memory pressure. Must be
+     *            &gt;= 0, so maps without a limit need to be given one here.
+     * @param floor
+     *            the maxTotalCost is never reduced below this
+     */
+    public void register(NumericPriorityMap<?, ?> map, double ceiling, double floor) {
+        if (ceiling < 0 || floor < 0 || floor > ceiling) {
+            throw new IllegalArgumentException("invalid ceiling/floor: " + ceiling + "/" + floor);
+        }
+        synchronized (this) {
+            removeRegistration(map);
+            registrations.add(new Registration(map, ceiling, floor));
+        }
+        map.setMaxTotalCost(ceiling);
+    }
+
+    /**
+     * Stop managing map, and reset its maxTotalCost to the ceiling it was
+     * registered with.
+     */
+    public void unregister(NumericPriorityMap<?, ?> map) {
+        Registration r;
+        synchronized (this) {
+            r = removeRegistration(map);
+        }
+        if (r != null) {
+            map.setMaxTotalCost(r.ceiling);
+        }
+    }
+
+    /**
+     * @return the removed registration of map, or null
+     */
+    private Registration removeRegistration(NumericPriorityMap<?, ?> map) {
+        for (Iterator<Registration> it = registrations.iterator(); it.hasNext();) {
+            Registration r = it.next();
+            if (r.map == map) {
+                it.remove();
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean isRegistered(Registration r) {
+        return registrations.contains(r);
+    }
+
+    /**
+     * Set the maxTotalCosts computed by {@link #shrink()} or {@link #grow()},
+     * outside the controller's lock. Maps unregistered in the meantime keep
+     * the ceiling that unregister() gave them.
+     */
+    private void apply(Map<Registration, Double> budgets) {
+        for (Map.Entry<Registration, Double> e : budgets.entrySet()) {
+            Registration r = e.getKey();
+            if (isRegistered(r)) {
+                r.map.setMaxTotalCost(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Install the memory thresholds and start polling. Doesn't do anything if
+     * already started.
+     */
+    public synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        installThresholds();
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(thresholdListener, null, null);
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MemoryPressureController");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop polling and restore the previous memory thresholds. The maps keep
+     * their current maxTotalCosts.
+     */
+    public synchronized void stop() {
+        if (poller == null) {
+            return;
+        }
+        poller.shutdown();
+        poller = null;
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(thresholdListener);
+        } catch (ListenerNotFoundException e) {
+            // can't happen
+        }
+        restoreThresholds();
+    }
+
+    public synchronized boolean isStarted() {
+        return poller != null;
+    }
+
+    private void installThresholds() {
+        for (MemoryPoolMXBean pool : getHeapPools()) {
+            long threshold = (long) (pool.getUsage().getMax() * highWatermark);
+            if (pool.isCollectionUsageThresholdSupported()) {
+                if (!savedThresholds.containsKey(pool)) {
+                    savedThresholds.put(pool, pool.getCollectionUsageThreshold());
+                }
+                pool.setCollectionUsageThreshold(threshold);
+            } else {
+                if (!savedThresholds.containsKey(pool)) {
+                    savedThresholds.put(pool, pool.getUsageThreshold());
+                }
+                pool.setUsageThreshold(threshold);
+            }
+        }
+    }
+
+    private void restoreThresholds() {
+        for (Map.Entry<MemoryPoolMXBean, Long> e : savedThresholds.entrySet()) {
+            MemoryPoolMXBean pool = e.getKey();
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(e.getValue());
+            } else {
+                pool.setUsageThreshold(e.getValue());
+            }
+        }
+        savedThresholds.clear();
+    }
+
+    /**
+     * Called for the JVM's threshold notifications. Other code may have
+     * installed thresholds on other pools (the notifications go to all
+     * listeners), so only those on the pools this controller manages count.
+     */
+    void thresholdExceeded(String poolName) {
+        synchronized (this) {
+            boolean managed = false;
+            for (MemoryPoolMXBean pool : savedThresholds.keySet()) {
+                if (pool.getName().equals(poolName)) {
+                    managed = true;
+                    break;
+                }
+            }
+            if (!managed) {
+                return;
+            }
+        }
+        shrink();
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        List<MemoryPoolMXBean> result = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.isUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                result.add(pool);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The current memory usage as a fraction of the available memory (see
+     * class comment). Called by {@link #check()}.
+     */
+    protected double getUsedFraction() {
+        double result = 0;
+        for (MemoryPoolMXBean pool : getHeapPools()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                usage = pool.getUsage();
+            }
+            if (usage.getMax() > 0) {
+                result = Math.max(result, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        long limit = getDirectMemoryLimit();
+        if (limit > 0) {
+            long used = getDirectMemoryUsed();
+            if (used >= 0) {
+                result = Math.max(result, (double) used / limit);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the memory used by the direct buffer pool, or -1 if the JVM
+     *         doesn't publish it (before Java 7). Read via JMX rather than
+     *         BufferPoolMXBean, which doesn't exist in Java 6.
+     */
+    private static long getDirectMemoryUsed() {
+        try {
+            Object used = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName("java.nio:type=BufferPool,name=direct"), "MemoryUsed");
+            return ((Number) used).longValue();
+        } catch (JMException e) {
+            return -1;
+        }
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Measure the memory usage and shrink or grow the maps' budgets if
+     * necessary. Called periodically when started.
+     */
+    public void check() {
+        double usedFraction = getUsedFraction();
+        if (usedFraction > getHighWatermark()) {
+            shrink();
+        } else if (usedFraction < getLowWatermark()) {
+            grow();
+        }
+    }
+
+    private synchronized boolean cooledDown(long now) {
+        return !adjusted || now - lastAdjustment >= cooldownNanos;
+    }
+
+    private void shrink() {
+        Map<Registration, Double> budgets = new LinkedHashMap<Registration, Double>();
+        synchronized (this) {
+            long now = nanoTime();
+            if (!cooledDown(now)) {
+                return;
+            }
+            for (Registration r : registrations) {
+                // relative to the budget rather than the total cost, so idle
+                // maps aren't shrunk to their floor step by step
+                double max = r.map.getMaxTotalCost();
+                double newMax = Math.max(r.floor, max * shrinkFactor);
+                if (newMax < max) {
+                    budgets.put(r, newMax);
+                }
+            }
+            shrunk = true;
+            adjusted = true;
+            lastAdjustment = now;
+            shrinkCount++;
+        }
+        apply(budgets);
+    }
+
+    private void grow() {
+        Map<Registration, Double> budgets = new LinkedHashMap<Registration, Double>();
+        synchronized (this) {
+            if (!shrunk) {
+                return;
+            }
+            long now = nanoTime();
+            if (!cooledDown(now)) {
+                return;
+            }
+            boolean stillShrunk = false;
+            for (Registration r : registrations) {
+                double max = r.map.getMaxTotalCost();
+                if (max < r.ceiling) {
+                    double newMax = Math.min(r.ceiling, max + r.ceiling * growStep);
+                    budgets.put(r, newMax);
+                    stillShrunk |= newMax < r.ceiling;
+                }
+            }
+            shrunk = stillShrunk;
+            adjusted = true;
+            lastAdjustment = now;
+            growCount++;
+        }
+        apply(budgets);
+    }
+
+    /**
+     * @return true if the budget of at least one map is currently reduced
+     */
+    public synchronized boolean isShrunk() {
+        return shrunk;
+    }
+
+    /**
+     * @return number of shrink steps taken so far
+     */
+    public synchronized long getShrinkCount() {
+        return shrinkCount;
+    }
+
+    /**
+     * @return number of grow steps taken so far
+     */
+    public synchronized long getGrowCount() {
+        return growCount;
+    }
+
+    public synchronized double getHighWatermark() {
+        return highWatermark;
+    }
+
+    public synchronized double getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Set the memory usage fractions above which the maps are shrunk and
+     * below which they are grown again. 0 &lt; low &lt; high &lt;= 1 is
+     * required.
+     */
+    public synchronized void setWatermarks(double lowWatermark, double highWatermark) {
+        if (!(0 < lowWatermark && lowWatermark < highWatermark && highWatermark <= 1)) {
+            throw new IllegalArgumentException("invalid watermarks: " + lowWatermark + "/" + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        if (poller != null) {
+            installThresholds();
+        }
+    }
+
+    public synchronized double getShrinkFactor() {
+        return shrinkFactor;
+    }
+
+    /**
+     * @param shrinkFactor
+     *            factor (0 &lt;= shrinkFactor &lt; 1) that the maxTotalCost of
+     *            each map is multiplied by when shrinking
+     */
+    public synchronized void setShrinkFactor(double shrinkFactor) {
+        if (shrinkFactor < 0 || shrinkFactor >= 1) {
+            throw new IllegalArgumentException();
+        }
+        this.shrinkFactor = shrinkFactor;
+    }
+
+    public synchronized double getGrowStep() {
+        return growStep;
+    }
+
+    /**
+     * @param growStep
+     *            fraction (&gt; 0) of each map's ceiling that its
+     *            maxTotalCost is raised by per grow step
+     */
+    public synchronized void setGrowStep(double growStep) {
+        if (growStep <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.growStep = growStep;
+    }
+
+    /**
+     * @return minimum time between two adjustments, in milliseconds
+     */
+    public synchronized long getCooldown() {
+        return TimeUnit.NANOSECONDS.toMillis(cooldownNanos);
+    }
+
+    public synchronized void setCooldown(long time, TimeUnit unit) {
+        this.cooldownNanos = unit.toNanos(time);
+    }
+
+    /**
+     * @return the polling interval in milliseconds
+     */
+    public synchronized long getPollInterval() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * Set the polling interval. Takes effect on the next {@link #start()}.
+     */
+    public synchronized void setPollInterval(long time, TimeUnit unit) {
+        this.pollIntervalMillis = Math.max(1, unit.toMillis(time));
+    }
+
+    public synchronized long getDirectMemoryLimit() {
+        return directMemoryLimit;
+    }
+
+    /**
+     * The JVM doesn't publish its direct memory limit, so it needs to be set
+     * here (e.g. to the -XX:MaxDirectMemorySize value) to have the direct
+     * buffer pool's usage taken into account. Values &lt;= 0 (the default)
+     * ignore direct memory.
+     *
+     * @param directMemoryLimit
+     *            in bytes
+     */
+    public synchronized void setDirectMemoryLimit(long directMemoryLimit) {
+        this.directMemoryLimit = directMemoryLimit;
+    }
+
+}
@@ -0,0 +1,44 @@
+package de.sofd.util;
+
+/**
+ * NumericPriorityMap that can collect usage statistics (hits, misses, puts,
+ * evictions) for tuning its maxTotalCost and bucket layout. Statistics are
+ * disabled by default; while they're disabled, collecting them costs nothing
+ * (beyond a null check per operation). See {@link NumericPriorityMapMonitor}
+ * for exposing the statistics via JMX.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface MonitoredNumericPriorityMap<K, V> extends NumericPriorityMap<K, V> {
+
+    boolean isStatisticsEnabled();
+
+    /**
+     * Enabling the statistics (when they're disabled) starts counting from
+     * zero; disabling them drops the counters.
+     */
+    void setStatisticsEnabled(boolean statisticsEnabled);
+
+    /**
+     * Reset all counters to zero. Doesn't do anything if statistics are
+     * disabled.
+     */
+    void resetStatistics();
+
+    /**
+     * Snapshot of the current statistics. The counters are all zero if
+     * statistics are disabled, but the size/cost figures are always current.
+     */
+    NumericPriorityMapStatistics getStatistics();
+
+    /**
+     * Snapshot of the counters alone (hits, misses, puts, evictions), read
+     * without locking the map, e.g. for polling them frequently. The size and
+     * cost figures of the result are zero, and its cost per bucket is empty.
+     */
+    NumericPriorityMapStatistics getCounters();
+
+}
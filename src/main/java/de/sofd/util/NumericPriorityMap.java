@@ -2,7 +2,10 @@ package de.sofd.util;
 
 import de.sofd.lang.Function1;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 /**
  * Base interface for a map with per-key priority and cost values.
@@ -36,11 +39,15 @@ import java.util.TreeMap;
  * elements. In the default case, the element cost function will just return 1
  * for all elements, so the {@link #getMaxTotalCost()} will effectively be the
  * maximum number of elements in the map. Please note that the cost function's
- * value MUST NOT change for an element as long as it stays in the map.
+ * value MUST NOT change for an element as long as it stays in the map, unless
+ * {@link #updateCost(Object)} is called for the element afterwards.
  * <p>
  * There is a boolean isReverseEviction flag -- if it is true, eviction starts
  * with the highest-priority elements, not the lowest-priority ones.
  * <p>
+ * {@link RemovalListener}s may be registered to get notified whenever an
+ * element leaves the map, e.g. to free resources held by the value right away.
+ * <p>
  * TODO: derive this from java.util.Map (submitting priorities via a function
  * rather than as an additional parameter to put() et.al)
  *
@@ -61,6 +68,51 @@ public interface NumericPriorityMap<K, V> {
         double getPriority();
     }
 
+    /**
+     * Why an element was removed from the map.
+     */
+    public enum RemovalReason {
+        /** thrown out because the maximum total cost was exceeded */
+        EVICTED,
+        /** value was replaced by another put() for the same key */
+        REPLACED,
+        /** removed explicitly via remove() or an iterator's remove() */
+        REMOVED,
+        /** its lifetime ran out */
+        EXPIRED
+    }
+
+    /**
+     * Listener that gets notified whenever an element leaves the map.
+     * Listeners are never called while the map holds internal locks, so they
+     * may access the map.
+     */
+    public interface RemovalListener<K, V> {
+        /**
+         * @param entry
+         *            immutable snapshot of the removed element (its key,
+         *            value and priority at the time of removal)
+         * @param reason
+         */
+        void entryRemoved(Entry<K, V> entry, RemovalReason reason);
+    }
+
+    /**
+     * Register a listener that is called synchronously, in the thread that
+     * caused the removal, after the map operation has released its lock(s)
+     * but before it returns.
+     */
+    void addRemovalListener(RemovalListener<K, V> listener);
+
+    /**
+     * Register a listener whose notifications are delivered on executor. The
+     * notifications caused by one map operation are passed to the executor as
+     * one batch (i.e. one task).
+     */
+    void addRemovalListener(RemovalListener<K, V> listener, Executor executor);
+
+    void removeRemovalListener(RemovalListener<K, V> listener);
+
     boolean contains(K k);
 
     V get(K k);
@@ -85,10 +137,60 @@ public interface NumericPriorityMap<K, V> {
      */
     void setPriority(K k, double priority);
 
+    /**
+     * Set the priorities of several elements at once. Equivalent to calling
+     * {@link #setPriority(Object, double)} for each entry of priorities (in
+     * its iteration order), but takes the lock(s) only once. Keys that aren't
+     * stored are ignored.
+     */
+    void setPriorities(Map<K, Double> priorities);
+
+    /**
+     * Set the priority of every element to priorityFunction.run(key), or
+     * leave it alone if that returns null (or the current priority).
+     * Equivalent to calling {@link #setPriority(Object, double)} for each
+     * changed element in iteration order, but done in one pass over the
+     * elements. priorityFunction is called with the map's lock(s) held, so it
+     * must not access the map.
+     */
+    void reprioritize(Function1<K, Double> priorityFunction);
+
+    /**
+     * Re-evaluates the element cost function for k's value, e.g. because the
+     * value's memory footprint has changed, and evicts other elements if
+     * necessary. Doesn't do anything if k isn't currently stored.
+     */
+    void updateCost(K k);
+
     int size();
 
     Iterator<Entry<K, V>> entryIterator();
 
     public Iterator<Entry<K,V>> reverseEntryIterator();
 
+    /**
+     * Range query: the elements with lo &lt;= priority &lt;= hi, in iteration
+     * order (see {@link #entryIterator()}). Implementations only look at the
+     * part of their data structure that may hold such elements, so this takes
+     * time proportional to the size of the result (plus, for bucketed maps,
+     * the number of buckets in the range and the elements of the two boundary
+     * buckets), not to the size of the map.
+     * 
+     * @return the elements, as returned by the iterators. Empty if lo &gt; hi.
+     */
+    List<Entry<K, V>> entriesInPriorityRange(double lo, double hi);
+
+    /**
+     * The k elements with the highest priorities (all elements if there are
+     * fewer than k), highest priority first; elements with equal priorities
+     * are in reverse iteration order. Implementations only look at as much of
+     * their data structure as necessary (for bucketed maps: the highest
+     * buckets that together hold at least k elements).
+     * 
+     * @param k
+     *            &gt;= 0
+     * @return the elements, as returned by the iterators
+     */
+    List<Entry<K, V>> topK(int k);
+
 }
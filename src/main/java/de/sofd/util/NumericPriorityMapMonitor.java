@@ -0,0 +1,139 @@
+package de.sofd.util;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Standard MBean that exposes the statistics of a
+ * {@link MonitoredNumericPriorityMap} via JMX (e.g. for watching them in
+ * JConsole), and allows changing its maxTotalCost at runtime.
+ * <p>
+ * Each attribute getter reads the map's current figures. The counters are
+ * read without locking the map; only CostPerBucket takes a full snapshot of
+ * the statistics.
+ *
+ * @author olaf
+ */
+public class NumericPriorityMapMonitor implements NumericPriorityMapMonitorMBean {
+
+    private final MonitoredNumericPriorityMap<?, ?> map;
+    private ObjectName objectName;
+
+    public NumericPriorityMapMonitor(MonitoredNumericPriorityMap<?, ?> map) {
+        this.map = map;
+    }
+
+    /**
+     * Creates a monitor for map and registers it with the platform MBean
+     * server under objectName (e.g.
+     * "de.sofd.viskit:type=NumericPriorityMap,name=sliceCache"). Enables the
+     * map's statistics.
+     *
+     * @throws JMException
+     *             if registration failed, e.g. because the name is taken
+     */
+    public static NumericPriorityMapMonitor register(MonitoredNumericPriorityMap<?, ?> map, String objectName) throws JMException {
+        NumericPriorityMapMonitor result = new NumericPriorityMapMonitor(map);
+        ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(result, name);
+        result.objectName = name;
+        map.setStatisticsEnabled(true);
+        return result;
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered via
+     * {@link #register(MonitoredNumericPriorityMap, String)}.
+     */
+    public void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    public MonitoredNumericPriorityMap<?, ?> getMap() {
+        return map;
+    }
+
+    @Override
+    public boolean isStatisticsEnabled() {
+        return map.isStatisticsEnabled();
+    }
+
+    @Override
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        map.setStatisticsEnabled(statisticsEnabled);
+    }
+
+    @Override
+    public void resetStatistics() {
+        map.resetStatistics();
+    }
+
+    @Override
+    public long getHitCount() {
+        return map.getCounters().getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return map.getCounters().getMissCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return map.getCounters().getHitRate();
+    }
+
+    @Override
+    public long getPutCount() {
+        return map.getCounters().getPutCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return map.getCounters().getEvictionCount();
+    }
+
+    @Override
+    public long[] getEvictionsPerBucket() {
+        return map.getCounters().getEvictionsPerBucket();
+    }
+
+    @Override
+    public double getEvictedCost() {
+        return map.getCounters().getEvictedCost();
+    }
+
+    @Override
+    public int getSize() {
+        return map.size();
+    }
+
+    @Override
+    public double getCurrentTotalCost() {
+        return map.getCurrentTotalCost();
+    }
+
+    @Override
+    public double[] getCostPerBucket() {
+        return map.getStatistics().getCostPerBucket();
+    }
+
+    @Override
+    public double getMaxTotalCost() {
+        return map.getMaxTotalCost();
+    }
+
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        map.setMaxTotalCost(maxTotalCost);
+    }
+
+}
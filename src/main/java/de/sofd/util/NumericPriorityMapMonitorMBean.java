@@ -0,0 +1,40 @@
+package de.sofd.util;
+
+/**
+ * JMX management interface of {@link NumericPriorityMapMonitor}.
+ *
+ * @author olaf
+ */
+public interface NumericPriorityMapMonitorMBean {
+
+    boolean isStatisticsEnabled();
+
+    void setStatisticsEnabled(boolean statisticsEnabled);
+
+    void resetStatistics();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getPutCount();
+
+    long getEvictionCount();
+
+    long[] getEvictionsPerBucket();
+
+    double getEvictedCost();
+
+    int getSize();
+
+    double getCurrentTotalCost();
+
+    double[] getCostPerBucket();
+
+    double getMaxTotalCost();
+
+    void setMaxTotalCost(double maxTotalCost);
+
+}
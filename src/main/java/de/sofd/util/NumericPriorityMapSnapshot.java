@@ -0,0 +1,254 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the keys of a {@link NumericPriorityMap} together with
+ * their priorities and costs (but not the values), for persisting the map's
+ * "index" in a compact binary file and warming up the map from it after a
+ * restart (see
+ * {@link de.sofd.util.concurrent.NumericPriorityLoadingCache#preload(NumericPriorityMapSnapshot, de.sofd.util.concurrent.NumericPriorityLoadingCache.Loader)}).
+ * <p>
+ * The elements are kept in retention order, i.e. the reverse of the order in
+ * which the map would evict them: most valuable first.
+ * <p>
+ * To save the snapshot on shutdown, call
+ * <code>NumericPriorityMapSnapshot.of(map).writeTo(file, codec)</code> from a
+ * shutdown hook; to save it periodically, from a scheduled task.
+ * {@link #writeTo(File, KeyCodec)} replaces the file atomically where the file
+ * system supports it, so a crash while writing leaves the old snapshot intact.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ */
+public class NumericPriorityMapSnapshot<K> implements Iterable<NumericPriorityMapSnapshot.Element<K>> {
+
+    /**
+     * Binary serialization of the keys.
+     */
+    public interface KeyCodec<K> {
+        void write(K k, DataOutput out) throws IOException;
+
+        K read(DataInput in) throws IOException;
+    }
+
+    /**
+     * KeyCodec for String keys (modified UTF-8, max. 65535 bytes per key).
+     */
+    public static final KeyCodec<String> STRING_KEYS = new KeyCodec<String>() {
+        @Override
+        public void write(String k, DataOutput out) throws IOException {
+            out.writeUTF(k);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    /**
+     * One element of the snapshot.
+     */
+    public static class Element<K> {
+        private final K key;
+        private final double priority;
+        private final double cost;
+
+        public Element(K key, double priority, double cost) {
+            this.key = key;
+            this.priority = priority;
+            this.cost = cost;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public double getPriority() {
+            return priority;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return key + "(" + priority + ", " + cost + ")";
+        }
+    }
+
+    private static final int MAGIC = 0x4E504D53;  // "NPMS"
+    private static final int VERSION = 1;
+
+    private final List<Element<K>> elements;
+    private final double totalCost;
+
+    /**
+     * @param elements
+     *            in retention order (most valuable first)
+     */
+    public NumericPriorityMapSnapshot(List<Element<K>> elements) {
+        this.elements = Collections.unmodifiableList(new ArrayList<Element<K>>(elements));
+        double total = 0;
+        for (Element<K> e : elements) {
+            total += e.getCost();
+        }
+        this.totalCost = total;
+    }
+
+    /**
+     * Takes a snapshot of map. The map is locked while the elements are
+     * collected: the maps of this package with several locks
+     * ({@link ConcurrentBucketedNumericPriorityMap},
+     * {@link ShardedNumericPriorityMap}) lock all of them, for other maps the
+     * map's monitor is held. So for these maps and for other maps that
+     * synchronize on themselves, the snapshot is consistent. The costs are the
+     * ones stored by the map where it memoizes them, and are computed by the
+     * map's element cost function otherwise.
+     */
+    public static <K, V> NumericPriorityMapSnapshot<K> of(final NumericPriorityMap<K, V> map) {
+        final List<Element<K>> elements = new ArrayList<Element<K>>();
+        Runnable collect = new Runnable() {
+            @Override
+            public void run() {
+                Function1<V, Double> costFunction = map.getElementCostFunction();
+                Iterator<NumericPriorityMap.Entry<K, V>> it = map.isReverseEviction() ? map.entryIterator() : map.reverseEntryIterator();
+                while (it.hasNext()) {
+                    NumericPriorityMap.Entry<K, V> e = it.next();
+                    double cost = e instanceof CostedEntry ? ((CostedEntry) e).getCost() : costFunction.run(e.getValue());
+                    elements.add(new Element<K>(e.getKey(), e.getPriority(), cost));
+                }
+            }
+        };
+        if (map instanceof ExclusivelyLockable) {
+            ((ExclusivelyLockable) map).runExclusively(collect);
+        } else {
+            synchronized (map) {
+                collect.run();
+            }
+        }
+        return new NumericPriorityMapSnapshot<K>(elements);
+    }
+
+    public int size() {
+        return elements.size();
+    }
+
+    public boolean isEmpty() {
+        return elements.isEmpty();
+    }
+
+    public double getTotalCost() {
+        return totalCost;
+    }
+
+    /**
+     * @return the elements in retention order (most valuable first)
+     */
+    public List<Element<K>> getElements() {
+        return elements;
+    }
+
+    @Override
+    public Iterator<Element<K>> iterator() {
+        return elements.iterator();
+    }
+
+    public void write(DataOutput out, KeyCodec<? super K> codec) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(elements.size());
+        for (Element<K> e : elements) {
+            codec.write(e.getKey(), out);
+            out.writeDouble(e.getPriority());
+            out.writeDouble(e.getCost());
+        }
+    }
+
+    /**
+     * Write the snapshot to file, via a temporary file in the same directory
+     * which then replaces file. Where renaming can't replace an existing file
+     * (Windows), file is deleted first, so the replacement isn't atomic there.
+     * If writing fails, the temporary file is deleted and file is left as it
+     * was.
+     */
+    public void writeTo(File file, KeyCodec<? super K> codec) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try {
+                write(out, codec);
+                out.flush();
+                // on disk before it replaces file, so a crash can't leave an
+                // empty or partial snapshot behind
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("couldn't rename " + tmp + " to " + file);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             also if the data isn't a snapshot written by
+     *             {@link #write(DataOutput, KeyCodec)}
+     */
+    public static <K> NumericPriorityMapSnapshot<K> read(DataInput in, KeyCodec<? extends K> codec) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a NumericPriorityMap snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("corrupt snapshot");
+        }
+        List<Element<K>> elements = new ArrayList<Element<K>>(Math.min(n, 1 << 16));
+        for (int i = 0; i < n; i++) {
+            K k = codec.read(in);
+            double priority = in.readDouble();
+            double cost = in.readDouble();
+            elements.add(new Element<K>(k, priority, cost));
+        }
+        return new NumericPriorityMapSnapshot<K>(elements);
+    }
+
+    public static <K> NumericPriorityMapSnapshot<K> readFrom(File file, KeyCodec<? extends K> codec) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in, codec);
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package de.sofd.util;
+
+/**
+ * Immutable snapshot of the usage statistics of a
+ * {@link MonitoredNumericPriorityMap}: the hit/miss/put/eviction counters
+ * accumulated since statistics were enabled (or last reset), plus the current
+ * size and cost of the map.
+ * <p>
+ * The per-bucket figures are indexed by bucket number. In
+ * {@link BucketedNumericPriorityMap#setAdaptiveBuckets(boolean) adaptive bucket}
+ * mode, bucket boundaries move over time, so the eviction counts of a bucket
+ * may refer to different priority ranges.
+ *
+ * @author olaf
+ */
+public class NumericPriorityMapStatistics {
+
+    private final long hitCount, missCount, putCount;
+    private final long[] evictionsPerBucket;
+    private final double evictedCost;
+    private final int size;
+    private final double currentTotalCost, maxTotalCost;
+    private final double[] costPerBucket;
+
+    NumericPriorityMapStatistics(long hitCount, long missCount, long putCount, long[] evictionsPerBucket,
+            double evictedCost, int size, double currentTotalCost, double maxTotalCost, double[] costPerBucket) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionsPerBucket = evictionsPerBucket;
+        this.evictedCost = evictedCost;
+        this.size = size;
+        this.currentTotalCost = currentTotalCost;
+        this.maxTotalCost = maxTotalCost;
+        this.costPerBucket = costPerBucket;
+    }
+
+    /**
+     * @return number of get() calls that found a value
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of get() calls that didn't find a value
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return hitCount / requestCount, or 1.0 if there were no requests
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return number of elements evicted because the max. total cost was
+     *         exceeded (not counting removals and replacements)
+     */
+    public long getEvictionCount() {
+        long result = 0;
+        for (long n : evictionsPerBucket) {
+            result += n;
+        }
+        return result;
+    }
+
+    /**
+     * @return number of evictions from each bucket
+     */
+    public long[] getEvictionsPerBucket() {
+        return evictionsPerBucket.clone();
+    }
+
+    /**
+     * @return total cost of all evicted elements
+     */
+    public double getEvictedCost() {
+        return evictedCost;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getCurrentTotalCost() {
+        return currentTotalCost;
+    }
+
+    public double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    /**
+     * @return current total cost of the elements in each bucket
+     */
+    public double[] getCostPerBucket() {
+        return costPerBucket.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hitCount + " misses=" + missCount + " puts=" + putCount + " evictions=" + getEvictionCount()
+                + " evictedCost=" + evictedCost + " size=" + size + " cost=" + currentTotalCost + "/" + maxTotalCost;
+    }
+
+}
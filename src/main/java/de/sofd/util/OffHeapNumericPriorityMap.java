@@ -0,0 +1,464 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * NumericPriorityMap whose values are stored off-heap, in direct memory
+ * managed by a {@link SlabAllocator}. Meant for large, GC-unfriendly values
+ * like pixel data.
+ * <p>
+ * put() copies the remaining bytes of the given buffer into a slab chunk;
+ * get() and the iterators return read-only views (with this map's
+ * {@link #getByteOrder() byte order}) of the stored bytes -- use e.g.
+ * asShortBuffer() on them for 16-bit pixel data. The cost of an element is
+ * the number of bytes its chunk occupies, so {@link #getMaxTotalCost()} is the
+ * maximum off-heap memory held by live values. Priorities, ordering and
+ * eviction work exactly like in {@link BucketedNumericPriorityMap}, which is
+ * used internally to keep track of the elements; space freed by eviction or
+ * removal is recycled for subsequent puts.
+ * <p>
+ * IMPORTANT: a buffer returned by get() (or an iterator) is only valid as
+ * long as its element stays in the map -- once the element has been removed,
+ * its memory may be reused for other values at any time. Use
+ * {@link #get(Object, ByteBuffer)} to safely copy a value out of the map.
+ * <p>
+ * Removal listeners registered without an executor get a valid view of the
+ * removed value; the chunk is recycled only after they've returned. They're
+ * called once per removed element rather than once per batch. Listeners
+ * registered with an executor get null values, because the chunk has already
+ * been recycled when they run.
+ * <p>
+ * For the same reason, put() and remove() return a heap copy of the previous
+ * value rather than a view of it, which costs a full copy of each replaced or
+ * removed value.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ */
+public class OffHeapNumericPriorityMap<K> implements NumericPriorityMap<K, ByteBuffer> {
+
+    private final SlabAllocator allocator;
+    private final BucketedNumericPriorityMap<K, SlabAllocator.Chunk> backend;
+    private final ByteOrder byteOrder;
+
+    private final RemovalNotifier<K, ByteBuffer> syncNotifier = new RemovalNotifier<K, ByteBuffer>();
+    private final RemovalNotifier<K, ByteBuffer> asyncNotifier = new RemovalNotifier<K, ByteBuffer>();
+
+    /**
+     * The key of a put() or remove() in progress in the current thread, and
+     * the copy of its previous value, which the backend listener makes before
+     * the chunk is freed. The backend reports the removals caused by an
+     * operation in the thread that performed it.
+     */
+    private static class PreviousValue {
+        final Object k;
+        ByteBuffer v;
+
+        PreviousValue(Object k) {
+            this.k = k;
+        }
+    }
+
+    private final ThreadLocal<PreviousValue> previousValue = new ThreadLocal<PreviousValue>();
+
+    private static final Function1<SlabAllocator.Chunk, Double> chunkCostFunction = new Function1<SlabAllocator.Chunk, Double>() {
+        @Override
+        public Double run(SlabAllocator.Chunk c) {
+            return (double) c.getCapacity();
+        }
+    };
+
+    /**
+     * Creates a map with 16 MB slabs, a smallest size class of 1 KB and
+     * native byte order.
+     */
+    public OffHeapNumericPriorityMap(double lowPrio, double highPrio, int nBuckets, long maxTotalBytes) {
+        this(lowPrio, highPrio, nBuckets, maxTotalBytes, false, 16 * 1024 * 1024, 1024, ByteOrder.nativeOrder());
+    }
+
+    /**
+     * lowPrio, highPrio, nBuckets and reverseEviction have the same meaning as
+     * in
+     * {@link BucketedNumericPriorityMap#BucketedNumericPriorityMap(double, double, int, double, Function1, boolean)}.
+     *
+     * @param lowPrio
+     * @param highPrio
+     * @param nBuckets
+     * @param maxTotalBytes
+     *            max. total cost, i.e. number of bytes of all chunks. < 0 ==
+     *            unlimited
+     * @param reverseEviction
+     * @param slabSize
+     *            see {@link SlabAllocator#SlabAllocator(int, int)}
+     * @param minChunkSize
+     *            see {@link SlabAllocator#SlabAllocator(int, int)}
+     * @param byteOrder
+     *            byte order of the buffers handed out by this map
+     */
+    public OffHeapNumericPriorityMap(double lowPrio, double highPrio, int nBuckets, long maxTotalBytes,
+            boolean reverseEviction, int slabSize, int minChunkSize, ByteOrder byteOrder) {
+        this(lowPrio, highPrio, nBuckets, maxTotalBytes, reverseEviction, new SlabAllocator(slabSize, minChunkSize), byteOrder);
+    }
+
+    /**
+     * Creates a map that takes its memory from allocator (which should not be
+     * used by anyone else), e.g. a {@link MappedFileSlabAllocator} for storing
+     * the values in a file.
+     */
+    public OffHeapNumericPriorityMap(double lowPrio, double highPrio, int nBuckets, long maxTotalBytes,
+            boolean reverseEviction, SlabAllocator allocator, ByteOrder byteOrder) {
+        this.allocator = allocator;
+        this.byteOrder = byteOrder;
+        this.backend = new BucketedNumericPriorityMap<K, SlabAllocator.Chunk>(lowPrio, highPrio, nBuckets,
+                maxTotalBytes, chunkCostFunction, reverseEviction);
+        this.backend.setLongCostAccounting(true);
+        this.backend.addRemovalListener(new RemovalListener<K, SlabAllocator.Chunk>() {
+            @Override
+            public void entryRemoved(Entry<K, SlabAllocator.Chunk> entry, RemovalReason reason) {
+                // the chunk is freed right here, after the listeners that see
+                // it have returned (or thrown)
+                try {
+                    PreviousValue prev = previousValue.get();
+                    if (prev != null && (reason == RemovalReason.REPLACED || reason == RemovalReason.REMOVED)
+                            && prev.k.equals(entry.getKey())) {
+                        prev.v = copy(entry.getValue());
+                    }
+                    if (syncNotifier.isActive()) {
+                        syncNotifier.deliverNow(entry.getKey(), view(entry.getValue()), entry.getPriority(), reason);
+                    }
+                    asyncNotifier.enqueue(entry.getKey(), null, entry.getPriority(), reason);
+                } finally {
+                    OffHeapNumericPriorityMap.this.allocator.free(entry.getValue());
+                }
+            }
+        });
+    }
+
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    private ByteBuffer view(SlabAllocator.Chunk c) {
+        return c.buffer().asReadOnlyBuffer().order(byteOrder);
+    }
+
+    private ByteBuffer copy(SlabAllocator.Chunk c) {
+        ByteBuffer result = ByteBuffer.allocate(c.getLength()).order(byteOrder);
+        result.put(c.buffer());
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Start capturing the previous value of k for a put() or remove() by the
+     * current thread.
+     *
+     * @return the capture of an enclosing put() or remove() (called from a
+     *         listener), to be passed to {@link #endCapture(PreviousValue)}
+     */
+    private PreviousValue beginCapture(K k) {
+        PreviousValue outer = previousValue.get();
+        previousValue.set(new PreviousValue(k));
+        return outer;
+    }
+
+    /**
+     * @return the captured previous value, or null if there was none
+     */
+    private ByteBuffer endCapture(PreviousValue outer) {
+        ByteBuffer result = previousValue.get().v;
+        if (outer == null) {
+            previousValue.remove();
+        } else {
+            previousValue.set(outer);
+        }
+        return result;
+    }
+
+    /**
+     * Hand the notifications for the elements removed by the preceding
+     * backend operation to the executors of the asynchronous listeners. Must
+     * be called after every backend operation that may remove elements.
+     */
+    private void afterRemovals() {
+        asyncNotifier.deliverPending();
+    }
+
+    /**
+     * Copies the remaining bytes of v (without changing its position) into
+     * off-heap memory and stores them under k.
+     *
+     * @return a heap copy of the previous value, or null if there was none
+     */
+    @Override
+    public ByteBuffer put(K k, ByteBuffer v, double priority) {
+        SlabAllocator.Chunk c = allocator.allocate(v.remaining());
+        try {
+            c.store(v);
+        } catch (RuntimeException e) {
+            allocator.free(c);
+            throw e;
+        }
+        // from here on, c belongs to the backend: its put() stores c before
+        // anything can fail (its cost function is chunkCostFunction), and
+        // c is freed by the backend listener when it's removed again
+        PreviousValue outer = beginCapture(k);
+        try {
+            backend.put(k, c, priority);
+        } finally {
+            v = endCapture(outer);
+        }
+        afterRemovals();
+        return v;
+    }
+
+    @Override
+    public ByteBuffer get(K k) {
+        SlabAllocator.Chunk c = backend.get(k);
+        return c == null ? null : view(c);
+    }
+
+    /**
+     * Copies the value stored under k into dst (starting at dst's position,
+     * which is advanced accordingly). This is safe against concurrent removal
+     * of the element.
+     *
+     * @return false if k isn't stored
+     * @throws java.nio.BufferOverflowException
+     *             if dst doesn't have enough remaining space
+     */
+    public boolean get(K k, ByteBuffer dst) {
+        synchronized (backend) {
+            SlabAllocator.Chunk c = backend.get(k);
+            if (c == null) {
+                return false;
+            }
+            dst.put(c.buffer());
+            return true;
+        }
+    }
+
+    /**
+     * Runs reader on a read-only view of the value stored under k. The view
+     * is guaranteed to stay valid until reader returns (reader runs with this
+     * map locked, so it should be quick), which allows processing the value
+     * in place without copying it.
+     *
+     * @return what reader returned, or null if k isn't stored
+     */
+    public <T> T read(K k, Function1<ByteBuffer, T> reader) {
+        synchronized (backend) {
+            SlabAllocator.Chunk c = backend.get(k);
+            if (c == null) {
+                return null;
+            }
+            return reader.run(view(c));
+        }
+    }
+
+    /**
+     * @return the priority of k, or NaN if k isn't stored
+     */
+    public double getPriority(K k) {
+        return backend.getPriority(k);
+    }
+
+    /**
+     * @return a heap copy of the removed value, or null if k wasn't stored
+     */
+    @Override
+    public ByteBuffer remove(K k) {
+        ByteBuffer result;
+        PreviousValue outer = beginCapture(k);
+        try {
+            backend.remove(k);
+        } finally {
+            result = endCapture(outer);
+        }
+        afterRemovals();
+        return result;
+    }
+
+    @Override
+    public boolean contains(K k) {
+        return backend.contains(k);
+    }
+
+    @Override
+    public int size() {
+        return backend.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return backend.isEmpty();
+    }
+
+    @Override
+    public void setPriority(K k, double priority) {
+        backend.setPriority(k, priority);
+    }
+
+    @Override
+    public void setPriorities(Map<K, Double> priorities) {
+        backend.setPriorities(priorities);
+    }
+
+    @Override
+    public void reprioritize(Function1<K, Double> priorityFunction) {
+        backend.reprioritize(priorityFunction);
+    }
+
+    /**
+     * Off-heap values can't change their size, so this doesn't do anything.
+     */
+    @Override
+    public void updateCost(K k) {
+    }
+
+    @Override
+    public double getCurrentTotalCost() {
+        return backend.getCurrentTotalCost();
+    }
+
+    @Override
+    public double getMaxTotalCost() {
+        return backend.getMaxTotalCost();
+    }
+
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        backend.setMaxTotalCost(maxTotalCost);
+        afterRemovals();
+    }
+
+    /**
+     * @return function that maps a value to the number of bytes it would
+     *         occupy in this map
+     */
+    @Override
+    public Function1<ByteBuffer, Double> getElementCostFunction() {
+        return new Function1<ByteBuffer, Double>() {
+            @Override
+            public Double run(ByteBuffer v) {
+                return (double) allocator.chunkSizeFor(v.remaining());
+            }
+        };
+    }
+
+    @Override
+    public boolean isReverseEviction() {
+        return backend.isReverseEviction();
+    }
+
+    @Override
+    public void setReverseEviction(boolean reverseEviction) {
+        backend.setReverseEviction(reverseEviction);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, ByteBuffer> listener) {
+        syncNotifier.addListener(listener, null);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, ByteBuffer> listener, Executor executor) {
+        asyncNotifier.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeRemovalListener(RemovalListener<K, ByteBuffer> listener) {
+        syncNotifier.removeListener(listener);
+        asyncNotifier.removeListener(listener);
+    }
+
+    @Override
+    public Iterator<Entry<K, ByteBuffer>> entryIterator() {
+        return new ViewIterator(backend.entryIterator());
+    }
+
+    @Override
+    public Iterator<Entry<K, ByteBuffer>> reverseEntryIterator() {
+        return new ViewIterator(backend.reverseEntryIterator());
+    }
+
+    @Override
+    public List<Entry<K, ByteBuffer>> entriesInPriorityRange(double lo, double hi) {
+        return viewEntries(backend.entriesInPriorityRange(lo, hi));
+    }
+
+    @Override
+    public List<Entry<K, ByteBuffer>> topK(int k) {
+        return viewEntries(backend.topK(k));
+    }
+
+    private List<Entry<K, ByteBuffer>> viewEntries(List<Entry<K, SlabAllocator.Chunk>> backendEntries) {
+        List<Entry<K, ByteBuffer>> result = new ArrayList<Entry<K, ByteBuffer>>(backendEntries.size());
+        for (Entry<K, SlabAllocator.Chunk> e : backendEntries) {
+            result.add(viewEntry(e));
+        }
+        return result;
+    }
+
+    /**
+     * @return entry of this map that presents backend entry e's chunk as a
+     *         ByteBuffer view
+     */
+    private Entry<K, ByteBuffer> viewEntry(final Entry<K, SlabAllocator.Chunk> e) {
+        return new Entry<K, ByteBuffer>() {
+            @Override
+            public K getKey() {
+                return e.getKey();
+            }
+
+            @Override
+            public ByteBuffer getValue() {
+                return view(e.getValue());
+            }
+
+            @Override
+            public double getPriority() {
+                return e.getPriority();
+            }
+        };
+    }
+
+    private class ViewIterator implements Iterator<Entry<K, ByteBuffer>> {
+        private final Iterator<Entry<K, SlabAllocator.Chunk>> backendIterator;
+
+        ViewIterator(Iterator<Entry<K, SlabAllocator.Chunk>> backendIterator) {
+            this.backendIterator = backendIterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return backendIterator.hasNext();
+        }
+
+        @Override
+        public Entry<K, ByteBuffer> next() {
+            return viewEntry(backendIterator.next());
+        }
+
+        @Override
+        public void remove() {
+            backendIterator.remove();
+            afterRemovals();
+        }
+    }
+
+}
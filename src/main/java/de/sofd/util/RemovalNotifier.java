@@ -0,0 +1,185 @@
+package de.sofd.util;
+
+import de.sofd.util.NumericPriorityMap.Entry;
+import de.sofd.util.NumericPriorityMap.RemovalListener;
+import de.sofd.util.NumericPriorityMap.RemovalReason;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Helper for NumericPriorityMap implementations that manages the registered
+ * {@link RemovalListener}s and delivers removal notifications to them.
+ * <p>
+ * The map calls {@link #enqueue(Object, Object, double, RemovalReason)} for
+ * each removed entry while it holds its lock(s), and
+ * {@link #deliverPending()} after it has released them, so listeners never
+ * run inside the map's critical sections. The pending notifications are kept
+ * per thread, so deliverPending() delivers exactly those enqueued by the
+ * calling thread, i.e. by the operation that has just released the locks,
+ * and enqueue() and deliverPending() must be called by the same thread.
+ * Listeners registered without an executor are thus called in the thread
+ * that caused the removals, before its operation returns; for listeners
+ * registered with an executor, all notifications of one deliverPending()
+ * call are handed to the executor as one batch.
+ * <p>
+ * If no listeners are registered, enqueue() doesn't do anything (not even
+ * allocate).
+ *
+ * @author olaf
+ */
+class RemovalNotifier<K, V> {
+
+    private static class Registration<K, V> {
+        final RemovalListener<K, V> listener;
+        final Executor executor;  // null == synchronous delivery
+
+        Registration(RemovalListener<K, V> listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Immutable snapshot of a removed entry.
+     */
+    private static class Notification<K, V> implements Entry<K, V> {
+        final K k;
+        final V v;
+        final double priority;
+        final RemovalReason reason;
+
+        Notification(K k, V v, double priority, RemovalReason reason) {
+            this.k = k;
+            this.v = v;
+            this.priority = priority;
+            this.reason = reason;
+        }
+
+        @Override
+        public K getKey() {
+            return k;
+        }
+
+        @Override
+        public V getValue() {
+            return v;
+        }
+
+        @Override
+        public double getPriority() {
+            return priority;
+        }
+    }
+
+    private final List<Registration<K, V>> registrations = new CopyOnWriteArrayList<Registration<K, V>>();
+    // null (rather than an empty list) while the thread has nothing pending
+    private final ThreadLocal<List<Notification<K, V>>> pending = new ThreadLocal<List<Notification<K, V>>>();
+    private volatile boolean active = false;
+
+    public synchronized void addListener(RemovalListener<K, V> listener, Executor executor) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        registrations.add(new Registration<K, V>(listener, executor));
+        active = true;
+    }
+
+    public synchronized void removeListener(RemovalListener<K, V> listener) {
+        for (Registration<K, V> r : registrations) {
+            if (r.listener == listener) {
+                registrations.remove(r);
+            }
+        }
+        active = !registrations.isEmpty();
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void enqueue(K k, V v, double priority, RemovalReason reason) {
+        if (active) {
+            List<Notification<K, V>> list = pending.get();
+            if (list == null) {
+                list = new ArrayList<Notification<K, V>>();
+                pending.set(list);
+            }
+            list.add(new Notification<K, V>(k, v, priority, reason));
+        }
+    }
+
+    /**
+     * Deliver the notifications enqueued by the calling thread.
+     */
+    public void deliverPending() {
+        List<Notification<K, V>> batch = pending.get();
+        if (batch == null) {
+            return;
+        }
+        // removed before delivering, so listeners may modify the map again
+        pending.remove();
+        deliver(batch);
+    }
+
+    /**
+     * Deliver a single notification right away, bypassing the pending queue,
+     * so the listeners without an executor have returned when this returns.
+     * For values that become invalid after their removal has been reported.
+     */
+    public void deliverNow(K k, V v, double priority, RemovalReason reason) {
+        if (active) {
+            List<Notification<K, V>> batch = new ArrayList<Notification<K, V>>(1);
+            batch.add(new Notification<K, V>(k, v, priority, reason));
+            deliver(batch);
+        }
+    }
+
+    /**
+     * If synchronous listeners throw, the rest of the batch is still delivered
+     * (so e.g. no resources that the listeners free are leaked), and the first
+     * exception is rethrown afterwards.
+     */
+    private void deliver(final List<Notification<K, V>> batch) {
+        RuntimeException firstRuntimeException = null;
+        Error firstError = null;
+        for (final Registration<K, V> r : registrations) {
+            if (r.executor == null) {
+                for (Notification<K, V> n : batch) {
+                    try {
+                        r.listener.entryRemoved(n, n.reason);
+                    } catch (RuntimeException e) {
+                        if (firstRuntimeException == null && firstError == null) {
+                            firstRuntimeException = e;
+                        }
+                    } catch (Error e) {
+                        if (firstRuntimeException == null && firstError == null) {
+                            firstError = e;
+                        }
+                    }
+                }
+            } else {
+                r.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(r.listener, batch);
+                    }
+                });
+            }
+        }
+        if (firstRuntimeException != null) {
+            throw firstRuntimeException;
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    private static <K, V> void deliver(RemovalListener<K, V> listener, List<Notification<K, V>> batch) {
+        for (Notification<K, V> n : batch) {
+            listener.entryRemoved(n, n.reason);
+        }
+    }
+
+}
@@ -0,0 +1,628 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NumericPriorityMap that splits the keys by hash over a number of
+ * independent {@link BucketedNumericPriorityMap} "shards", each with its own
+ * monitor and its own slice of the {@link #getMaxTotalCost() maxTotalCost}.
+ * Unlike {@link ConcurrentBucketedNumericPriorityMap}, whose stripes still
+ * share the eviction lock and the global bucket order, the shards share no
+ * state at all, so threads working on different shards (e.g. on different
+ * sockets of a large machine) don't touch each other's cache lines.
+ * <p>
+ * The price is that eviction is per shard: each shard evicts its own
+ * lowest-priority elements when it exceeds its budget slice, so the priority
+ * order is only kept approximately across shards. To keep it close, the
+ * {@link #rebalance() rebalancer} periodically moves budget from shards that
+ * have been evicting low-priority elements to shards that have been evicting
+ * high-priority ones, until the priorities evicted at the margin are about
+ * the same everywhere. It can run on a daemon thread (see
+ * {@link #startRebalancing(long, TimeUnit)}) or be called manually.
+ * <p>
+ * size() and getCurrentTotalCost() are sums over the shards and thus not
+ * atomic snapshots while other threads are modifying the map. The iterators
+ * merge the shards' (weakly consistent) iterators by priority, and
+ * {@link #entriesInPriorityRange(double, double)} and {@link #topK(int)} merge
+ * the shards' results. The shards can be configured individually via
+ * {@link #getShards()} (e.g. adaptive buckets or statistics), but their
+ * maxTotalCosts are managed by this map and must not be changed directly.
+ * <p>
+ * This class is thread-safe. Changes of the shards' budgets happen under this
+ * map's monitor, but the resulting removal notifications are delivered after
+ * it has been released.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ShardedNumericPriorityMap<K, V> implements NumericPriorityMap<K, V>, ExclusivelyLockable {
+
+    /**
+     * Eviction pressure of a shard since the last rebalancing, recorded by a
+     * removal listener on the shard. Guarded by its own monitor, which is
+     * never held while acquiring another lock.
+     */
+    private static class Pressure {
+        long evictionCount;
+        double evictedPrioritySum;
+
+        synchronized void record(double priority) {
+            evictionCount++;
+            evictedPrioritySum += priority;
+        }
+
+        /**
+         * @return mean priority of the elements evicted since the last call,
+         *         or NaN if there were none
+         */
+        synchronized double takeMeanEvictedPriority() {
+            double result = evictionCount == 0 ? Double.NaN : evictedPrioritySum / evictionCount;
+            evictionCount = 0;
+            evictedPrioritySum = 0;
+            return result;
+        }
+    }
+
+    /**
+     * Calls {@link #rebalance()} periodically. Only weakly references the map,
+     * so a map whose rebalancing hasn't been stopped can still be garbage
+     * collected; the rebalancer thread then terminates.
+     */
+    private static class Rebalancer implements Runnable {
+        private final WeakReference<ShardedNumericPriorityMap<?, ?>> mapRef;
+        private final ScheduledExecutorService executor;
+
+        Rebalancer(ShardedNumericPriorityMap<?, ?> map, ScheduledExecutorService executor) {
+            this.mapRef = new WeakReference<ShardedNumericPriorityMap<?, ?>>(map);
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            ShardedNumericPriorityMap<?, ?> map = mapRef.get();
+            if (map == null) {
+                executor.shutdown();
+            } else {
+                map.rebalance();
+            }
+        }
+    }
+
+    private static final ThreadFactory REBALANCER_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShardedNumericPriorityMap rebalancer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * Fraction of its slice a donor shard gives away per rebalancing, by default.
+     */
+    private static final double DEFAULT_REBALANCE_STEP = 0.1;
+
+    /**
+     * No shard's slice is shrunk below this fraction of an even share.
+     */
+    private static final double MIN_SLICE_FRACTION = 0.25;
+
+    private final BucketedNumericPriorityMap<K, V>[] shards;
+    private final Pressure[] pressures;
+    private double maxTotalCost;
+    private double rebalanceStep = DEFAULT_REBALANCE_STEP;
+    private long rebalanceCount = 0;
+    private ScheduledExecutorService rebalancer;
+
+    /**
+     * Creates a map whose shards are
+     * {@link BucketedNumericPriorityMap#BucketedNumericPriorityMap(double, double, int, double, Function1)
+     * BucketedNumericPriorityMap(lowPrio, highPrio, nBuckets, maxTotalCost / nShards, elementCostFunction)}.
+     *
+     * @param nShards
+     *            number of shards, e.g. the number of cores that access the
+     *            map concurrently
+     * @param maxTotalCost
+     *            the total budget of all shards; &lt; 0 == unlimited
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedNumericPriorityMap(int nShards, double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<V, Double> elementCostFunction) {
+        if (nShards <= 0) {
+            throw new IllegalArgumentException("invalid nShards: " + nShards);
+        }
+        this.maxTotalCost = maxTotalCost;
+        shards = (BucketedNumericPriorityMap<K, V>[]) new BucketedNumericPriorityMap<?, ?>[nShards];
+        pressures = new Pressure[nShards];
+        for (int i = 0; i < nShards; i++) {
+            shards[i] = new BucketedNumericPriorityMap<K, V>(lowPrio, highPrio, nBuckets,
+                    maxTotalCost < 0 ? -1 : maxTotalCost / nShards, elementCostFunction);
+            final Pressure pressure = pressures[i] = new Pressure();
+            shards[i].addRemovalListener(new RemovalListener<K, V>() {
+                @Override
+                public void entryRemoved(Entry<K, V> entry, RemovalReason reason) {
+                    if (reason == RemovalReason.EVICTED) {
+                        pressure.record(entry.getPriority());
+                    }
+                }
+            });
+        }
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private BucketedNumericPriorityMap<K, V> shard(K k) {
+        return shards[(spread(k.hashCode()) & 0x7fffffff) % shards.length];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the shards, for configuring them and looking at their
+     *         statistics. Their maxTotalCosts must not be changed.
+     */
+    public List<BucketedNumericPriorityMap<K, V>> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * @return the shard that k belongs to
+     */
+    public BucketedNumericPriorityMap<K, V> getShardFor(K k) {
+        return shard(k);
+    }
+
+    @Override
+    public V put(K k, V v, double priority) {
+        return shard(k).put(k, v, priority);
+    }
+
+    @Override
+    public V get(K k) {
+        return shard(k).get(k);
+    }
+
+    @Override
+    public V remove(K k) {
+        return shard(k).remove(k);
+    }
+
+    @Override
+    public boolean contains(K k) {
+        return shard(k).contains(k);
+    }
+
+    @Override
+    public void setPriority(K k, double priority) {
+        shard(k).setPriority(k, priority);
+    }
+
+    @Override
+    public void setPriorities(Map<K, Double> priorities) {
+        Map<BucketedNumericPriorityMap<K, V>, Map<K, Double>> byShard = new HashMap<BucketedNumericPriorityMap<K, V>, Map<K, Double>>();
+        for (Map.Entry<K, Double> pe : priorities.entrySet()) {
+            BucketedNumericPriorityMap<K, V> shard = shard(pe.getKey());
+            Map<K, Double> shardPriorities = byShard.get(shard);
+            if (shardPriorities == null) {
+                shardPriorities = new HashMap<K, Double>();
+                byShard.put(shard, shardPriorities);
+            }
+            shardPriorities.put(pe.getKey(), pe.getValue());
+        }
+        for (Map.Entry<BucketedNumericPriorityMap<K, V>, Map<K, Double>> se : byShard.entrySet()) {
+            se.getKey().setPriorities(se.getValue());
+        }
+    }
+
+    @Override
+    public void reprioritize(Function1<K, Double> priorityFunction) {
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            shard.reprioritize(priorityFunction);
+        }
+    }
+
+    @Override
+    public void updateCost(K k) {
+        shard(k).updateCost(k);
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            result += shard.size();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double getCurrentTotalCost() {
+        double result = 0;
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            result += shard.getCurrentTotalCost();
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    /**
+     * Changes the total budget. The shards' slices are scaled proportionally,
+     * so the result of previous rebalancings is kept; if there was no limit
+     * before, the budget is split evenly.
+     */
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        synchronized (this) {
+            double oldMaxTotalCost = this.maxTotalCost;
+            this.maxTotalCost = maxTotalCost;
+            for (BucketedNumericPriorityMap<K, V> shard : shards) {
+                if (maxTotalCost < 0) {
+                    shard.setMaxTotalCostDeferred(-1);
+                } else if (oldMaxTotalCost <= 0) {
+                    shard.setMaxTotalCostDeferred(maxTotalCost / shards.length);
+                } else {
+                    shard.setMaxTotalCostDeferred(shard.getMaxTotalCost() * maxTotalCost / oldMaxTotalCost);
+                }
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            deliverResizeRemovals(i);
+        }
+    }
+
+    /**
+     * Deliver the notifications of the evictions caused by resizing shard i,
+     * which the pressure listener records but which aren't pressure.
+     */
+    private void deliverResizeRemovals(int i) {
+        shards[i].deliverPendingRemovals();
+        pressures[i].takeMeanEvictedPriority();
+    }
+
+    @Override
+    public Function1<V, Double> getElementCostFunction() {
+        return shards[0].getElementCostFunction();
+    }
+
+    @Override
+    public boolean isReverseEviction() {
+        return shards[0].isReverseEviction();
+    }
+
+    @Override
+    public synchronized void setReverseEviction(boolean reverseEviction) {
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            shard.setReverseEviction(reverseEviction);
+        }
+    }
+
+    /**
+     * The listener is added to each shard; it's called by the thread that
+     * modified the shard, after the shard's monitor has been released.
+     */
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener) {
+        addRemovalListener(listener, null);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener, Executor executor) {
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            shard.addRemovalListener(listener, executor);
+        }
+    }
+
+    @Override
+    public void removeRemovalListener(RemovalListener<K, V> listener) {
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            shard.removeRemovalListener(listener);
+        }
+    }
+
+    public synchronized double getRebalanceStep() {
+        return rebalanceStep;
+    }
+
+    /**
+     * @param rebalanceStep
+     *            fraction of its budget slice a shard under little eviction
+     *            pressure gives away per {@link #rebalance()} (default: 0.1)
+     */
+    public synchronized void setRebalanceStep(double rebalanceStep) {
+        if (!(rebalanceStep > 0 && rebalanceStep < 1)) {
+            throw new IllegalArgumentException("invalid rebalanceStep: " + rebalanceStep);
+        }
+        this.rebalanceStep = rebalanceStep;
+    }
+
+    /**
+     * @return number of rebalancings that moved budget between shards so far
+     */
+    public synchronized long getRebalanceCount() {
+        return rebalanceCount;
+    }
+
+    /**
+     * Move budget between the shards according to their eviction pressure
+     * since the last call. A shard's marginal value is the mean priority of the
+     * elements it has evicted in that time (negated for reverse eviction);
+     * shards that haven't evicted anything have the lowest marginal value.
+     * Every shard below the mean marginal value of the evicting shards gives
+     * away {@link #getRebalanceStep() rebalanceStep} of its slice (but keeps at
+     * least a quarter of an even share), and the evicting shards at or above
+     * the mean split the freed budget evenly. The donors shrink first, so the total budget
+     * is never exceeded. Takes O(nShards).
+     */
+    public void rebalance() {
+        boolean[] donors = new boolean[shards.length];
+        rebalance(donors);
+        for (int i = 0; i < shards.length; i++) {
+            if (donors[i]) {
+                deliverResizeRemovals(i);
+            }
+        }
+    }
+
+    /**
+     * @param donors
+     *            set to true for the shards that have been shrunk
+     */
+    private synchronized void rebalance(boolean[] donors) {
+        int n = shards.length;
+        double[] values = new double[n];
+        double valueSum = 0;
+        int nEvicting = 0;
+        boolean reverse = isReverseEviction();
+        for (int i = 0; i < n; i++) {
+            double mean = pressures[i].takeMeanEvictedPriority();
+            if (Double.isNaN(mean)) {
+                values[i] = Double.NEGATIVE_INFINITY;
+            } else {
+                values[i] = reverse ? -mean : mean;
+                valueSum += values[i];
+                nEvicting++;
+            }
+        }
+        if (maxTotalCost < 0 || n == 1 || nEvicting == 0) {
+            return;
+        }
+        double meanValue = valueSum / nEvicting;
+        double minSlice = MIN_SLICE_FRACTION * maxTotalCost / n;
+        double freed = 0;
+        int nReceivers = 0;
+        for (int i = 0; i < n; i++) {
+            if (values[i] >= meanValue) {
+                nReceivers++;
+            } else {
+                double slice = shards[i].getMaxTotalCost();
+                double newSlice = Math.max(minSlice, slice * (1 - rebalanceStep));
+                if (newSlice < slice) {
+                    shards[i].setMaxTotalCostDeferred(newSlice);
+                    donors[i] = true;
+                    freed += slice - newSlice;
+                }
+            }
+        }
+        if (freed == 0) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (values[i] >= meanValue) {
+                shards[i].setMaxTotalCostDeferred(shards[i].getMaxTotalCost() + freed / nReceivers);
+            }
+        }
+        rebalanceCount++;
+    }
+
+    /**
+     * Call {@link #rebalance()} periodically on a daemon thread. Doesn't do
+     * anything if already started. The thread doesn't keep the map from being
+     * garbage collected, and terminates after it has been.
+     */
+    public synchronized void startRebalancing(long period, TimeUnit unit) {
+        if (rebalancer != null) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(REBALANCER_THREAD_FACTORY);
+        rebalancer.scheduleWithFixedDelay(new Rebalancer(this, rebalancer), period, period, unit);
+    }
+
+    public synchronized void stopRebalancing() {
+        if (rebalancer == null) {
+            return;
+        }
+        rebalancer.shutdown();
+        rebalancer = null;
+    }
+
+    public synchronized boolean isRebalancing() {
+        return rebalancer != null;
+    }
+
+    /**
+     * Runs action with the monitors of all shards held (acquired in index
+     * order).
+     */
+    @Override
+    public void runExclusively(Runnable action) {
+        runWithShardsLocked(0, action);
+    }
+
+    private void runWithShardsLocked(int i, Runnable action) {
+        if (i == shards.length) {
+            action.run();
+        } else {
+            synchronized (shards[i]) {
+                runWithShardsLocked(i + 1, action);
+            }
+        }
+    }
+
+    /**
+     * Merges the shards' iterators by the priorities of their next elements.
+     * Since the shards order their elements only by bucket, so is the merged
+     * sequence. remove() removes the last returned element's key.
+     */
+    private class MergingIterator implements Iterator<Entry<K, V>> {
+
+        private class Head {
+            final Iterator<Entry<K, V>> it;
+            Entry<K, V> e;
+            double priority;  // priority of e when it was fetched
+
+            Head(Iterator<Entry<K, V>> it) {
+                this.it = it;
+            }
+
+            boolean advance() {
+                if (!it.hasNext()) {
+                    return false;
+                }
+                e = it.next();
+                priority = e.getPriority();
+                return true;
+            }
+        }
+
+        private final PriorityQueue<Head> heads;
+        private Entry<K, V> lastReturned;
+
+        MergingIterator(final boolean reverse) {
+            heads = new PriorityQueue<Head>(shards.length, new Comparator<Head>() {
+                @Override
+                public int compare(Head h1, Head h2) {
+                    return reverse ? Double.compare(h2.priority, h1.priority) : Double.compare(h1.priority, h2.priority);
+                }
+            });
+            for (BucketedNumericPriorityMap<K, V> shard : shards) {
+                Head h = new Head(reverse ? shard.reverseEntryIterator() : shard.entryIterator());
+                if (h.advance()) {
+                    heads.add(h);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            Head h = heads.poll();
+            if (h == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = h.e;
+            if (h.advance()) {
+                heads.add(h);
+            }
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            ShardedNumericPriorityMap.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new MergingIterator(false);
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> reverseEntryIterator() {
+        return new MergingIterator(true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Entry> ASCENDING_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e1.getPriority(), e2.getPriority());
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    private static final Comparator<Entry> DESCENDING_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e2.getPriority(), e1.getPriority());
+        }
+    };
+
+    /**
+     * {@inheritDoc} Concatenates the shards' results and sorts them by
+     * priority. Not an atomic snapshot across shards.
+     */
+    @Override
+    public List<Entry<K, V>> entriesInPriorityRange(double lo, double hi) {
+        List<Entry<K, V>> result = new ArrayList<Entry<K, V>>();
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            result.addAll(shard.entriesInPriorityRange(lo, hi));
+        }
+        Collections.sort(result, ASCENDING_PRIORITY);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc} Merges the shards' top k. Not an atomic snapshot across
+     * shards.
+     */
+    @Override
+    public List<Entry<K, V>> topK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("invalid k: " + k);
+        }
+        List<Entry<K, V>> candidates = new ArrayList<Entry<K, V>>();
+        for (BucketedNumericPriorityMap<K, V> shard : shards) {
+            candidates.addAll(shard.topK(k));
+        }
+        Collections.sort(candidates, DESCENDING_PRIORITY);
+        return new ArrayList<Entry<K, V>>(candidates.subList(0, Math.min(k, candidates.size())));
+    }
+
+}
@@ -0,0 +1,231 @@
+package de.sofd.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A maximum total cost that is shared by several
+ * {@link BucketedNumericPriorityMap}s (e.g. one cache per viewer tab), so the
+ * memory isn't statically partitioned between them but flows to the maps that
+ * are currently in use.
+ * <p>
+ * Whenever the sum of the members' total costs exceeds the budget's
+ * {@link #getMaxTotalCost() maxTotalCost} after a put() or updateCost() on one
+ * of them, elements are evicted across all members in global priority order:
+ * each time, the next eviction candidate of every member is looked at, and the
+ * one with the lowest weighted priority (priority * weight of its map) is
+ * evicted, until the total fits into the budget again. As within a single
+ * map, this ordering is bucket-granular. A weight &gt; 1 makes a map's elements
+ * look more valuable than those of the other maps (the weights assume
+ * non-negative priorities). All members must use the same eviction direction;
+ * with {@link NumericPriorityMap#isReverseEviction() reverse eviction}, the
+ * element with the highest priority / weight is evicted first, so again a
+ * weight &gt; 1 favors a map.
+ * <p>
+ * The members' own maxTotalCosts stay in effect in addition to the budget;
+ * set them to -1 to let the budget alone govern the maps, or use them as
+ * per-map caps. Evicted elements are reported to the maps' removal listeners
+ * as {@link NumericPriorityMap.RemovalReason#EVICTED}, and counted in their
+ * statistics. Like the maps themselves, the budget keeps at least one element
+ * in total.
+ * <p>
+ * This class is thread-safe. The maps call into the budget after they have
+ * released their own monitors, and the budget then locks one map at a time,
+ * so there's no lock ordering issue between members. Victims are chosen under
+ * the budget's monitor but evicted after releasing it, so removal listeners
+ * never run with the budget locked and may call back into it.
+ *
+ * @author olaf
+ */
+public class SharedCostBudget {
+
+    private static class Member {
+        final BucketedNumericPriorityMap<?, ?> map;
+        double weight;
+
+        Member(BucketedNumericPriorityMap<?, ?> map, double weight) {
+            this.map = map;
+            this.weight = weight;
+        }
+    }
+
+    private final List<Member> members = new ArrayList<Member>();
+    private double maxTotalCost;
+    private long evictionCount = 0;
+
+    /**
+     * @param maxTotalCost
+     *            the budget, i.e. the maximum sum of the members' total costs
+     */
+    public SharedCostBudget(double maxTotalCost) {
+        if (maxTotalCost < 0) {
+            throw new IllegalArgumentException("invalid maxTotalCost: " + maxTotalCost);
+        }
+        this.maxTotalCost = maxTotalCost;
+    }
+
+    /**
+     * Register map with weight 1.
+     */
+    public void register(BucketedNumericPriorityMap<?, ?> map) {
+        register(map, 1);
+    }
+
+    /**
+     * Add map to the budget (or change its weight if it's already a member),
+     * evicting elements right away if the total cost exceeds the budget
+     * afterwards.
+     *
+     * @param map
+     *            must not be a member of another budget, and must use the same
+     *            eviction direction as the other members
+     * @param weight
+     *            &gt; 0
+     */
+    public void register(BucketedNumericPriorityMap<?, ?> map, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("invalid weight: " + weight);
+        }
+        synchronized (this) {
+            Member m = findMember(map);
+            if (m != null) {
+                m.weight = weight;
+            } else {
+                if (!members.isEmpty() && members.get(0).map.isReverseEviction() != map.isReverseEviction()) {
+                    throw new IllegalArgumentException("eviction direction differs from the other members'");
+                }
+                if (!map.setSharedCostBudget(this)) {
+                    throw new IllegalArgumentException("map is already a member of another budget");
+                }
+                members.add(new Member(map, weight));
+            }
+        }
+        evictExcessElements();
+    }
+
+    /**
+     * Remove map from the budget. Its own maxTotalCost stays in effect.
+     */
+    public synchronized void unregister(BucketedNumericPriorityMap<?, ?> map) {
+        Member m = findMember(map);
+        if (m != null) {
+            members.remove(m);
+            map.clearSharedCostBudget(this);
+        }
+    }
+
+    private Member findMember(BucketedNumericPriorityMap<?, ?> map) {
+        for (Member m : members) {
+            if (m.map == map) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the registered maps
+     */
+    public synchronized List<BucketedNumericPriorityMap<?, ?>> getMembers() {
+        List<BucketedNumericPriorityMap<?, ?>> result = new ArrayList<BucketedNumericPriorityMap<?, ?>>(members.size());
+        for (Member m : members) {
+            result.add(m.map);
+        }
+        return result;
+    }
+
+    /**
+     * @return map's weight, or NaN if it isn't a member
+     */
+    public synchronized double getWeight(BucketedNumericPriorityMap<?, ?> map) {
+        Member m = findMember(map);
+        return m == null ? Double.NaN : m.weight;
+    }
+
+    public synchronized double getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    /**
+     * Change the budget, evicting elements right away if it has been lowered
+     * below the current total cost.
+     */
+    public void setMaxTotalCost(double maxTotalCost) {
+        if (maxTotalCost < 0) {
+            throw new IllegalArgumentException("invalid maxTotalCost: " + maxTotalCost);
+        }
+        synchronized (this) {
+            this.maxTotalCost = maxTotalCost;
+        }
+        evictExcessElements();
+    }
+
+    /**
+     * @return the sum of the members' total costs. Not an atomic snapshot
+     *         while the members are being modified.
+     */
+    public synchronized double getCurrentTotalCost() {
+        double result = 0;
+        for (Member m : members) {
+            result += m.map.getCurrentTotalCost();
+        }
+        return result;
+    }
+
+    /**
+     * @return number of elements evicted by the budget (rather than by the
+     *         members' own maxTotalCosts) so far
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Evict elements from the members in global priority order until their
+     * total cost fits into the budget. Called by the members after they have
+     * grown; there's normally no need to call this manually.
+     */
+    public void evictExcessElements() {
+        while (true) {
+            Member victimMember = null;
+            NumericPriorityMap.Entry<?, ?> victim = null;
+            synchronized (this) {
+                double total = 0;
+                int size = 0;
+                for (Member m : members) {
+                    total += m.map.getCurrentTotalCost();
+                    size += m.map.size();
+                }
+                if (total <= maxTotalCost || size <= 1) {
+                    return;
+                }
+                double victimRank = 0;
+                for (Member m : members) {
+                    NumericPriorityMap.Entry<?, ?> e = m.map.peekEvictionCandidate();
+                    if (e == null) {
+                        continue;
+                    }
+                    // rank: lower == evicted earlier
+                    double priority = m.map.effectivePriority(e);
+                    double rank = m.map.isReverseEviction() ? -priority / m.weight : priority * m.weight;
+                    if (victim == null || rank < victimRank) {
+                        victimMember = m;
+                        victim = e;
+                        victimRank = rank;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+            }
+            // evictIfCurrent() fails if the victim was removed or replaced
+            // meanwhile; the next round then looks again
+            if (victimMember.map.evictIfCurrent(victim)) {
+                synchronized (this) {
+                    evictionCount++;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package de.sofd.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocator that hands out chunks of direct (off-heap) memory carved from
+ * large, fixed-size "slabs".
+ * <p>
+ * Requested sizes are rounded up to a size class. The size classes are
+ * minChunkSize, 1.5*minChunkSize, 2*minChunkSize, 3*minChunkSize,
+ * 4*minChunkSize, ... up to slabSize, so at most a third of a chunk is wasted.
+ * Each slab is dedicated to one size class while it's in use. Freed chunks go
+ * back to their slab and are recycled for the next allocation of the same
+ * size class; a slab whose chunks have all been freed goes back to a pool of
+ * empty slabs and may then be re-dedicated to any size class. Slab memory is
+ * never given back to the JVM, except via {@link #trimEmptySlabs()}.
+ * <p>
+ * Requests larger than slabSize get a dedicated direct buffer of their own,
+ * which is just dropped (left to the GC) when it's freed.
+ * <p>
+ * Subclasses may take the slab memory from somewhere else by overriding
+ * {@link #allocateSlab(int)} and {@link #allocateOversized(int)} (see
+ * {@link MappedFileSlabAllocator}).
+ * <p>
+ * This class is synchronized.
+ *
+ * @author olaf
+ */
+public class SlabAllocator {
+
+    /**
+     * A piece of memory handed out by the allocator.
+     */
+    public static final class Chunk {
+        private final Slab slab;     // null for oversized chunks
+        private final ByteBuffer mem;
+        private final int offset;
+        private final int capacity;
+        private int length;
+        private boolean free;
+
+        Chunk(Slab slab, ByteBuffer mem, int offset, int capacity) {
+            this.slab = slab;
+            this.mem = mem;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the size class of this chunk, i.e. the number of bytes it
+         *         actually occupies
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return the number of bytes stored in this chunk
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return new read/write buffer covering the stored bytes (position 0,
+         *         limit {@link #getLength()}), big-endian
+         */
+        public ByteBuffer buffer() {
+            ByteBuffer result = mem.duplicate();
+            result.limit(offset + length);
+            result.position(offset);
+            return result.slice();
+        }
+
+        /**
+         * Set the chunk's contents to the remaining bytes of src (without
+         * changing src's position).
+         */
+        public void store(ByteBuffer src) {
+            if (src.remaining() > capacity) {
+                throw new IllegalArgumentException("chunk too small");
+            }
+            ByteBuffer dst = mem.duplicate();
+            dst.position(offset);
+            dst.put(src.duplicate());
+            length = src.remaining();
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer mem;
+        int sizeClass = -1;
+        int chunkSize;
+        int[] freeOffsets;
+        int nFree;
+        int nChunks;
+
+        Slab(ByteBuffer mem) {
+            this.mem = mem;
+        }
+
+        void dedicate(int sizeClass, int chunkSize) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = chunkSize;
+            nChunks = mem.capacity() / chunkSize;
+            if (freeOffsets == null || freeOffsets.length < nChunks) {
+                freeOffsets = new int[nChunks];
+            }
+            // hand out low offsets first
+            for (int i = 0; i < nChunks; i++) {
+                freeOffsets[i] = (nChunks - 1 - i) * chunkSize;
+            }
+            nFree = nChunks;
+        }
+    }
+
+    private final int slabSize;
+    private final int[] sizeClasses;
+    private final List<List<Slab>> partialSlabs;  // per size class: slabs that have free chunks
+    private final List<Slab> emptySlabs = new ArrayList<Slab>();
+    private int nSlabs;
+    private long allocatedBytes;
+
+    /**
+     * @param slabSize
+     *            size of a slab in bytes
+     * @param minChunkSize
+     *            smallest size class in bytes
+     */
+    public SlabAllocator(int slabSize, int minChunkSize) {
+        if (minChunkSize <= 0 || slabSize < minChunkSize) {
+            throw new IllegalArgumentException();
+        }
+        this.slabSize = slabSize;
+        List<Integer> classes = new ArrayList<Integer>();
+        for (long s = minChunkSize; s <= slabSize; s *= 2) {
+            classes.add((int) s);
+            long s15 = s + s / 2;
+            if (s15 <= slabSize && s15 > s) {
+                classes.add((int) s15);
+            }
+        }
+        sizeClasses = new int[classes.size()];
+        partialSlabs = new ArrayList<List<Slab>>(classes.size());
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = classes.get(i);
+            partialSlabs.add(new ArrayList<Slab>());
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return index of the smallest size class >= size, or -1 if size >
+     *         slabSize
+     */
+    private int sizeClassFor(int size) {
+        int lo = 0, hi = sizeClasses.length - 1;
+        if (size > sizeClasses[hi]) {
+            return -1;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sizeClasses[mid] < size) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return number of bytes a chunk for size bytes would occupy
+     */
+    public int chunkSizeFor(int size) {
+        int sc = sizeClassFor(size);
+        return sc == -1 ? size : sizeClasses[sc];
+    }
+
+    public synchronized Chunk allocate(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException();
+        }
+        int sc = sizeClassFor(size);
+        if (sc == -1) {
+            allocatedBytes += size;
+            return new Chunk(null, allocateOversized(size), 0, size);
+        }
+        List<Slab> partials = partialSlabs.get(sc);
+        Slab slab;
+        if (!partials.isEmpty()) {
+            slab = partials.get(partials.size() - 1);
+        } else {
+            if (!emptySlabs.isEmpty()) {
+                slab = emptySlabs.remove(emptySlabs.size() - 1);
+            } else {
+                slab = new Slab(allocateSlab(slabSize));
+                nSlabs++;
+            }
+            slab.dedicate(sc, sizeClasses[sc]);
+            partials.add(slab);
+        }
+        int offset = slab.freeOffsets[--slab.nFree];
+        if (slab.nFree == 0) {
+            partials.remove(partials.size() - 1);
+        }
+        allocatedBytes += slab.chunkSize;
+        return new Chunk(slab, slab.mem, offset, slab.chunkSize);
+    }
+
+    /**
+     * Provide the memory for a new slab. The default implementation allocates
+     * a direct buffer.
+     */
+    protected ByteBuffer allocateSlab(int slabSize) {
+        return ByteBuffer.allocateDirect(slabSize);
+    }
+
+    /**
+     * Provide the memory for a chunk that's larger than the slab size. The
+     * default implementation allocates a direct buffer.
+     */
+    protected ByteBuffer allocateOversized(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    public synchronized void free(Chunk c) {
+        if (c.free) {
+            throw new IllegalStateException("chunk freed twice");
+        }
+        c.free = true;
+        allocatedBytes -= c.capacity;
+        Slab slab = c.slab;
+        if (slab == null) {
+            return;
+        }
+        slab.freeOffsets[slab.nFree++] = c.offset;
+        List<Slab> partials = partialSlabs.get(slab.sizeClass);
+        if (slab.nFree == slab.nChunks) {
+            if (slab.nFree > 1) {
+                partials.remove(slab);
+            }
+            slab.sizeClass = -1;
+            emptySlabs.add(slab);
+        } else if (slab.nFree == 1) {
+            partials.add(slab);
+        }
+    }
+
+    /**
+     * Drop all currently empty slabs, so their memory can be reclaimed by the
+     * GC.
+     */
+    public synchronized void trimEmptySlabs() {
+        nSlabs -= emptySlabs.size();
+        emptySlabs.clear();
+    }
+
+    /**
+     * @return total size of all chunks currently allocated (including oversized
+     *         ones)
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return amount of direct memory held in slabs (in use or not)
+     */
+    public synchronized long getSlabMemory() {
+        return (long) nSlabs * slabSize;
+    }
+
+}
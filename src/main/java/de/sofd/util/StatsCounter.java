@@ -0,0 +1,118 @@
+package de.sofd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hit/miss/put/eviction counters of a NumericPriorityMap.
+ * <p>
+ * The counters are striped by thread, i.e. each thread increments one of
+ * several cells (chosen by thread id), and the cells are only summed up when
+ * the counters are read. So threads that do lock-free lookups at the same time
+ * (see {@link ConcurrentBucketedNumericPriorityMap#get(Object)}) don't all
+ * contend for the same cache line. Evictions are counted per bucket; the
+ * eviction counters aren't striped because evictions are serialized by the
+ * maps anyway.
+ * <p>
+ * Package-private; see {@link MonitoredNumericPriorityMap} for the public API.
+ *
+ * @author olaf
+ */
+final class StatsCounter {
+
+    private static final int HITS = 0, MISSES = 1, PUTS = 2;
+
+    /**
+     * Distance between the cells of two stripes, in longs. 16 longs == 128
+     * bytes, so no two stripes share a cache line (or a pair of adjacent ones,
+     * which some CPUs prefetch together).
+     */
+    private static final int STRIPE_SPACING = 16;
+
+    private final AtomicLongArray cells;
+    private final int stripeMask;
+    private final AtomicLongArray evictionsPerBucket;
+    private final AtomicLong evictedCostBits = new AtomicLong(Double.doubleToLongBits(0));
+
+    StatsCounter(int nBuckets) {
+        int nStripes = 1;
+        while (nStripes < 2 * Runtime.getRuntime().availableProcessors() && nStripes < 64) {
+            nStripes <<= 1;
+        }
+        stripeMask = nStripes - 1;
+        cells = new AtomicLongArray(nStripes * STRIPE_SPACING);
+        evictionsPerBucket = new AtomicLongArray(nBuckets);
+    }
+
+    private int stripeBase() {
+        return ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_SPACING;
+    }
+
+    void recordHit() {
+        cells.incrementAndGet(stripeBase() + HITS);
+    }
+
+    void recordMiss() {
+        cells.incrementAndGet(stripeBase() + MISSES);
+    }
+
+    void recordPut() {
+        cells.incrementAndGet(stripeBase() + PUTS);
+    }
+
+    void recordEviction(int bucketNr, double cost) {
+        evictionsPerBucket.incrementAndGet(bucketNr);
+        while (true) {
+            long bits = evictedCostBits.get();
+            long newBits = Double.doubleToLongBits(Double.longBitsToDouble(bits) + cost);
+            if (evictedCostBits.compareAndSet(bits, newBits)) {
+                return;
+            }
+        }
+    }
+
+    private long sum(int counter) {
+        long result = 0;
+        for (int i = counter; i < cells.length(); i += STRIPE_SPACING) {
+            result += cells.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Create a snapshot of the counters, combined with the given current
+     * state of the map.
+     */
+    NumericPriorityMapStatistics snapshot(int size, double currentTotalCost, double maxTotalCost, double[] costPerBucket) {
+        long[] evictions = new long[evictionsPerBucket.length()];
+        for (int i = 0; i < evictions.length; i++) {
+            evictions[i] = evictionsPerBucket.get(i);
+        }
+        return new NumericPriorityMapStatistics(sum(HITS), sum(MISSES), sum(PUTS), evictions,
+                Double.longBitsToDouble(evictedCostBits.get()), size, currentTotalCost, maxTotalCost, costPerBucket);
+    }
+
+    /**
+     * Snapshot of the counters alone, see
+     * {@link MonitoredNumericPriorityMap#getCounters()}.
+     */
+    NumericPriorityMapStatistics counters() {
+        return snapshot(0, 0, 0, new double[0]);
+    }
+
+    /**
+     * {@link #counters()} for a map whose statistics are disabled.
+     */
+    static NumericPriorityMapStatistics emptyCounters(int nBuckets) {
+        return new NumericPriorityMapStatistics(0, 0, 0, new long[nBuckets], 0, 0, 0, 0, new double[0]);
+    }
+
+    /**
+     * Snapshot for a map whose statistics are disabled: all counters are zero.
+     */
+    static NumericPriorityMapStatistics emptySnapshot(int size, double currentTotalCost, double maxTotalCost, double[] costPerBucket) {
+        return new NumericPriorityMapStatistics(0, 0, 0, new long[costPerBucket.length], 0, size,
+                currentTotalCost, maxTotalCost, costPerBucket);
+    }
+
+}
@@ -0,0 +1,351 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * NumericPriorityMap that spills elements evicted from a (heap) tier into a
+ * second, byte-oriented tier -- typically an {@link OffHeapNumericPriorityMap}
+ * backed by a {@link MappedFileSlabAllocator}, i.e. a file on local disk --
+ * instead of dropping them. A subsequent get() of a spilled element decodes
+ * it and promotes it back into the heap tier, with its old priority.
+ * <p>
+ * Values are converted to/from bytes by a {@link Codec}. The spill tier's
+ * bytes are decoded in place (from the mapped file region in the disk case),
+ * without copying them into a Java buffer first.
+ * <p>
+ * Each element lives in exactly one of the tiers. size() and contains() cover
+ * both tiers; the cost functions, total costs and iterators are those of the
+ * heap tier. The spill tier does its own eviction according to its own max.
+ * total cost; elements evicted from it (or too large for it) are reported to
+ * the removal listeners as {@link RemovalReason#EVICTED}. Moving an element
+ * between the tiers is not reported.
+ * <p>
+ * Both tiers should not be accessed directly anymore after they've been
+ * passed to this map. This class is thread-safe.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class TwoTierNumericPriorityMap<K, V> implements NumericPriorityMap<K, V> {
+
+    /**
+     * Conversion of values to bytes and back.
+     */
+    public interface Codec<V> {
+        ByteBuffer encode(V v);
+
+        /**
+         * @param bytes
+         *            read-only view of the encoded value. Only valid during
+         *            the call.
+         */
+        V decode(ByteBuffer bytes);
+    }
+
+    private final NumericPriorityMap<K, V> heapTier;
+    private final OffHeapNumericPriorityMap<K> spillTier;
+    private final Codec<V> codec;
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<K, V>();
+
+    private long spillCount = 0;
+    private long promotionCount = 0;
+
+    public TwoTierNumericPriorityMap(NumericPriorityMap<K, V> heapTier, OffHeapNumericPriorityMap<K> spillTier, final Codec<V> codec) {
+        this.heapTier = heapTier;
+        this.spillTier = spillTier;
+        this.codec = codec;
+        heapTier.addRemovalListener(new RemovalListener<K, V>() {
+            @Override
+            public void entryRemoved(Entry<K, V> entry, RemovalReason reason) {
+                if (reason == RemovalReason.EVICTED) {
+                    spill(entry);
+                } else {
+                    removalNotifier.enqueue(entry.getKey(), entry.getValue(), entry.getPriority(), reason);
+                }
+                deliverIfOutsideOperation();
+            }
+        });
+        spillTier.addRemovalListener(new RemovalListener<K, ByteBuffer>() {
+            @Override
+            public void entryRemoved(Entry<K, ByteBuffer> entry, RemovalReason reason) {
+                // REMOVED only happens through our own promotions/removals,
+                // which are reported (if at all) by the caller
+                if (reason == RemovalReason.EVICTED) {
+                    V v = removalNotifier.isActive() ? codec.decode(entry.getValue()) : null;
+                    removalNotifier.enqueue(entry.getKey(), v, entry.getPriority(), reason);
+                }
+                deliverIfOutsideOperation();
+            }
+        });
+    }
+
+    /**
+     * Called by the tier listeners after enqueueing. Normally they run within
+     * one of our operations, which delivers the notifications after releasing
+     * the monitor; but a tier may also remove elements on its own (e.g. via
+     * asynchronous eviction, or when it's used directly), and then nobody else
+     * would deliver them in this thread.
+     */
+    private void deliverIfOutsideOperation() {
+        if (!Thread.holdsLock(this)) {
+            removalNotifier.deliverPending();
+        }
+    }
+
+    public NumericPriorityMap<K, V> getHeapTier() {
+        return heapTier;
+    }
+
+    public OffHeapNumericPriorityMap<K> getSpillTier() {
+        return spillTier;
+    }
+
+    private void spill(Entry<K, V> entry) {
+        synchronized (this) {
+            ByteBuffer bytes = codec.encode(entry.getValue());
+            if (bytes.remaining() > spillTier.getAllocator().getSlabSize() || heapTier.contains(entry.getKey())) {
+                removalNotifier.enqueue(entry.getKey(), entry.getValue(), entry.getPriority(), RemovalReason.EVICTED);
+                return;
+            }
+            spillTier.put(entry.getKey(), bytes, entry.getPriority());
+            spillCount++;
+        }
+    }
+
+    /**
+     * @return number of elements that have been moved from the heap tier to
+     *         the spill tier so far
+     */
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return number of elements that have been moved from the spill tier back
+     *         to the heap tier so far
+     */
+    public synchronized long getPromotionCount() {
+        return promotionCount;
+    }
+
+    /**
+     * Removes k from the spill tier without notifying anyone.
+     *
+     * @return the decoded value, or null if k wasn't in the spill tier
+     */
+    private V takeFromSpillTier(K k) {
+        ByteBuffer bytes = spillTier.remove(k);
+        return bytes == null ? null : codec.decode(bytes);
+    }
+
+    @Override
+    public V put(K k, V v, double priority) {
+        V result;
+        synchronized (this) {
+            // take k out of the spill tier first -- the heap tier put may spill
+            // other elements, which might evict k from the spill tier
+            double oldPriority = spillTier.getPriority(k);
+            V spilled = takeFromSpillTier(k);
+            result = heapTier.put(k, v, priority);
+            if (spilled != null) {
+                result = spilled;
+                removalNotifier.enqueue(k, spilled, oldPriority, RemovalReason.REPLACED);
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    /**
+     * Gets k from the heap tier, or from the spill tier, in which case it is
+     * promoted into the heap tier.
+     *
+     * @return the value, or null if k is in neither tier
+     */
+    @Override
+    public V get(K k) {
+        V result;
+        synchronized (this) {
+            result = heapTier.get(k);
+            if (result == null) {
+                double priority = spillTier.getPriority(k);
+                result = takeFromSpillTier(k);
+                if (result != null) {
+                    promotionCount++;
+                    heapTier.put(k, result, priority);
+                }
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    @Override
+    public V remove(K k) {
+        V result;
+        synchronized (this) {
+            result = heapTier.remove(k);
+            if (result == null) {
+                double priority = spillTier.getPriority(k);
+                result = takeFromSpillTier(k);
+                if (result != null) {
+                    removalNotifier.enqueue(k, result, priority, RemovalReason.REMOVED);
+                }
+            }
+        }
+        removalNotifier.deliverPending();
+        return result;
+    }
+
+    @Override
+    public synchronized boolean contains(K k) {
+        return heapTier.contains(k) || spillTier.contains(k);
+    }
+
+    @Override
+    public synchronized int size() {
+        return heapTier.size() + spillTier.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return heapTier.isEmpty() && spillTier.isEmpty();
+    }
+
+    @Override
+    public void setPriority(K k, double priority) {
+        synchronized (this) {
+            if (heapTier.contains(k)) {
+                heapTier.setPriority(k, priority);
+            } else {
+                spillTier.setPriority(k, priority);
+            }
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public void setPriorities(Map<K, Double> priorities) {
+        synchronized (this) {
+            Map<K, Double> heapPriorities = new LinkedHashMap<K, Double>();
+            Map<K, Double> spillPriorities = new LinkedHashMap<K, Double>();
+            for (Map.Entry<K, Double> pe : priorities.entrySet()) {
+                if (heapTier.contains(pe.getKey())) {
+                    heapPriorities.put(pe.getKey(), pe.getValue());
+                } else {
+                    spillPriorities.put(pe.getKey(), pe.getValue());
+                }
+            }
+            heapTier.setPriorities(heapPriorities);
+            spillTier.setPriorities(spillPriorities);
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public void reprioritize(Function1<K, Double> priorityFunction) {
+        synchronized (this) {
+            heapTier.reprioritize(priorityFunction);
+            spillTier.reprioritize(priorityFunction);
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public void updateCost(K k) {
+        synchronized (this) {
+            heapTier.updateCost(k);
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public synchronized double getCurrentTotalCost() {
+        return heapTier.getCurrentTotalCost();
+    }
+
+    @Override
+    public synchronized double getMaxTotalCost() {
+        return heapTier.getMaxTotalCost();
+    }
+
+    @Override
+    public void setMaxTotalCost(double maxTotalCost) {
+        synchronized (this) {
+            heapTier.setMaxTotalCost(maxTotalCost);
+        }
+        removalNotifier.deliverPending();
+    }
+
+    @Override
+    public Function1<V, Double> getElementCostFunction() {
+        return heapTier.getElementCostFunction();
+    }
+
+    @Override
+    public synchronized boolean isReverseEviction() {
+        return heapTier.isReverseEviction();
+    }
+
+    @Override
+    public synchronized void setReverseEviction(boolean reverseEviction) {
+        heapTier.setReverseEviction(reverseEviction);
+        spillTier.setReverseEviction(reverseEviction);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener, null);
+    }
+
+    @Override
+    public void addRemovalListener(RemovalListener<K, V> listener, Executor executor) {
+        removalNotifier.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeRemovalListener(RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
+    }
+
+    /**
+     * Iterates over the heap tier only.
+     */
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return heapTier.entryIterator();
+    }
+
+    /**
+     * Iterates over the heap tier only.
+     */
+    @Override
+    public Iterator<Entry<K, V>> reverseEntryIterator() {
+        return heapTier.reverseEntryIterator();
+    }
+
+    /**
+     * Queries the heap tier only.
+     */
+    @Override
+    public List<Entry<K, V>> entriesInPriorityRange(double lo, double hi) {
+        return heapTier.entriesInPriorityRange(lo, hi);
+    }
+
+    /**
+     * Queries the heap tier only.
+     */
+    @Override
+    public List<Entry<K, V>> topK(int k) {
+        return heapTier.topK(k);
+    }
+
+}
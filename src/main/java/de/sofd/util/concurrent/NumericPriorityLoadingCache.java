@@ -0,0 +1,345 @@
+package de.sofd.util.concurrent;
+
+import de.sofd.lang.Function1;
+import de.sofd.util.NumericPriorityMap;
+import de.sofd.util.NumericPriorityMapSnapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Loading facade for a {@link NumericPriorityMap}: {@link #getOrLoad(Object, double, Loader)}
+ * returns the value stored under a key, or loads it and inserts it into the
+ * map with the requested priority.
+ * <p>
+ * Loads are "single-flight": concurrent callers for the same key share one
+ * in-flight load rather than each starting their own. If they request
+ * different priorities, the value is inserted with the highest one.
+ * <p>
+ * Without an executor, the first caller for a key runs the load in its own
+ * thread and the others wait for it. With a
+ * {@link NumericPriorityThreadPoolExecutor}, loads are queued in the executor
+ * with a load priority derived from the requested cache priority by a
+ * loadPriorityFunction; the priority of a queued load is raised (via
+ * {@link NumericPriorityThreadPoolExecutor#resubmitWithPriority(PrioritizedTask, double)})
+ * when another caller requests the key with a higher cache priority. Note that
+ * the executor runs tasks with LOW priority values first, whereas the map
+ * evicts elements with low priority values first, so the loadPriorityFunction
+ * will usually have to invert the priority (e.g. p -> highPrio - p).
+ * <p>
+ * Speculative loads ({@link #prefetchAsync(Object, double, Loader)}) can be
+ * cancelled again as long as no regular caller is waiting for them.
+ * <p>
+ * This class is thread-safe, provided the map is.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class NumericPriorityLoadingCache<K, V> {
+
+    /**
+     * Loads the value for a key. May return null, in which case nothing is
+     * inserted into the map.
+     */
+    public interface Loader<K, V> {
+        V load(K k) throws Exception;
+    }
+
+    private final NumericPriorityMap<K, V> map;
+    private final NumericPriorityThreadPoolExecutor executor;
+    private final Function1<Double, Double> loadPriorityFunction;
+    private final ConcurrentMap<K, Load> inFlight = new ConcurrentHashMap<K, Load>();
+
+    /**
+     * Creates a cache that runs loads in the calling thread.
+     */
+    public NumericPriorityLoadingCache(NumericPriorityMap<K, V> map) {
+        this(map, null, null);
+    }
+
+    /**
+     *
+     * @param map
+     * @param executor
+     *            executor to run the loads in. null == run them in the
+     *            calling thread
+     * @param loadPriorityFunction
+     *            maps the requested cache priority to the executor priority of
+     *            the load. null == identity
+     */
+    public NumericPriorityLoadingCache(NumericPriorityMap<K, V> map, NumericPriorityThreadPoolExecutor executor,
+            Function1<Double, Double> loadPriorityFunction) {
+        this.map = map;
+        this.executor = executor;
+        this.loadPriorityFunction = loadPriorityFunction;
+    }
+
+    public NumericPriorityMap<K, V> getMap() {
+        return map;
+    }
+
+    public NumericPriorityThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    private double loadPriority(double priority) {
+        return loadPriorityFunction == null ? priority : loadPriorityFunction.run(priority);
+    }
+
+    private class LoadCall implements Callable<V> {
+        private final K k;
+        private final Loader<? super K, ? extends V> loader;
+        private Load load;
+
+        LoadCall(K k, Loader<? super K, ? extends V> loader) {
+            this.k = k;
+            this.loader = loader;
+        }
+
+        @Override
+        public V call() throws Exception {
+            // k may have been stored by a load that finished just before
+            // this one was registered
+            V v = map.get(k);
+            if (v == null) {
+                v = loader.load(k);
+                if (v != null) {
+                    map.put(k, v, load.getPriority());
+                }
+            }
+            return v;
+        }
+    }
+
+    /**
+     * A load in progress. Removes itself from inFlight when done.
+     */
+    private class Load extends FutureTask<V> {
+        private final K k;
+        private double priority;   // guarded by this
+        private PrioritizedTask<Object> task;  // guarded by this; null if running in the caller's thread
+        private boolean demanded;  // guarded by this; false == only requested by prefetchAsync()
+
+        Load(K k, double priority, Loader<? super K, ? extends V> loader, boolean demanded) {
+            this(new LoadCall(k, loader), priority, demanded);
+        }
+
+        private Load(LoadCall call, double priority, boolean demanded) {
+            super(call);
+            call.load = this;
+            this.k = call.k;
+            this.priority = priority;
+            this.demanded = demanded;
+        }
+
+        synchronized double getPriority() {
+            return priority;
+        }
+
+        synchronized void submit() {
+            task = executor.submitWithPriority(this, loadPriority(priority));
+        }
+
+        void rejected(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        /**
+         * Called for each additional caller.
+         *
+         * @return false if the load has been cancelled, so the caller needs
+         *         to start a new one
+         */
+        synchronized boolean join(double priority, boolean demanded) {
+            if (isCancelled()) {
+                return false;
+            }
+            this.demanded |= demanded;
+            if (priority <= this.priority) {
+                return true;
+            }
+            this.priority = priority;
+            if (task != null && !task.isDone()) {
+                try {
+                    task = executor.resubmitWithPriority(task, loadPriority(priority));
+                } catch (IllegalArgumentException e) {
+                    // already running
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Cancel the load unless a demand caller is waiting for it.
+         */
+        synchronized boolean cancelPrefetch() {
+            return !demanded && cancel(false);
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            if (result && task != null) {
+                executor.remove(task);
+            }
+            return result;
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(k, this);
+        }
+    }
+
+    /**
+     * Returns the value stored under k, or starts loading it (or joins a load
+     * that's already in progress). The loaded value is put into the map with
+     * the given priority (or a higher one requested by a concurrent caller).
+     * <p>
+     * The returned future is shared by all concurrent callers for k, so
+     * cancelling it cancels the load for all of them.
+     *
+     * @param k
+     * @param priority
+     * @param loader
+     * @return future of the value (null if the loader returned null). Fails
+     *         with a {@link RejectedExecutionException} if the executor
+     *         rejected the load.
+     */
+    public Future<V> getOrLoadAsync(K k, double priority, Loader<? super K, ? extends V> loader) {
+        V v = map.get(k);
+        if (v != null) {
+            FutureTask<V> result = new FutureTask<V>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, v);
+            result.run();
+            return result;
+        }
+        return startOrJoin(k, priority, loader, true);
+    }
+
+    /**
+     * Speculatively load k, e.g. because it's predicted to be requested soon
+     * (see {@link PrefetchCoordinator}): like
+     * {@link #getOrLoadAsync(Object, double, Loader)}, but the load may be
+     * cancelled via {@link #cancelPrefetch(Object)} as long as no regular
+     * caller has requested k as well. Doesn't count as an access to the map
+     * if k is already stored. Does nothing if this cache has no executor,
+     * since the load would block the calling thread.
+     *
+     * @return the future of the load, or null if k is already stored or
+     *         there's no executor
+     */
+    public Future<V> prefetchAsync(K k, double priority, Loader<? super K, ? extends V> loader) {
+        if (executor == null || map.contains(k)) {
+            return null;
+        }
+        return startOrJoin(k, priority, loader, false);
+    }
+
+    private Load startOrJoin(K k, double priority, Loader<? super K, ? extends V> loader, boolean demanded) {
+        while (true) {
+            Load load = inFlight.get(k);
+            if (load == null) {
+                Load newLoad = new Load(k, priority, loader, demanded);
+                load = inFlight.putIfAbsent(k, newLoad);
+                if (load == null) {
+                    if (executor != null) {
+                        try {
+                            newLoad.submit();
+                        } catch (RejectedExecutionException e) {
+                            // e.g. executor shut down; don't leave a load
+                            // behind that never completes
+                            inFlight.remove(k, newLoad);
+                            newLoad.rejected(e);
+                        }
+                    } else {
+                        newLoad.run();
+                    }
+                    return newLoad;
+                }
+            }
+            if (load.join(priority, demanded)) {
+                return load;
+            }
+            // cancelled in the meantime
+            inFlight.remove(k, load);
+        }
+    }
+
+    /**
+     * Cancel the in-flight load of k if it has only been requested via
+     * {@link #prefetchAsync(Object, double, Loader)}. A queued load is removed
+     * from the executor; a running one completes, but its future reports the
+     * cancellation.
+     *
+     * @return whether a load has been cancelled
+     */
+    public boolean cancelPrefetch(K k) {
+        Load load = inFlight.get(k);
+        return load != null && load.cancelPrefetch();
+    }
+
+    /**
+     * Blocking version of {@link #getOrLoadAsync(Object, double, Loader)}.
+     *
+     * @throws ExecutionException
+     *             if the loader threw an exception
+     * @throws InterruptedException
+     *             if the calling thread was interrupted while waiting for the
+     *             load. The load itself continues.
+     */
+    public V getOrLoad(K k, double priority, Loader<? super K, ? extends V> loader) throws ExecutionException, InterruptedException {
+        return getOrLoadAsync(k, priority, loader).get();
+    }
+
+    /**
+     * Warms up the map from a snapshot, e.g. one saved before a restart.
+     * Starts loads for the snapshot's elements that aren't in the map, most
+     * valuable first, each with the priority it had in the snapshot. It stops
+     * at the first element whose accumulated snapshot cost would exceed the
+     * map's maxTotalCost, since loading beyond that would only evict what was
+     * just loaded.
+     * <p>
+     * With an executor, this returns right away. The loads then run in the
+     * background, ordered by priority together with the regular loads, so
+     * callers requesting keys with higher priorities don't have to wait for
+     * the preload. Without an executor, the loads run in the calling thread.
+     *
+     * @return the futures of the started loads, most valuable first. Failed
+     *         loads are only reported through these.
+     */
+    public List<Future<V>> preload(NumericPriorityMapSnapshot<? extends K> snapshot, Loader<? super K, ? extends V> loader) {
+        List<Future<V>> result = new ArrayList<Future<V>>();
+        double maxTotalCost = map.getMaxTotalCost();
+        double cost = 0;
+        for (NumericPriorityMapSnapshot.Element<? extends K> e : snapshot) {
+            cost += e.getCost();
+            if (maxTotalCost >= 0 && cost > maxTotalCost) {
+                break;
+            }
+            if (!map.contains(e.getKey())) {
+                result.add(getOrLoadAsync(e.getKey(), e.getPriority(), loader));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of loads currently in progress or queued
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+}
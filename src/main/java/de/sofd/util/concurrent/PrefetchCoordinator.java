@@ -0,0 +1,234 @@
+package de.sofd.util.concurrent;
+
+import de.sofd.lang.Function1;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Predictive prefetching on top of a {@link NumericPriorityLoadingCache}: watches
+ * the keys that are requested, detects sequential or strided access (e.g. a
+ * user scrolling through the slices of a stack, possibly skipping every other
+ * one), and loads the keys predicted to be requested next before they are.
+ * <p>
+ * The keys are mapped to ordinals (e.g. slice numbers) by an ordinal function,
+ * and the predicted ordinals back to keys by a key function. Once the same
+ * non-zero difference (stride) between the ordinals of consecutive requests
+ * has been seen {@link #MIN_RUN} times in a row, the next
+ * {@link #getPrefetchDepth() prefetchDepth} keys along that stride are loaded
+ * via {@link NumericPriorityLoadingCache#prefetchAsync(Object, double, Loader)},
+ * i.e. in the cache's executor (typically a
+ * {@link NumericPriorityThreadPoolExecutor}) if it has one. The priority of a
+ * prefetch falls off with the predicted distance: the key d strides ahead
+ * gets the priority p of the current request lowered by
+ * |p| * (1 - {@link #getDistanceFalloff() distanceFalloff}^d), i.e. p times
+ * distanceFalloff^d for positive priorities, so near keys are loaded
+ * (and kept in the map) before far ones, and all of them rank below the
+ * regular requests. Prefetches of keys that come up again are re-requested
+ * with their new, higher priority. When a regular request reaches a
+ * prefetched key, the key gets the priority of that request.
+ * <p>
+ * The cache must have an executor; prefetching in the requesting thread
+ * would delay the regular requests rather than speed them up.
+ * <p>
+ * When the direction of access reverses, or the access jumps past keys
+ * that are still being prefetched, those prefetches have become stale and are
+ * cancelled, unless a regular request is waiting for them.
+ * <p>
+ * Regular requests should go through {@link #getOrLoad(Object, double)} /
+ * {@link #getOrLoadAsync(Object, double)}, or be reported via
+ * {@link #recordAccess(Object, double)} if they are served elsewhere. This
+ * class is thread-safe; the requests of all threads are treated as one access
+ * sequence, so use one coordinator per viewer.
+ *
+ * @author olaf
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class PrefetchCoordinator<K, V> {
+
+    /**
+     * Number of consecutive equal strides that make up a pattern.
+     */
+    public static final int MIN_RUN = 2;
+
+    private final NumericPriorityLoadingCache<K, V> cache;
+    private final NumericPriorityLoadingCache.Loader<? super K, ? extends V> loader;
+    private final Function1<K, Long> ordinalFunction;
+    private final Function1<Long, K> keyFunction;
+
+    private int prefetchDepth = 4;
+    private double distanceFalloff = 0.75;
+
+    private boolean hasLast = false;
+    private long lastOrdinal;
+    private long candidateStride = 0;
+    private int runLength = 0;
+    private long stride = 0;  // 0 == no pattern detected
+    private final Map<Long, K> pending = new HashMap<Long, K>();  // prefetched ordinals that haven't been reached yet
+
+    private long prefetchCount = 0;
+    private long cancelCount = 0;
+
+    /**
+     * @param cache
+     *            the cache to load the values through
+     * @param loader
+     *            the loader for both regular requests and prefetches
+     * @param ordinalFunction
+     *            maps a key to its position in the access sequence
+     * @param keyFunction
+     *            maps an ordinal back to its key; returns null for ordinals
+     *            that don't have one (e.g. beyond the end of the stack)
+     * @throws IllegalArgumentException
+     *             if the cache has no executor
+     */
+    public PrefetchCoordinator(NumericPriorityLoadingCache<K, V> cache, NumericPriorityLoadingCache.Loader<? super K, ? extends V> loader,
+            Function1<K, Long> ordinalFunction, Function1<Long, K> keyFunction) {
+        if (cache.getExecutor() == null) {
+            throw new IllegalArgumentException("cache has no executor to prefetch in");
+        }
+        this.cache = cache;
+        this.loader = loader;
+        this.ordinalFunction = ordinalFunction;
+        this.keyFunction = keyFunction;
+    }
+
+    public NumericPriorityLoadingCache<K, V> getCache() {
+        return cache;
+    }
+
+    public synchronized int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @param prefetchDepth
+     *            number of keys to prefetch ahead of the current one (default:
+     *            4). 0 disables prefetching.
+     */
+    public synchronized void setPrefetchDepth(int prefetchDepth) {
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException("invalid prefetchDepth: " + prefetchDepth);
+        }
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    public synchronized double getDistanceFalloff() {
+        return distanceFalloff;
+    }
+
+    /**
+     * @param distanceFalloff
+     *            factor by which the prefetch priority decreases per stride
+     *            of predicted distance, 0 &lt; distanceFalloff &lt;= 1
+     *            (default: 0.75)
+     */
+    public synchronized void setDistanceFalloff(double distanceFalloff) {
+        if (!(distanceFalloff > 0 && distanceFalloff <= 1)) {
+            throw new IllegalArgumentException("invalid distanceFalloff: " + distanceFalloff);
+        }
+        this.distanceFalloff = distanceFalloff;
+    }
+
+    /**
+     * @return the currently detected stride, or 0 if there is no pattern
+     */
+    public synchronized long getStride() {
+        return stride;
+    }
+
+    /**
+     * @return number of prefetches started so far
+     */
+    public synchronized long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * @return number of prefetches cancelled as stale so far
+     */
+    public synchronized long getCancelCount() {
+        return cancelCount;
+    }
+
+    /**
+     * Get or load k through the cache, then record the request and start the
+     * resulting prefetches.
+     */
+    public V getOrLoad(K k, double priority) throws ExecutionException, InterruptedException {
+        return getOrLoadAsync(k, priority).get();
+    }
+
+    /**
+     * Asynchronous version of {@link #getOrLoad(Object, double)}.
+     */
+    public Future<V> getOrLoadAsync(K k, double priority) {
+        // submitted first, so the prefetches don't get ahead of it
+        Future<V> result = cache.getOrLoadAsync(k, priority, loader);
+        recordAccess(k, priority);
+        return result;
+    }
+
+    /**
+     * Record a regular request for k with the given (cache) priority: update
+     * the access pattern, cancel stale prefetches and start new ones. If k has
+     * been prefetched, its priority in the map is set to the given one.
+     */
+    public synchronized void recordAccess(K k, double priority) {
+        long ordinal = ordinalFunction.run(k);
+        if (pending.remove(ordinal) != null) {
+            // stored with the reduced prefetch priority
+            cache.getMap().setPriority(k, priority);
+        }
+        long delta = hasLast ? ordinal - lastOrdinal : 0;
+        hasLast = true;
+        lastOrdinal = ordinal;
+        if (delta == 0) {
+            return;
+        }
+        if (delta == candidateStride) {
+            runLength++;
+        } else {
+            candidateStride = delta;
+            runLength = 1;
+        }
+        stride = runLength >= MIN_RUN ? candidateStride : 0;
+
+        // everything at or behind the current position (in the direction of
+        // the last step) is stale, unless a regular request wants it
+        long direction = Long.signum(delta);
+        for (Iterator<Map.Entry<Long, K>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, K> pe = it.next();
+            long distance = (pe.getKey() - ordinal) * direction;
+            if (distance <= 0) {
+                if (distance < 0 && cache.cancelPrefetch(pe.getValue())) {
+                    cancelCount++;
+                }
+                it.remove();
+            }
+        }
+
+        if (stride == 0) {
+            return;
+        }
+        double falloff = 1;
+        for (int i = 1; i <= prefetchDepth; i++) {
+            // lowers negative priorities, too
+            falloff *= distanceFalloff;
+            double prefetchPriority = priority - Math.abs(priority) * (1 - falloff);
+            long o = ordinal + i * stride;
+            K pk = keyFunction.run(o);
+            if (pk == null) {
+                break;
+            }
+            if (cache.prefetchAsync(pk, prefetchPriority, loader) != null && pending.put(o, pk) == null) {
+                prefetchCount++;
+            }
+        }
+    }
+
+}
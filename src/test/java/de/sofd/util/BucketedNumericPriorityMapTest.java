@@ -0,0 +1,907 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for features that are specific to {@link BucketedNumericPriorityMap}.
+ * The general NumericPriorityMap contract is tested in
+ * {@link NumericPriorityMapTest}.
+ *
+ * @author olaf
+ */
+public class BucketedNumericPriorityMapTest {
+
+    private static Function1<Double, Double> identityCost = new Function1<Double, Double>() {
+        @Override
+        public Double run(Double v) {
+            return v;
+        }
+    };
+
+    @Test
+    public void testLongCostAccounting() {
+        System.out.println("LongCostAccounting");
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, identityCost);
+        pc.setLongCostAccounting(true);
+        assertTrue(pc.isLongCostAccounting());
+        pc.put(1, 0.1, 10);   // rounded to 0
+        pc.put(2, 2.6, 10);   // rounded to 3
+        assertEquals(3, pc.getCurrentTotalCost(), 0);
+        // many updates don't accumulate any rounding error
+        for (int i = 0; i < 100000; i++) {
+            pc.put(3, 1e9 + (i % 7), 20);
+            pc.remove(3);
+        }
+        assertEquals(3, pc.getCurrentTotalCost(), 0);
+        pc.setLongCostAccounting(false);
+        assertEquals(3, pc.getCurrentTotalCost(), 0);  // costs stay rounded
+        pc.put(4, 0.25, 10);
+        assertEquals(3.25, pc.getCurrentTotalCost(), 0);
+        pc.setLongCostAccounting(true);
+        assertEquals(3, pc.getCurrentTotalCost(), 0);
+    }
+
+    @Test
+    public void testAdaptiveBuckets() {
+        System.out.println("AdaptiveBuckets");
+        // all priorities in [50, 51) => with the static layout, all land in one bucket
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, null);
+        Random r = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            pc.put(i, 0.0, 50 + r.nextDouble());
+        }
+        BucketedNumericPriorityMap.BucketStatistics stats = pc.getBucketStatistics();
+        assertEquals(1.0, stats.getLargestBucketFraction(), 0);
+        assertEquals(1.0, stats.getEffectiveBucketCount(), 0.001);
+        assertEquals(0, stats.getRepartitionCount());
+        assertEquals(Double.NEGATIVE_INFINITY, stats.getBucketLowerBounds()[0], 0);
+        assertEquals(50, stats.getBucketLowerBounds()[5], 0.001);
+
+        pc.setAdaptiveBuckets(true);
+        for (int i = 0; i < 5000; i++) {
+            pc.setPriority(i, 50 + r.nextDouble());
+        }
+        stats = pc.getBucketStatistics();
+        assertTrue(stats.getRepartitionCount() >= 1);
+        assertTrue("" + stats.getEffectiveBucketCount(), stats.getEffectiveBucketCount() > 8);
+        assertTrue(stats.getLargestBucketFraction() < 0.2);
+        double[] lowerBounds = stats.getBucketLowerBounds();
+        for (int b = 1; b < lowerBounds.length; b++) {
+            assertTrue(lowerBounds[b] >= 50 && lowerBounds[b] < 51);
+            assertTrue(lowerBounds[b] >= lowerBounds[b - 1]);
+        }
+        assertEquals(5000, pc.size());
+
+        // iteration order is now resolved to ~0.1 instead of 1.0
+        double maxSoFar = Double.NEGATIVE_INFINITY;
+        int n = 0;
+        for (Iterator<NumericPriorityMap.Entry<Integer, Double>> it = pc.entryIterator(); it.hasNext(); n++) {
+            double p = it.next().getPriority();
+            assertTrue(p > maxSoFar - 0.25);
+            maxSoFar = Math.max(maxSoFar, p);
+        }
+        assertEquals(5000, n);
+
+        // eviction throws out (approximately) the lowest priorities
+        pc.setMaxTotalCost(2500);
+        for (Iterator<NumericPriorityMap.Entry<Integer, Double>> it = pc.entryIterator(); it.hasNext();) {
+            assertTrue(it.next().getPriority() > 50.3);
+        }
+    }
+
+    @Test
+    public void testAdaptiveBucketsDuplicatePriorities() {
+        System.out.println("AdaptiveBucketsDuplicatePriorities");
+        // all elements share one priority => no layout can remove the skew
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, null);
+        pc.setAdaptiveBuckets(true);
+        for (int i = 0; i < 5000; i++) {
+            pc.put(i, 0.0, 50);
+        }
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 5000; i++) {
+                pc.setPriority(i, 50);
+            }
+        }
+        // at most one re-partitioning per n operations
+        int repartitionCount = pc.getBucketStatistics().getRepartitionCount();
+        assertTrue("" + repartitionCount, repartitionCount >= 1 && repartitionCount <= 6);
+        assertEquals(5000, pc.size());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        System.out.println("Statistics");
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 10, identityCost);
+        assertFalse(pc.isStatisticsEnabled());
+        pc.put(1, 4.0, 5);
+        pc.get(1);
+        assertEquals(0, pc.getStatistics().getHitCount());
+        assertEquals(4, pc.getStatistics().getCostPerBucket()[0], 0);
+
+        pc.setStatisticsEnabled(true);
+        pc.get(1);
+        pc.get(1);
+        pc.get(2);
+        pc.put(2, 3.0, 15);
+        pc.put(3, 5.0, 95);   // evicts 1
+        pc.put(4, 2.5, 55);   // evicts 2
+        NumericPriorityMapStatistics stats = pc.getStatistics();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(2.0 / 3, stats.getHitRate(), 1e-9);
+        assertEquals(3, stats.getPutCount());
+        assertEquals(2, stats.getEvictionCount());
+        assertArrayEquals(new long[]{1, 1, 0, 0, 0, 0, 0, 0, 0, 0}, stats.getEvictionsPerBucket());
+        assertEquals(7, stats.getEvictedCost(), 0);
+        assertEquals(2, stats.getSize());
+        assertEquals(7.5, stats.getCurrentTotalCost(), 0);
+        assertEquals(10, stats.getMaxTotalCost(), 0);
+        assertArrayEquals(new double[]{0, 0, 0, 0, 0, 2.5, 0, 0, 0, 5}, stats.getCostPerBucket(), 0);
+        NumericPriorityMapStatistics counters = pc.getCounters();
+        assertEquals(2, counters.getHitCount());
+        assertEquals(2, counters.getEvictionCount());
+        assertArrayEquals(new long[]{1, 1, 0, 0, 0, 0, 0, 0, 0, 0}, counters.getEvictionsPerBucket());
+        assertEquals(0, counters.getCostPerBucket().length);
+
+        // the cost per bucket follows replacements and priority changes
+        pc.put(4, 1.5, 55);
+        pc.setPriority(3, 15);
+        assertArrayEquals(new double[]{0, 5, 0, 0, 0, 1.5, 0, 0, 0, 0}, pc.getStatistics().getCostPerBucket(), 0);
+
+        pc.resetStatistics();
+        assertEquals(0, pc.getStatistics().getEvictionCount());
+        assertEquals(0, pc.getStatistics().getPutCount());
+        pc.setStatisticsEnabled(false);
+        pc.get(3);
+        assertEquals(0, pc.getStatistics().getHitCount());
+
+        NumericPriorityMapMonitor monitor = NumericPriorityMapMonitor.register(pc, "de.sofd.util:type=NumericPriorityMap,name=test");
+        try {
+            assertTrue(pc.isStatisticsEnabled());
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            javax.management.ObjectName name = new javax.management.ObjectName("de.sofd.util:type=NumericPriorityMap,name=test");
+            pc.get(3);
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(2, server.getAttribute(name, "Size"));
+            server.setAttribute(name, new javax.management.Attribute("MaxTotalCost", 5.0));
+            assertEquals(1, pc.size());
+            assertEquals(1L, monitor.getEvictionCount());
+        } finally {
+            monitor.unregister();
+        }
+    }
+
+    /**
+     * Map with a manually advanced clock (in seconds).
+     */
+    private static class ClockedMap extends BucketedNumericPriorityMap<Integer, Double> {
+        long now = 1000;
+
+        ClockedMap(double maxTotalCost) {
+            super(0, 100, 10, maxTotalCost, identityCost);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return TimeUnit.SECONDS.toNanos(now);
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        System.out.println("Expiry");
+        ClockedMap pc = new ClockedMap(-1);
+        final List<String> removals = new ArrayList<String>();
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                removals.add(reason + " " + entry.getKey());
+            }
+        });
+        pc.setExpireAfterWrite(10, TimeUnit.SECONDS);
+        assertEquals(10000, pc.getExpireAfterWrite(TimeUnit.MILLISECONDS));
+        pc.put(1, 1.0, 50);                              // expires at 1010
+        pc.put(2, 2.0, 50, 100, TimeUnit.SECONDS);       // expires at 1100
+        pc.put(3, 4.0, 50, -1, TimeUnit.SECONDS);        // never expires
+        assertEquals(7, pc.getCurrentTotalCost(), 0);
+
+        pc.now = 1009;
+        assertEquals(1.0, pc.get(1), 0);
+        pc.now = 1010;
+        assertTrue(Double.isNaN(pc.getPriority(1)));
+        assertNull(pc.get(1));                           // lazily removed
+        assertEquals("[EXPIRED 1]", removals.toString());
+        assertEquals(6, pc.getCurrentTotalCost(), 0);
+
+        // incremental removal by the timer wheel, driven by puts
+        pc.now = 1200;
+        pc.put(4, 8.0, 50, -1, TimeUnit.SECONDS);
+        assertFalse(pc.contains(2));
+        assertEquals("[EXPIRED 1, EXPIRED 2]", removals.toString());
+        assertEquals(2, pc.size());
+        assertEquals(12, pc.getCurrentTotalCost(), 0);
+
+        // idle timeout; TTLs that span several wheel rotations
+        removals.clear();
+        pc.setExpireAfterWrite(-1, TimeUnit.SECONDS);
+        pc.setExpireAfterAccess(30, TimeUnit.SECONDS);
+        pc.put(5, 16.0, 50);                             // idle until 1230
+        pc.put(6, 32.0, 50, 1000, TimeUnit.SECONDS);     // also idle until 1230
+        pc.put(7, 64.0, 50);
+        pc.setExpireAfterAccess(2000, TimeUnit.SECONDS);
+        pc.put(8, 128.0, 50, 1000, TimeUnit.SECONDS);    // TTL (2200) wins over idle timeout (3200)
+        for (int t = 1220; t < 2100; t += 20) {
+            pc.now = t;
+            assertNotNull(pc.get(5));                    // extended by 2000s on each get
+            pc.expireEntries();
+        }
+        assertEquals("[EXPIRED 6, EXPIRED 7]", removals.toString());
+        pc.now = 2199;
+        pc.expireEntries();
+        assertTrue(pc.contains(8));
+        pc.now = 2201;
+        pc.expireEntries();
+        assertFalse(pc.contains(8));
+        assertEquals("[EXPIRED 6, EXPIRED 7, EXPIRED 8]", removals.toString());
+        assertEquals(4 + 8 + 16, pc.getCurrentTotalCost(), 0);
+
+        pc.setExpiryResolution(100, TimeUnit.MILLISECONDS);
+        pc.now = 100000;
+        pc.expireEntries();
+        assertFalse(pc.contains(5));
+        assertEquals(2, pc.size());
+    }
+
+    @Test
+    public void testRemoveExpired() {
+        System.out.println("RemoveExpired");
+        ClockedMap pc = new ClockedMap(-1);
+        final List<String> removals = new ArrayList<String>();
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                removals.add(reason + " " + entry.getKey());
+            }
+        });
+        pc.put(1, 1.0, 50, 10, TimeUnit.SECONDS);        // expires at 1010
+        pc.put(2, 2.0, 50, 10, TimeUnit.SECONDS);
+        pc.now = 1009;
+        assertEquals(1.0, pc.remove(1), 0);
+        pc.now = 1010;
+        assertNull(pc.remove(2));                        // expired, like get()
+        assertEquals("[REMOVED 1, EXPIRED 2]", removals.toString());
+        assertEquals(0, pc.size());
+        assertEquals(0, pc.getCurrentTotalCost(), 0);
+    }
+
+    /**
+     * A working set of 50 keys that is revisited regularly, and a sequential
+     * pass through 2000 other keys, all with the same priority, in a map that
+     * holds 100 elements.
+     *
+     * @return number of working set keys still in the map after the pass
+     */
+    private static int runScan(BucketedNumericPriorityMap<Integer, Double> pc) {
+        for (int round = 0; round < 5; round++) {
+            for (int k = 0; k < 50; k++) {
+                if (pc.get(k) == null) {
+                    pc.put(k, 1.0, 50);
+                }
+            }
+        }
+        for (int k = 1000; k < 3000; k++) {
+            if (pc.get(k) == null) {
+                pc.put(k, 1.0, 50);
+            }
+            if (k % 20 == 0) {
+                for (int w = 0; w < 50; w += 5) {
+                    if (pc.get(w) == null) {
+                        pc.put(w, 1.0, 50);
+                    }
+                }
+            }
+        }
+        int result = 0;
+        for (int k = 0; k < 50; k++) {
+            if (pc.contains(k)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static List<String> keysAndPriorities(Iterator<NumericPriorityMap.Entry<Integer, Double>> it) {
+        List<String> result = new ArrayList<String>();
+        while (it.hasNext()) {
+            NumericPriorityMap.Entry<Integer, Double> e = it.next();
+            result.add(e.getKey() + ":" + Math.round(e.getPriority() * 1000) / 1000.0);
+        }
+        return result;
+    }
+
+    @Test
+    public void testPriorityDecay() {
+        System.out.println("PriorityDecay");
+        ClockedMap pc = new ClockedMap(-1);
+        final List<String> removals = new ArrayList<String>();
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                removals.add(entry.getKey() + ":" + Math.round(entry.getPriority() * 1000) / 1000.0);
+            }
+        });
+        pc.setPriorityDecay(10, TimeUnit.SECONDS);
+        assertEquals(10, pc.getPriorityDecay(TimeUnit.SECONDS));
+        pc.put(1, 1.0, 80);
+        pc.now += 10;
+        assertEquals(40, pc.getPriority(1), 1e-9);
+        pc.put(2, 1.0, 50);  // one half-life has passed => rebases
+        assertEquals(1, pc.getRebaseCount());
+        assertEquals("[1:40.0, 2:50.0]", keysAndPriorities(pc.entryIterator()).toString());
+
+        pc.now += 10;
+        NumericPriorityMap.Entry<Integer, Double> e1 = pc.entryIterator().next();
+        assertEquals(20, e1.getPriority(), 1e-9);
+        pc.put(3, 1.0, 30);
+        assertEquals(2, pc.getRebaseCount());
+        assertEquals("[1:20.0, 2:25.0, 3:30.0]", keysAndPriorities(pc.entryIterator()).toString());
+        assertEquals("[3:30.0]", keysAndPriorities(pc.topK(1).iterator()).toString());
+        assertEquals("[1:20.0, 2:25.0]", keysAndPriorities(pc.entriesInPriorityRange(19, 26).iterator()).toString());
+        pc.setPriority(1, 40);  // "used" again
+        assertEquals("[2:25.0, 3:30.0, 1:40.0]", keysAndPriorities(pc.entryIterator()).toString());
+
+        pc.now += 10;
+        assertEquals(20, e1.getPriority(), 1e-9);  // entries report the current value
+        pc.setMaxTotalCost(2);
+        assertEquals("[2:12.5]", removals.toString());
+
+        // switching decay off keeps the current priorities
+        pc.setPriorityDecay(0, TimeUnit.SECONDS);
+        assertEquals(-1, pc.getPriorityDecay(TimeUnit.SECONDS));
+        pc.now += 100;
+        assertEquals("[3:15.0, 1:20.0]", keysAndPriorities(pc.entryIterator()).toString());
+    }
+
+    @Test
+    public void testAdmissionFilter() {
+        System.out.println("AdmissionFilter");
+        BucketedNumericPriorityMap<Integer, Double> plain = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 100, null);
+        assertTrue(runScan(plain) < 20);
+
+        BucketedNumericPriorityMap<Integer, Double> filtered = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 100, null);
+        FrequencySketch<Integer> sketch = new FrequencySketch<Integer>(100);
+        filtered.setAdmissionFilter(sketch);
+        final List<Integer> evicted = new ArrayList<Integer>();
+        filtered.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                assertEquals(NumericPriorityMap.RemovalReason.EVICTED, reason);
+                evicted.add(entry.getKey());
+            }
+        });
+        assertEquals(50, runScan(filtered));
+        assertEquals(100, filtered.size());
+        assertTrue(sketch.getResetCount() > 0);
+        assertTrue(evicted.contains(2999));  // rejected
+
+        // higher priorities don't bypass the filter...
+        filtered.put(5000, 1.0, 99);
+        assertFalse(filtered.contains(5000));
+        // ...but lower ones are still evicted by priority
+        filtered.put(5001, 1.0, 1);
+        assertFalse(filtered.contains(5001));
+        for (int i = 0; i < 15; i++) {
+            filtered.get(5000);
+        }
+        filtered.put(5000, 1.0, 99);
+        assertTrue(filtered.contains(5000));
+        assertEquals(100, filtered.size());
+
+        // without recorded accesses (ties), new elements are admitted
+        BucketedNumericPriorityMap<Integer, Double> putOnly = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 10, null);
+        putOnly.setAdmissionFilter(new FrequencySketch<Integer>(10));
+        for (int k = 0; k < 20; k++) {
+            putOnly.put(k, 1.0, 50);
+        }
+        assertTrue(putOnly.contains(19));
+        assertFalse(putOnly.contains(9));
+    }
+
+
+    @Test
+    public void testEvictionPolicy() {
+        System.out.println("EvictionPolicy");
+        // priority == re-fetch penalty, value == cost == size
+        BucketedNumericPriorityMap<Integer, Double> gds = new BucketedNumericPriorityMap<Integer, Double>(0, 1, 10, 100, identityCost);
+        GreedyDualSizePolicy policy = new GreedyDualSizePolicy(false);
+        gds.setEvictionPolicy(policy);
+        assertSame(policy, gds.getEvictionPolicy());
+        assertTrue(gds.isAdaptiveBuckets());
+        gds.put(2, 10.0, 5);
+        gds.put(1, 50.0, 10);
+        gds.put(3, 10.0, 5);
+        gds.put(4, 40.0, 20);
+        // the large element goes first despite its higher penalty
+        assertEquals("[2:5.0, 3:5.0, 4:20.0]", keysAndPriorities(gds.entryIterator()).toString());
+        assertEquals(0.2, policy.getInflation(), 1e-9);
+        assertEquals("[4:20.0]", keysAndPriorities(gds.topK(1).iterator()).toString());
+        assertEquals("[2:5.0, 3:5.0]", keysAndPriorities(gds.entriesInPriorityRange(0, 10).iterator()).toString());
+
+        // switching back evicts by priority again
+        gds.setEvictionPolicy(EvictionPolicy.PRIORITY);
+        gds.put(5, 50.0, 15);
+        assertEquals("[3:5.0, 5:15.0, 4:20.0]", keysAndPriorities(gds.entryIterator()).toString());
+
+        // GDSF keeps the frequently used large element
+        BucketedNumericPriorityMap<Integer, Double> gdsf = new BucketedNumericPriorityMap<Integer, Double>(0, 1, 10, 100, identityCost);
+        gdsf.setEvictionPolicy(new GreedyDualSizePolicy(true));
+        gdsf.put(1, 50.0, 10);
+        for (int i = 0; i < 4; i++) {
+            gdsf.get(1);
+        }
+        gdsf.put(2, 10.0, 5);
+        gdsf.put(3, 40.0, 20);
+        gdsf.put(4, 10.0, 5);
+        assertTrue(gdsf.contains(1));
+        assertFalse(gdsf.contains(2));
+
+        // an element rejected by the admission filter is no victim, so it doesn't inflate L
+        BucketedNumericPriorityMap<Integer, Double> filtered = new BucketedNumericPriorityMap<Integer, Double>(0, 1, 10, 3, null);
+        GreedyDualSizePolicy filteredPolicy = new GreedyDualSizePolicy(false);
+        filtered.setEvictionPolicy(filteredPolicy);
+        filtered.setAdmissionFilter(new FrequencySketch<Integer>(10));
+        for (int k = 0; k < 3; k++) {
+            filtered.put(k, 1.0, 10);
+            for (int i = 0; i < 5; i++) {
+                filtered.get(k);
+            }
+        }
+        filtered.put(100, 1.0, 50);
+        assertFalse(filtered.contains(100));
+        assertEquals(0, filteredPolicy.getInflation(), 0);
+
+        try {
+            gdsf.setPriorityDecay(10, TimeUnit.SECONDS);
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        BucketedNumericPriorityMap<Integer, Double> decaying = new BucketedNumericPriorityMap<Integer, Double>(0, 1, 10, 100, identityCost);
+        decaying.setPriorityDecay(10, TimeUnit.SECONDS);
+        try {
+            decaying.setEvictionPolicy(new GreedyDualSizePolicy(false));
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLeases() {
+        System.out.println("Leases");
+        ClockedMap pc = new ClockedMap(100);
+        for (int k = 1; k <= 5; k++) {
+            pc.put(k, 20.0, k * 10);
+        }
+        assertEquals(20.0, pc.acquire(1), 0);
+        assertEquals(20.0, pc.acquire(1), 0);
+        assertNull(pc.acquire(42));
+        assertTrue(pc.isPinned(1));
+        assertEquals(20, pc.getPinnedCost(), 0);
+        pc.put(6, 20.0, 60);
+        assertTrue(pc.contains(1));
+        assertFalse(pc.contains(2));
+
+        // reference counted
+        assertTrue(pc.release(1));
+        assertTrue(pc.isPinned(1));
+        assertTrue(pc.release(1));
+        assertFalse(pc.isPinned(1));
+        assertFalse(pc.release(1));
+        assertEquals(0, pc.getPinnedCost(), 0);
+
+        pc.setMaxPinnedCost(30);
+        pc.acquire(3);
+        try {
+            pc.acquire(4);
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(pc.isPinned(4));
+        pc.acquire(3);  // already pinned, doesn't add to the pinned cost
+        pc.release(3);
+        pc.setMaxPinnedCost(-1);
+
+        // pinned elements count toward the total cost but aren't evicted
+        pc.acquire(5);
+        pc.acquire(6);
+        pc.setMaxTotalCost(50);
+        assertEquals("[3:30.0, 5:50.0, 6:60.0]", keysAndPriorities(pc.entryIterator()).toString());
+        assertEquals(60, pc.getCurrentTotalCost(), 0);
+        pc.release(3);
+        assertFalse(pc.contains(3));
+        assertEquals(40, pc.getCurrentTotalCost(), 0);
+
+        // leak diagnostics
+        pc.setLeaseTracking(true);
+        pc.now += 100;
+        pc.acquire(5);
+        List<BucketedNumericPriorityMap.Lease<Integer>> leaked = pc.getLeases(50, TimeUnit.SECONDS);
+        assertEquals(2, leaked.size());
+        assertNull(leaked.get(0).getAcquireSite());
+        List<BucketedNumericPriorityMap.Lease<Integer>> all = pc.getLeases(0, TimeUnit.SECONDS);
+        assertEquals(3, all.size());
+        BucketedNumericPriorityMap.Lease<Integer> newest = all.get(2);
+        assertEquals(5, (int) newest.getKey());
+        assertEquals(Thread.currentThread().getName(), newest.getThreadName());
+        assertNotNull(newest.getAcquireSite());
+
+        // leases end with explicit removal
+        pc.remove(6);
+        assertFalse(pc.release(6));
+        assertEquals(20, pc.getPinnedCost(), 0);
+    }
+
+    @Test
+    public void testLeasesAndExpiry() {
+        System.out.println("LeasesAndExpiry");
+        ClockedMap pc = new ClockedMap(-1);
+        final List<String> removals = new ArrayList<String>();
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                removals.add(reason + " " + entry.getKey());
+            }
+        });
+        pc.put(1, 1.0, 50, 10, TimeUnit.SECONDS);        // expires at 1010
+        pc.put(2, 2.0, 50, 10, TimeUnit.SECONDS);
+        pc.put(3, 4.0, 50, 10, TimeUnit.SECONDS);
+        assertEquals(1.0, pc.acquire(1), 0);
+        assertEquals(4.0, pc.acquire(3), 0);
+
+        // pinned elements are hidden when they expire, but not removed yet
+        pc.now = 1010;
+        assertNull(pc.get(3));
+        assertFalse(pc.contains(3));
+        assertNull(pc.acquire(3));
+        pc.now = 1100;
+        pc.expireEntries();
+        assertEquals("[EXPIRED 2]", removals.toString());
+        assertNull(pc.get(1));
+        assertTrue(pc.isPinned(1));
+        assertEquals(2, pc.size());
+
+        pc.release(1);
+        assertEquals("[EXPIRED 2, EXPIRED 1]", removals.toString());
+        pc.release(3);
+        assertEquals("[EXPIRED 2, EXPIRED 1, EXPIRED 3]", removals.toString());
+        assertEquals(0, pc.size());
+        assertEquals(0, pc.getPinnedCost(), 0);
+        assertEquals(0, pc.getCurrentTotalCost(), 0);
+    }
+
+    @Test
+    public void testLeasesAndOtherEvictors() {
+        System.out.println("LeasesAndOtherEvictors");
+        // the shared budget's candidate got pinned after the budget peeked at it
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, null);
+        pc.put(1, 1.0, 10);
+        pc.put(2, 1.0, 20);
+        NumericPriorityMap.Entry<?, ?> candidate = pc.peekEvictionCandidate();
+        assertEquals((Object) 1, candidate.getKey());
+        pc.acquire(1);
+        assertFalse(pc.evictIfCurrent(candidate));
+        assertTrue(pc.contains(1));
+        assertEquals((Object) 2, pc.peekEvictionCandidate().getKey());
+
+        // the admission filter doesn't compare against a popular pinned element...
+        pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 3, null);
+        pc.setAdmissionFilter(new FrequencySketch<Integer>(10));
+        for (int k = 0; k < 3; k++) {
+            pc.put(k, 1.0, 50);
+        }
+        for (int i = 0; i < 5; i++) {
+            pc.get(0);
+        }
+        pc.get(100);
+        pc.get(100);
+        pc.acquire(0);
+        pc.put(100, 1.0, 50);
+        assertTrue(pc.contains(100));
+        assertTrue(pc.contains(0));
+        assertFalse(pc.contains(1));
+
+        // ...and doesn't count an unpopular pinned element as freed space
+        pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 3, null);
+        pc.setAdmissionFilter(new FrequencySketch<Integer>(10));
+        for (int k = 0; k < 3; k++) {
+            pc.put(k, 1.0, 50);
+        }
+        for (int i = 0; i < 5; i++) {
+            pc.get(1);
+        }
+        pc.get(200);
+        pc.get(200);
+        pc.acquire(0);
+        pc.put(200, 1.0, 50);
+        assertFalse(pc.contains(200));
+        assertEquals(3, pc.size());
+    }
+
+    @Test
+    public void testWeaklyConsistentIterator() throws Exception {
+        System.out.println("WeaklyConsistentIterator");
+        final BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 500, identityCost);
+        pc.setAdaptiveBuckets(true);
+        for (int i = 0; i < 500; i++) {
+            pc.put(i, 1.0, i % 100);
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Random r = new Random(4711);
+                    while (!done.get()) {
+                        int k = r.nextInt(1000);
+                        int op = r.nextInt(3);
+                        if (op == 0) {
+                            pc.put(k, 1.0, r.nextInt(100));
+                        } else if (op == 1) {
+                            pc.setPriority(k, r.nextInt(100));
+                        } else {
+                            pc.remove(k);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int round = 0; round < 50; round++) {
+                int n = 0;
+                Iterator<NumericPriorityMap.Entry<Integer, Double>> it = round % 2 == 0 ? pc.entryIterator() : pc.reverseEntryIterator();
+                while (it.hasNext()) {
+                    NumericPriorityMap.Entry<Integer, Double> e = it.next();
+                    assertNotNull(e.getKey());
+                    if (e.getKey() % 7 == 0) {
+                        it.remove();
+                    }
+                    if (++n % 16 == 0) {
+                        Thread.yield();
+                    }
+                }
+                assertTrue(n <= 2000);
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // the iterator only removes the element it has returned, not a later replacement
+        BucketedNumericPriorityMap<Integer, Double> small = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, null);
+        small.put(1, 1.0, 10);
+        Iterator<NumericPriorityMap.Entry<Integer, Double>> it = small.entryIterator();
+        it.next();
+        small.remove(1);
+        small.put(1, 3.0, 10);
+        it.remove();
+        assertEquals(3.0, small.get(1), 0);
+        // ... also if the replacement is a put() on the existing element
+        it = small.entryIterator();
+        it.next();
+        small.put(1, 4.0, 10);
+        it.remove();
+        assertEquals(4.0, small.get(1), 0);
+        it = small.entryIterator();
+        it.next();
+        it.remove();
+        assertTrue(small.isEmpty());
+    }
+
+    @Test
+    public void testSplitIterator() throws Exception {
+        System.out.println("SplitIterator");
+        final BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 16, -1, null);
+        Random r = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            pc.put(i, (double) i, r.nextInt(100));
+        }
+        for (boolean reverse : new boolean[] { false, true }) {
+            // recursively split into (at most) 8 parts; concatenated, they
+            // yield the unsplit iteration order
+            List<BucketedNumericPriorityMap<Integer, Double>.EntryIterator> parts = new ArrayList<BucketedNumericPriorityMap<Integer, Double>.EntryIterator>();
+            parts.add(reverse ? pc.reverseEntryIterator() : pc.entryIterator());
+            assertEquals(10000, parts.get(0).estimateSize());
+            for (int round = 0; round < 3; round++) {
+                for (int i = parts.size() - 1; i >= 0; i--) {
+                    BucketedNumericPriorityMap<Integer, Double>.EntryIterator split = parts.get(i).trySplit();
+                    if (split != null) {
+                        parts.add(i + 1, split);
+                    }
+                }
+            }
+            assertEquals(8, parts.size());
+            int sizeSum = 0;
+            for (BucketedNumericPriorityMap<Integer, Double>.EntryIterator part : parts) {
+                int size = part.estimateSize();
+                assertTrue(size > 0 && size < 10000 / 4);
+                sizeSum += size;
+            }
+            assertEquals(10000, sizeSum);
+
+            // process the parts in parallel
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+            for (final BucketedNumericPriorityMap<Integer, Double>.EntryIterator part : parts) {
+                results.add(executor.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() {
+                        List<Integer> keys = new ArrayList<Integer>();
+                        while (part.hasNext()) {
+                            keys.add(part.next().getKey());
+                        }
+                        return keys;
+                    }
+                }));
+            }
+            List<Integer> keys = new ArrayList<Integer>();
+            for (Future<List<Integer>> f : results) {
+                keys.addAll(f.get());
+            }
+            executor.shutdown();
+            List<Integer> expected = new ArrayList<Integer>();
+            for (Iterator<NumericPriorityMap.Entry<Integer, Double>> it = reverse ? pc.reverseEntryIterator() : pc.entryIterator(); it.hasNext();) {
+                expected.add(it.next().getKey());
+            }
+            assertEquals(expected, keys);
+        }
+
+        // a single bucket can't be split; an exhausted iterator neither
+        BucketedNumericPriorityMap<Integer, Double> single = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 1, -1, null);
+        single.put(1, 1.0, 50);
+        BucketedNumericPriorityMap<Integer, Double>.EntryIterator it = single.entryIterator();
+        assertNull(it.trySplit());
+        it.next();
+        assertNull(it.trySplit());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testListenersRunInCallingThread() throws Exception {
+        System.out.println("ListenersRunInCallingThread");
+        final BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, -1, identityCost);
+        final Thread[] threads = new Thread[2];
+        final int[] delivered = new int[2];
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, Double>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, Double> entry, NumericPriorityMap.RemovalReason reason) {
+                // thread i only replaces the keys k with k % 2 == i
+                int owner = entry.getKey() % 2;
+                if (Thread.currentThread() != threads[owner]) {
+                    failure.compareAndSet(null, "replacement of " + entry.getKey() + " reported in the wrong thread");
+                }
+                delivered[owner]++;
+            }
+        });
+        for (int i = 0; i < 2; i++) {
+            final int owner = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 20000; n++) {
+                        int before = delivered[owner];
+                        pc.put(2 * (n % 10) + owner, 1.0, n % 100);
+                        if (n >= 10 && delivered[owner] != before + 1) {
+                            failure.compareAndSet(null, "replacement not reported before put() returned");
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(failure.get());
+        assertEquals(20000 - 10, delivered[0]);
+        assertEquals(20000 - 10, delivered[1]);
+    }
+
+    @Test
+    public void testAsyncEviction() throws Exception {
+        System.out.println("AsyncEviction");
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 100, identityCost);
+        pc.setAsyncEviction(true);
+        pc.setEvictionBatchSize(8);
+        assertTrue(pc.isAsyncEviction());
+        for (int i = 0; i < 100; i++) {
+            pc.put(i, 1.0, i);
+        }
+        synchronized (pc) {
+            // the evictor can't get at the map while we hold its monitor
+            pc.put(1000, 50.0, 99);
+            assertEquals(150, pc.getCurrentTotalCost(), 0);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pc.getCurrentTotalCost() > 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(100, pc.getCurrentTotalCost(), 0);
+        assertFalse(pc.contains(49));
+        assertTrue(pc.contains(50));
+
+        // above the hard limit, the putting thread evicts down to it inline
+        pc.setHardMaxTotalCost(120);
+        pc.put(2000, 70.0, 99);
+        assertTrue(pc.getCurrentTotalCost() <= 120);
+
+        // switching the mode off evicts the rest inline
+        pc.setAsyncEviction(false);
+        assertFalse(pc.isAsyncEviction());
+        assertTrue(pc.getCurrentTotalCost() <= 100);
+        pc.put(3000, 60.0, 99);
+        assertTrue(pc.getCurrentTotalCost() <= 100);
+    }
+
+    private static Set<Thread> evictorThreads() {
+        Set<Thread> result = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("BucketedNumericPriorityMap evictor")) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testAsyncEvictionUnreachableMap() throws Exception {
+        System.out.println("AsyncEvictionUnreachableMap");
+        Set<Thread> before = evictorThreads();
+        BucketedNumericPriorityMap<Integer, Double> pc = new BucketedNumericPriorityMap<Integer, Double>(0, 100, 10, 100, identityCost);
+        pc.setAsyncEviction(true);
+        pc.put(1, 1.0, 1);
+        Set<Thread> evictors = evictorThreads();
+        evictors.removeAll(before);
+        assertEquals(1, evictors.size());
+        Thread evictor = evictors.iterator().next();
+        WeakReference<?> ref = new WeakReference<Object>(pc);
+        pc = null;
+        // the idle evictor doesn't keep the map alive, and terminates after it's gone
+        long deadline = System.currentTimeMillis() + 20000;
+        while ((ref.get() != null || evictor.isAlive()) && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertNull(ref.get());
+        assertFalse(evictor.isAlive());
+    }
+
+}
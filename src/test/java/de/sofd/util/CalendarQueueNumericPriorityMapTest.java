@@ -0,0 +1,179 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link NumericPriorityMapTest} tests against
+ * {@link CalendarQueueNumericPriorityMap}, with exact (rather than
+ * bucket-granular) ordering expectations where they differ.
+ *
+ * @author olaf
+ */
+public class CalendarQueueNumericPriorityMapTest extends NumericPriorityMapTest {
+
+    @Override
+    protected NumericPriorityMap<String, EltValue> newMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<EltValue, Double> elementCostFunction) {
+        return new CalendarQueueNumericPriorityMap<String, EltValue>((highPrio - lowPrio) / nBuckets, maxTotalCost, elementCostFunction, false);
+    }
+
+    /**
+     * Same as in the superclass, but the bucketed maps evict c25-p24 after the
+     * p25 elements because they're all in the same bucket.
+     */
+    @Override
+    @Test
+    public void testPriorities2() {
+        System.out.println("Priorities2");
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 30, 500, costFunction);
+        pc.put("c30-p50", new EltValue("1", 30), 50);
+        pc.put("c40-p40", new EltValue("2", 40), 40);
+        pc.put("c20-p20", new EltValue("3", 20), 20);
+        pc.put("c50-p25", new EltValue("4", 50), 25);
+        pc.put("c30-p35", new EltValue("5", 30), 35);
+        pc.put("c40-p25", new EltValue("6", 40), 25);
+        pc.put("c20-p25", new EltValue("7", 20), 25);
+        pc.put("c25-p24", new EltValue("8", 25), 24);
+        assertEquals(255, pc.getCurrentTotalCost(), 0.001);
+        assertIterationValues(pc, false, "3", "8", "4", "6", "7", "5", "2", "1");
+        pc.put("c380-p60", new EltValue("9", 380), 60);  // evicts 3, 8, 4, 6
+        assertEquals(500, pc.getCurrentTotalCost(), 0.001);
+        assertIterationValues(pc, false, "7", "5", "2", "1", "9");
+    }
+
+    /**
+     * An element (priority, seq) of the reference model.
+     */
+    private static class Ref {
+        final String k;
+        final double priority;
+        final long seq;
+
+        Ref(String k, double priority, long seq) {
+            this.k = k;
+            this.priority = priority;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Ref> refOrder = new Comparator<Ref>() {
+        @Override
+        public int compare(Ref a, Ref b) {
+            int c = Double.compare(a.priority, b.priority);
+            return c != 0 ? c : (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+        }
+    };
+
+    private static void assertSameOrder(Map<String, Ref> model, CalendarQueueNumericPriorityMap<String, String> map) {
+        List<Ref> expected = new ArrayList<Ref>(model.values());
+        Collections.sort(expected, refOrder);
+        assertEquals(expected.size(), map.size());
+        Iterator<NumericPriorityMap.Entry<String, String>> it = map.entryIterator();
+        for (Ref r : expected) {
+            NumericPriorityMap.Entry<String, String> e = it.next();
+            assertEquals(r.k, e.getKey());
+            assertEquals(r.priority, e.getPriority(), 0);
+        }
+        assertFalse(it.hasNext());
+        it = map.reverseEntryIterator();
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertEquals(expected.get(i).k, it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testExactOrderRandomized() {
+        System.out.println("ExactOrderRandomized");
+        Random r = new Random(4711);
+        CalendarQueueNumericPriorityMap<String, String> map = new CalendarQueueNumericPriorityMap<String, String>(-1, null);
+        Map<String, Ref> model = new HashMap<String, Ref>();
+        long seq = 0;
+        for (int round = 0; round < 20; round++) {
+            // shift and scale the priority distribution, with occasional
+            // outliers and many duplicates
+            double offset = (r.nextDouble() - 0.5) * Math.pow(10, r.nextInt(8));
+            double scale = Math.pow(10, r.nextInt(7) - 3);
+            for (int i = 0; i < 2000; i++) {
+                String k = "k" + r.nextInt(3000);
+                double p;
+                int kind = r.nextInt(100);
+                if (kind < 2) {
+                    p = (r.nextBoolean() ? 1 : -1) * 1e15 * r.nextDouble();
+                } else if (kind < 20) {
+                    p = offset + Math.floor(r.nextDouble() * 10) * scale;
+                } else {
+                    p = offset + r.nextGaussian() * 100 * scale;
+                }
+                int op = r.nextInt(10);
+                if (op < 6) {
+                    map.put(k, k, p);
+                    model.put(k, new Ref(k, p, seq++));
+                } else if (op < 8) {
+                    if (model.containsKey(k)) {
+                        map.setPriority(k, p);
+                        model.put(k, new Ref(k, p, seq++));
+                    }
+                } else {
+                    assertEquals(model.remove(k) != null, map.remove(k) != null);
+                }
+            }
+            assertSameOrder(model, map);
+        }
+        assertTrue(map.getRebuildCount() > 0);
+
+        // drain from both ends
+        map.setMaxTotalCost(100);
+        List<Ref> expected = new ArrayList<Ref>(model.values());
+        Collections.sort(expected, refOrder);
+        for (Ref ref : expected.subList(0, expected.size() - 100)) {
+            model.remove(ref.k);
+        }
+        assertSameOrder(model, map);
+        map.setReverseEviction(true);
+        map.setMaxTotalCost(10);
+        expected = new ArrayList<Ref>(model.values());
+        Collections.sort(expected, refOrder);
+        for (Ref ref : expected.subList(10, expected.size())) {
+            model.remove(ref.k);
+        }
+        assertSameOrder(model, map);
+    }
+
+    @Test
+    public void testAdaptation() {
+        System.out.println("Adaptation");
+        CalendarQueueNumericPriorityMap<Integer, Integer> map = new CalendarQueueNumericPriorityMap<Integer, Integer>(1, -1, null, false);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i, i * 1e-6);  // all in day 0 with the initial width
+        }
+        assertTrue(map.getBucketCount() >= 5000);
+        assertTrue(map.getBucketWidth() < 1e-3);
+        Iterator<NumericPriorityMap.Entry<Integer, Integer>> it = map.entryIterator();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, (int) it.next().getKey());
+        }
+        for (int i = 0; i < 9990; i++) {
+            map.remove(i);
+        }
+        assertTrue(map.getBucketCount() <= 64);
+        assertEquals(9990, (int) map.entryIterator().next().getKey());
+        try {
+            map.put(1, 1, Double.NaN);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs all of {@link NumericPriorityMapTest} against
+ * {@link ConcurrentBucketedNumericPriorityMap}, plus a multi-threaded
+ * consistency test.
+ *
+ * @author olaf
+ */
+public class ConcurrentBucketedNumericPriorityMapTest extends NumericPriorityMapTest {
+
+    @Override
+    protected NumericPriorityMap<String, EltValue> newMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<EltValue, Double> elementCostFunction) {
+        return new ConcurrentBucketedNumericPriorityMap<String, EltValue>(lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction);
+    }
+
+    @Test
+    public void testConcurrentModification() throws Exception {
+        System.out.println("ConcurrentModification");
+        final NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 2000, costFunction);
+        ((MonitoredNumericPriorityMap<String, EltValue>) pc).setStatisticsEnabled(true);
+        final AtomicInteger nGets = new AtomicInteger(), nPuts = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            String k = "" + r.nextInt(500);
+                            int op = r.nextInt(10);
+                            if (op < 5) {
+                                nGets.incrementAndGet();
+                                EltValue v = pc.get(k);
+                                if (v != null) {
+                                    assertEquals(k, v.getId());
+                                }
+                            } else if (op < 8) {
+                                nPuts.incrementAndGet();
+                                pc.put(k, new EltValue(k, 1 + r.nextInt(20)), r.nextInt(100));
+                            } else if (op < 9) {
+                                pc.setPriority(k, r.nextInt(100));
+                            } else {
+                                pc.remove(k);
+                            }
+                        }
+                        // weakly consistent iteration while others are still writing
+                        for (Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator(); it.hasNext();) {
+                            assertNotNull(it.next().getKey());
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // quiescent state: cost accounting, statistics and bucket order must be exact
+        NumericPriorityMapStatistics stats = ((MonitoredNumericPriorityMap<String, EltValue>) pc).getStatistics();
+        assertEquals(nGets.get(), stats.getRequestCount());
+        assertEquals(nPuts.get(), stats.getPutCount());
+        assertTrue(stats.getEvictionCount() > 0);
+        double costSum = 0;
+        for (double c : stats.getCostPerBucket()) {
+            costSum += c;
+        }
+        assertEquals(pc.getCurrentTotalCost(), costSum, 0.001);
+        assertTrue(pc.getCurrentTotalCost() <= 2000);
+        double sum = 0;
+        int n = 0;
+        double lastBucketStart = Double.NEGATIVE_INFINITY;
+        for (Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator(); it.hasNext();) {
+            NumericPriorityMap.Entry<String, EltValue> e = it.next();
+            double bucketStart = Math.floor(e.getPriority() / 10) * 10;
+            assertTrue(bucketStart >= lastBucketStart);
+            lastBucketStart = bucketStart;
+            assertSame(e.getValue(), pc.get(e.getKey()));
+            sum += e.getValue().getCost();
+            n++;
+        }
+        assertEquals(pc.size(), n);
+        assertEquals(sum, pc.getCurrentTotalCost(), 0.001);
+    }
+
+    @Test
+    public void testEvictionUnderChurn() throws Exception {
+        System.out.println("EvictionUnderChurn");
+        // elements keep moving in and out of the lowest bucket while the
+        // writers evict; eviction must neither hang nor lose track of the cost
+        final NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 50, costFunction);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            String k = "" + r.nextInt(100);
+                            if (seed % 2 == 0) {
+                                pc.put(k, new EltValue(k, 1), r.nextBoolean() ? 5 : 95);
+                            } else {
+                                pc.setPriority(k, r.nextBoolean() ? 5 : 95);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(60000);
+            assertFalse(t.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        pc.put("last", new EltValue("last", 1), 50);
+        assertTrue(pc.getCurrentTotalCost() <= 50);
+        int n = 0;
+        for (Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(pc.size(), n);
+    }
+
+}
@@ -0,0 +1,175 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Trace replay benchmark for the {@link EvictionPolicy eviction policies} of
+ * {@link BucketedNumericPriorityMap}: replays a request trace against a cache
+ * using {@link EvictionPolicy#PRIORITY}, GDS and GDSF (see
+ * {@link GreedyDualSizePolicy}), and prints the hit ratio, the byte hit ratio,
+ * the fraction of the re-fetch penalty that was saved, and the time per
+ * request.
+ * <p>
+ * Without arguments, a synthetic trace is used: Zipf distributed requests to
+ * many small thumbnails and few large volumes, with a re-fetch penalty of a
+ * fixed latency plus the transfer time. Alternatively, a trace file can be
+ * given as the first argument, with one request per line in the format "key
+ * size [penalty]" (the penalty defaults to the size). An optional second
+ * argument sets the cache size as a fraction of the total size of all
+ * distinct objects (default 0.05).
+ * <p>
+ * Not a unit test; run the main method manually.
+ *
+ * @author olaf
+ */
+public class EvictionPolicyTraceBenchmark {
+
+    private static final int N_OBJECTS = 20000;
+    private static final int N_REQUESTS = 1000000;
+    private static final double ZIPF_EXPONENT = 0.8;
+    private static final double VOLUME_FRACTION = 0.02;
+
+    private static class Request {
+        final int key;
+        final double size;
+        final double penalty;
+
+        Request(int key, double size, double penalty) {
+            this.key = key;
+            this.size = size;
+            this.penalty = penalty;
+        }
+    }
+
+    private static Function1<Double, Double> sizeCost = new Function1<Double, Double>() {
+        @Override
+        public Double run(Double size) {
+            return size;
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        Request[] trace = args.length > 0 ? readTrace(args[0]) : syntheticTrace();
+        double cacheFraction = args.length > 1 ? Double.parseDouble(args[1]) : 0.05;
+        double maxPenalty = 0;
+        Map<Integer, Double> objectSizes = new HashMap<Integer, Double>();
+        for (Request r : trace) {
+            maxPenalty = Math.max(maxPenalty, r.penalty);
+            objectSizes.put(r.key, r.size);
+        }
+        double totalObjectSize = 0;
+        for (double size : objectSizes.values()) {
+            totalObjectSize += size;
+        }
+        double maxTotalCost = cacheFraction * totalObjectSize;
+        System.out.printf("%d requests, cache size %.0f (%.1f%% of %.0f)%n", trace.length, maxTotalCost, 100 * cacheFraction, totalObjectSize);
+
+        // warmup
+        for (int i = 0; i < 2; i++) {
+            for (EvictionPolicy policy : policies()) {
+                replay(trace, policy, maxTotalCost, maxPenalty);
+            }
+        }
+        System.out.println("policy    hit ratio  byte hit ratio  penalty saved  time/request[ns]");
+        for (EvictionPolicy policy : policies()) {
+            double[] result = replay(trace, policy, maxTotalCost, maxPenalty);
+            System.out.printf("%-8s  %9.4f  %14.4f  %13.4f  %16.1f%n", policy, result[0], result[1], result[2], result[3]);
+        }
+    }
+
+    private static EvictionPolicy[] policies() {
+        return new EvictionPolicy[] {EvictionPolicy.PRIORITY, new GreedyDualSizePolicy(false), new GreedyDualSizePolicy(true)};
+    }
+
+    /**
+     * @return hit ratio, byte hit ratio, saved penalty ratio, ns per request
+     */
+    private static double[] replay(Request[] trace, EvictionPolicy policy, double maxTotalCost, double maxPenalty) {
+        BucketedNumericPriorityMap<Integer, Double> cache = new BucketedNumericPriorityMap<Integer, Double>(0, maxPenalty, 64, maxTotalCost, sizeCost);
+        cache.setEvictionPolicy(policy);
+        long hits = 0;
+        double bytes = 0, hitBytes = 0, penalty = 0, savedPenalty = 0;
+        long t0 = System.nanoTime();
+        for (Request r : trace) {
+            bytes += r.size;
+            penalty += r.penalty;
+            if (cache.get(r.key) != null) {
+                hits++;
+                hitBytes += r.size;
+                savedPenalty += r.penalty;
+            } else {
+                cache.put(r.key, r.size, r.penalty);
+            }
+        }
+        long t1 = System.nanoTime();
+        return new double[] {(double) hits / trace.length, hitBytes / bytes, savedPenalty / penalty, (double) (t1 - t0) / trace.length};
+    }
+
+    private static Request[] syntheticTrace() {
+        Random rnd = new Random(4711);
+        double[] sizes = new double[N_OBJECTS];
+        double[] penalties = new double[N_OBJECTS];
+        for (int i = 0; i < N_OBJECTS; i++) {
+            boolean volume = rnd.nextDouble() < VOLUME_FRACTION;
+            sizes[i] = volume ? 200 + rnd.nextInt(800) : 1 + rnd.nextInt(4);
+            penalties[i] = 50 + sizes[i];  // latency + transfer
+        }
+        // Zipf popularity by rank; ranks are assigned to random objects
+        double[] cdf = new double[N_OBJECTS];
+        double sum = 0;
+        for (int rank = 0; rank < N_OBJECTS; rank++) {
+            sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cdf[rank] = sum;
+        }
+        int[] objectOfRank = new int[N_OBJECTS];
+        for (int i = 0; i < N_OBJECTS; i++) {
+            objectOfRank[i] = i;
+        }
+        for (int i = N_OBJECTS - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = objectOfRank[i];
+            objectOfRank[i] = objectOfRank[j];
+            objectOfRank[j] = tmp;
+        }
+        Request[] result = new Request[N_REQUESTS];
+        for (int i = 0; i < N_REQUESTS; i++) {
+            int rank = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            int key = objectOfRank[Math.min(rank, N_OBJECTS - 1)];
+            result[i] = new Request(key, sizes[key], penalties[key]);
+        }
+        return result;
+    }
+
+    private static Request[] readTrace(String fileName) throws IOException {
+        List<Request> result = new ArrayList<Request>();
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2 || fields[0].startsWith("#")) {
+                    continue;
+                }
+                double size = Double.parseDouble(fields[1]);
+                double penalty = fields.length > 2 ? Double.parseDouble(fields[2]) : size;
+                result.add(new Request(Integer.parseInt(fields[0]), size, penalty));
+            }
+        } finally {
+            in.close();
+        }
+        return result.toArray(new Request[result.size()]);
+    }
+
+}
@@ -0,0 +1,55 @@
+package de.sofd.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void testFrequencies() {
+        System.out.println("Frequencies");
+        FrequencySketch<String> sketch = new FrequencySketch<String>(1000);
+        assertEquals(8192, sketch.getTableBytes());
+        for (int i = 0; i < 1000; i++) {
+            String k = "k" + i;
+            for (int j = 0; j < i % 10; j++) {
+                sketch.increment(k);
+            }
+        }
+        int overestimated = 0;
+        for (int i = 0; i < 1000; i++) {
+            int f = sketch.frequency("k" + i);
+            assertTrue(f >= i % 10);  // never underestimates
+            if (f > i % 10) {
+                overestimated++;
+            }
+        }
+        assertTrue("" + overestimated, overestimated < 50);
+        for (int j = 0; j < 100; j++) {
+            sketch.increment("hot");
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        sketch.clear();
+        assertEquals(0, sketch.frequency("hot"));
+    }
+
+    @Test
+    public void testAging() {
+        System.out.println("Aging");
+        FrequencySketch<Integer> sketch = new FrequencySketch<Integer>(16);
+        for (int j = 0; j < 8; j++) {
+            sketch.increment(-1);
+        }
+        assertEquals(8, sketch.frequency(-1));
+        // 10 increments per (rounded) expected key trigger a halving
+        for (int i = 0; sketch.getResetCount() == 0; i++) {
+            sketch.increment(i % 1000);
+        }
+        assertTrue(sketch.frequency(-1) <= 4);
+    }
+
+}
@@ -0,0 +1,116 @@
+package de.sofd.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class LongNumericPriorityMapTest {
+
+    private static List<String> iterationValues(LongNumericPriorityMap<String> pc, boolean reverse) {
+        List<String> result = new ArrayList<String>();
+        Iterator<LongNumericPriorityMap.Entry<String>> it = reverse ? pc.reverseEntryIterator() : pc.entryIterator();
+        while (it.hasNext()) {
+            result.add(it.next().getValue());
+        }
+        return result;
+    }
+
+    @Test
+    public void testSimpleMapping() {
+        System.out.println("SimpleMapping");
+        LongNumericPriorityMap<String> pc = new LongNumericPriorityMap<String>(0, 100, 10, 1000, null);
+        assertTrue(pc.isEmpty());
+        pc.put(1L << 40, "foo", 0);
+        pc.put(-7, "bar", 0);
+        pc.put(0, "baz", 0);
+        assertEquals(3, pc.size());
+        assertEquals("foo", pc.get(1L << 40));
+        assertEquals("bar", pc.get(-7));
+        assertEquals("baz", pc.get(0));
+        assertNull(pc.get(1));
+        assertTrue(pc.contains(-7));
+        assertFalse(pc.contains(7));
+        assertEquals("bar", pc.put(-7, "bar2", 5));
+        assertEquals(5, pc.getPriority(-7), 0);
+        assertTrue(Double.isNaN(pc.getPriority(8)));
+        assertEquals("bar2", pc.remove(-7));
+        assertNull(pc.remove(-7));
+        assertEquals(2, pc.size());
+        assertEquals(2, pc.getCurrentTotalCost(), 0);
+    }
+
+    @Test
+    public void testPrioritiesAndEviction() {
+        System.out.println("PrioritiesAndEviction");
+        LongNumericPriorityMap<String> pc = new LongNumericPriorityMap<String>(0, 100, 10, 4, null);
+        pc.put(1, "p50", 50);
+        pc.put(2, "p40", 40);
+        pc.put(3, "p100", 100);
+        pc.put(4, "p60a", 60);
+        pc.put(5, "p60b", 60);   // evicts p40
+        assertEquals(4, pc.size());
+        assertFalse(pc.contains(2));
+        assertArrayEquals(new Object[]{"p50", "p60a", "p60b", "p100"}, iterationValues(pc, false).toArray());
+        assertArrayEquals(new Object[]{"p100", "p60b", "p60a", "p50"}, iterationValues(pc, true).toArray());
+
+        pc.setPriority(3, 20);
+        pc.setPriority(77, 20);
+        assertArrayEquals(new Object[]{"p100", "p50", "p60a", "p60b"}, iterationValues(pc, false).toArray());
+        pc.setReverseEviction(true);
+        pc.setMaxTotalCost(2);   // evicts p60b, p60a
+        assertArrayEquals(new Object[]{"p100", "p50"}, iterationValues(pc, false).toArray());
+
+        Iterator<LongNumericPriorityMap.Entry<String>> it = pc.entryIterator();
+        assertEquals(3, it.next().getKey());
+        it.remove();
+        assertEquals(1, pc.size());
+        assertFalse(pc.contains(3));
+    }
+
+    @Test
+    public void testRandomOperationsAgainstHashMap() {
+        System.out.println("RandomOperationsAgainstHashMap");
+        LongNumericPriorityMap<String> pc = new LongNumericPriorityMap<String>(0, 100, 10, -1, null);
+        Map<Long, String> ref = new HashMap<Long, String>();
+        Random r = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            // small key space => lots of collisions and deletions in the same probe sequences
+            long k = r.nextInt(3000) * 0x100000000L;
+            switch (r.nextInt(4)) {
+            case 0:
+            case 1:
+                assertEquals(ref.put(k, "v" + i), pc.put(k, "v" + i, r.nextInt(100)));
+                break;
+            case 2:
+                assertEquals(ref.remove(k), pc.remove(k));
+                break;
+            default:
+                assertEquals(ref.get(k), pc.get(k));
+            }
+        }
+        assertEquals(ref.size(), pc.size());
+        for (Map.Entry<Long, String> e : ref.entrySet()) {
+            assertEquals(e.getValue(), pc.get(e.getKey()));
+        }
+        int n = 0;
+        int lastBucket = -1;
+        for (Iterator<LongNumericPriorityMap.Entry<String>> it = pc.entryIterator(); it.hasNext(); n++) {
+            LongNumericPriorityMap.Entry<String> e = it.next();
+            assertEquals(ref.get(e.getKey()), e.getValue());
+            int bucket = (int) (e.getPriority() / 10);
+            assertTrue(bucket >= lastBucket);
+            lastBucket = bucket;
+        }
+        assertEquals(ref.size(), n);
+    }
+
+}
@@ -0,0 +1,209 @@
+package de.sofd.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class MemoryPressureControllerTest {
+
+    /**
+     * Controller with simulated memory usage and clock (in seconds).
+     */
+    private static class SimulatedController extends MemoryPressureController {
+        double usedFraction = 0.5;
+        long time = 0;
+
+        @Override
+        protected double getUsedFraction() {
+            return usedFraction;
+        }
+
+        @Override
+        protected long nanoTime() {
+            return TimeUnit.SECONDS.toNanos(time);
+        }
+    }
+
+    private static BucketedNumericPriorityMap<Integer, String> newFilledMap(int n) {
+        BucketedNumericPriorityMap<Integer, String> map = new BucketedNumericPriorityMap<Integer, String>(0, 100, 10, 100, null);
+        for (int i = 0; i < n; i++) {
+            map.put(i, "" + i, i);
+        }
+        return map;
+    }
+
+    @Test
+    public void testShrinkAndGrow() {
+        System.out.println("ShrinkAndGrow");
+        SimulatedController c = new SimulatedController();
+        c.setCooldown(5, TimeUnit.SECONDS);
+        BucketedNumericPriorityMap<Integer, String> map = newFilledMap(80);
+        BucketedNumericPriorityMap<Integer, String> small = newFilledMap(10);
+        BucketedNumericPriorityMap<Integer, String> idle = newFilledMap(10);
+        c.register(map);
+        c.register(small, 100, 80);
+        c.register(idle);
+        assertEquals(100, map.getMaxTotalCost(), 0);
+
+        c.check();
+        assertFalse(c.isShrunk());
+        assertEquals(0, c.getGrowCount());
+
+        // pressure: shrink the budgets, evicting low priorities first
+        c.usedFraction = 0.9;
+        c.check();
+        assertTrue(c.isShrunk());
+        assertEquals(75, map.getMaxTotalCost(), 0);
+        assertEquals(75, map.size());
+        assertFalse(map.contains(4));
+        assertTrue(map.contains(5));
+        assertEquals(80, small.getMaxTotalCost(), 0);  // floor
+        assertEquals(10, small.size());
+        assertEquals(75, idle.getMaxTotalCost(), 0);
+        assertEquals(10, idle.size());
+
+        // cooldown
+        c.time = 4;
+        c.check();
+        assertEquals(1, c.getShrinkCount());
+        c.time = 5;
+        c.check();
+        assertEquals(2, c.getShrinkCount());
+        assertEquals(56.25, map.getMaxTotalCost(), 0);
+        assertEquals(56, map.size());
+        assertEquals(80, small.getMaxTotalCost(), 0);
+        // idle maps shrink in proportion to their budget, not their content
+        assertEquals(56.25, idle.getMaxTotalCost(), 0);
+
+        // hysteresis: between the watermarks, nothing happens
+        c.usedFraction = 0.7;
+        c.time = 100;
+        c.check();
+        assertEquals(2, c.getShrinkCount());
+        assertEquals(0, c.getGrowCount());
+        assertEquals(56.25, map.getMaxTotalCost(), 0);
+
+        // headroom: grow back step by step, up to the ceilings
+        c.usedFraction = 0.3;
+        c.check();
+        assertEquals(66.25, map.getMaxTotalCost(), 0);
+        assertEquals(90, small.getMaxTotalCost(), 0);
+        c.time = 102;
+        c.check();
+        assertEquals(66.25, map.getMaxTotalCost(), 0);
+        for (int i = 1; i <= 10; i++) {
+            c.time = 100 + 5 * i;
+            c.check();
+        }
+        assertFalse(c.isShrunk());
+        assertEquals(100, map.getMaxTotalCost(), 0);
+        assertEquals(100, small.getMaxTotalCost(), 0);
+        assertEquals(100, idle.getMaxTotalCost(), 0);
+        long grows = c.getGrowCount();
+        c.time = 1000;
+        c.check();
+        assertEquals(grows, c.getGrowCount());
+
+        c.usedFraction = 0.9;
+        c.check();
+        assertEquals(75, map.getMaxTotalCost(), 0);
+        assertEquals(56, map.size());
+        c.unregister(map);
+        assertEquals(100, map.getMaxTotalCost(), 0);
+    }
+
+    @Test
+    public void testListenersOutsideControllerLock() {
+        System.out.println("ListenersOutsideControllerLock");
+        final SimulatedController c = new SimulatedController();
+        final BucketedNumericPriorityMap<Integer, String> map = newFilledMap(80);
+        final List<Boolean> controllerLocked = new ArrayList<Boolean>();
+        map.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, String>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, String> entry, NumericPriorityMap.RemovalReason reason) {
+                controllerLocked.add(Thread.holdsLock(c));
+            }
+        });
+        c.register(map);
+        c.usedFraction = 0.9;
+        c.check();
+        assertEquals(5, controllerLocked.size());
+        c.thresholdExceeded("some other pool");
+        c.time = 10;
+        c.check();
+        assertEquals(80 - 56, controllerLocked.size());
+        assertFalse(controllerLocked.contains(true));
+    }
+
+    @Test
+    public void testStartStop() throws Exception {
+        System.out.println("StartStop");
+        MemoryPressureController c = new MemoryPressureController();
+        c.setPollInterval(10, TimeUnit.MILLISECONDS);
+        BucketedNumericPriorityMap<Integer, String> map = newFilledMap(50);
+        c.register(map);
+        c.start();
+        assertTrue(c.isStarted());
+        Thread.sleep(50);
+        assertEquals(50, map.size());  // the test JVM isn't near its heap limit
+        c.stop();
+        assertFalse(c.isStarted());
+        c.stop();
+        try {
+            c.setWatermarks(0.9, 0.8);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRegistrationAndNotifications() throws Exception {
+        System.out.println("RegistrationAndNotifications");
+        MemoryPressureController c = new MemoryPressureController();
+        BucketedNumericPriorityMap<Integer, String> map = newFilledMap(50);
+        map.setMaxTotalCost(-1);
+        try {
+            c.register(map);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("ceiling"));
+        }
+        c.register(map, 100, 0);
+
+        // only notifications for the pools with our thresholds shrink the maps
+        c.start();
+        try {
+            c.thresholdExceeded("some other pool");
+            assertFalse(c.isShrunk());
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.isUsageThresholdSupported()
+                        && pool.getUsage().getMax() > 0) {
+                    c.thresholdExceeded(pool.getName());
+                    assertTrue(c.isShrunk());
+                    break;
+                }
+            }
+        } finally {
+            c.stop();
+        }
+
+        // direct memory
+        MemoryPressureController direct = new MemoryPressureController();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        direct.setDirectMemoryLimit(4096);
+        assertTrue(direct.getUsedFraction() >= 1);
+        assertEquals(4096, buffer.capacity());
+    }
+
+}
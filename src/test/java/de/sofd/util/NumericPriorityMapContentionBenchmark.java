@@ -0,0 +1,79 @@
+package de.sofd.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Contention benchmark: N threads hammer one map with a cache-like mix of
+ * operations (80% get, 15% put, 5% setPriority) over a key space that's
+ * larger than the map's capacity, so puts regularly trigger eviction.
+ * Compares {@link BucketedNumericPriorityMap} (one monitor) with
+ * {@link ConcurrentBucketedNumericPriorityMap} (striped) for 1..16 threads.
+ * <p>
+ * Not a unit test; run the main method manually.
+ *
+ * @author olaf
+ */
+public class NumericPriorityMapContentionBenchmark {
+
+    private static final int N_KEYS = 20000;
+    private static final int CAPACITY = 10000;
+    private static final int OPS_PER_THREAD = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 2, 4, 8, 16};
+        // warmup
+        for (int i = 0; i < 3; i++) {
+            run(new BucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, CAPACITY, null), 4);
+            run(new ConcurrentBucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, CAPACITY, null), 4);
+        }
+        System.out.println("threads  synchronized[Mops/s]  striped[Mops/s]");
+        for (int nThreads : threadCounts) {
+            double sync = run(new BucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, CAPACITY, null), nThreads);
+            double striped = run(new ConcurrentBucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, CAPACITY, null), nThreads);
+            System.out.printf("%7d  %20.2f  %15.2f%n", nThreads, sync, striped);
+        }
+    }
+
+    /**
+     * @return throughput in million operations per second
+     */
+    private static double run(final NumericPriorityMap<Integer, Integer> map, int nThreads) throws InterruptedException {
+        for (int i = 0; i < CAPACITY; i++) {
+            map.put(i, i, i % 100);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(nThreads);
+        for (int t = 0; t < nThreads; t++) {
+            final Random r = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        Integer k = r.nextInt(N_KEYS);
+                        int op = r.nextInt(100);
+                        if (op < 80) {
+                            map.get(k);
+                        } else if (op < 95) {
+                            map.put(k, k, r.nextInt(100));
+                        } else {
+                            map.setPriority(k, r.nextInt(100));
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long t1 = System.nanoTime();
+        return (double) nThreads * OPS_PER_THREAD / ((t1 - t0) / 1000.0);
+    }
+
+}
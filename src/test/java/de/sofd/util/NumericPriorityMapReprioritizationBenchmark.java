@@ -0,0 +1,100 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Re-prioritization benchmark: re-assigns the priorities of all elements of a
+ * 10k element map (like when the user scrolls through a stack and every
+ * cached slice's distance to the current one changes), comparing a
+ * setPriority() loop with {@link NumericPriorityMap#setPriorities(Map)} and
+ * {@link NumericPriorityMap#reprioritize(Function1)}, for
+ * {@link BucketedNumericPriorityMap} and
+ * {@link ConcurrentBucketedNumericPriorityMap}.
+ * <p>
+ * Not a unit test; run the main method manually.
+ *
+ * @author olaf
+ */
+public class NumericPriorityMapReprioritizationBenchmark {
+
+    private static final int N_ELEMENTS = 10000;
+    private static final int N_ROUNDS = 200;
+
+    public static void main(String[] args) {
+        // warmup
+        for (int i = 0; i < 3; i++) {
+            runAll(false);
+        }
+        System.out.println("map           setPriority loop[ms]  setPriorities[ms]  reprioritize[ms]");
+        runAll(true);
+    }
+
+    private static void runAll(boolean print) {
+        double[] bucketed = run(new BucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null),
+                new BucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null),
+                new BucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null));
+        double[] concurrent = run(new ConcurrentBucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null),
+                new ConcurrentBucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null),
+                new ConcurrentBucketedNumericPriorityMap<Integer, Integer>(0, 100, 20, -1, null));
+        if (print) {
+            System.out.printf("bucketed    %22.3f  %17.3f  %16.3f%n", bucketed[0], bucketed[1], bucketed[2]);
+            System.out.printf("concurrent  %22.3f  %17.3f  %16.3f%n", concurrent[0], concurrent[1], concurrent[2]);
+        }
+    }
+
+    /**
+     * Each variant gets its own map, so each one moves all elements from the
+     * previous round's priorities to the current round's.
+     *
+     * @return average time per 10k element re-prioritization in ms for the
+     *         loop, setPriorities() and reprioritize()
+     */
+    private static double[] run(NumericPriorityMap<Integer, Integer> loopMap, NumericPriorityMap<Integer, Integer> batchMap,
+            NumericPriorityMap<Integer, Integer> functionMap) {
+        for (int i = 0; i < N_ELEMENTS; i++) {
+            loopMap.put(i, i, i % 100);
+            batchMap.put(i, i, i % 100);
+            functionMap.put(i, i, i % 100);
+        }
+        // the current slice moves through the stack; priority = 100 - distance
+        final Map<Integer, Double>[] roundPriorities = newRoundPriorities();
+        long loopTime = 0, mapTime = 0, functionTime = 0;
+        for (int round = 0; round < N_ROUNDS; round++) {
+            final Map<Integer, Double> priorities = roundPriorities[round % roundPriorities.length];
+            long t0 = System.nanoTime();
+            for (Map.Entry<Integer, Double> e : priorities.entrySet()) {
+                loopMap.setPriority(e.getKey(), e.getValue());
+            }
+            long t1 = System.nanoTime();
+            batchMap.setPriorities(priorities);
+            long t2 = System.nanoTime();
+            functionMap.reprioritize(new Function1<Integer, Double>() {
+                @Override
+                public Double run(Integer k) {
+                    return priorities.get(k);
+                }
+            });
+            long t3 = System.nanoTime();
+            loopTime += t1 - t0;
+            mapTime += t2 - t1;
+            functionTime += t3 - t2;
+        }
+        return new double[] {loopTime / 1e6 / N_ROUNDS, mapTime / 1e6 / N_ROUNDS, functionTime / 1e6 / N_ROUNDS};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, Double>[] newRoundPriorities() {
+        Map<Integer, Double>[] result = (Map<Integer, Double>[]) new Map<?, ?>[10];
+        for (int r = 0; r < result.length; r++) {
+            int current = r * N_ELEMENTS / result.length;
+            result[r] = new HashMap<Integer, Double>();
+            for (int i = 0; i < N_ELEMENTS; i++) {
+                result[r].put(i, 100.0 - 100.0 * Math.abs(i - current) / N_ELEMENTS);
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,189 @@
+package de.sofd.util;
+
+import de.sofd.lang.Function1;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class NumericPriorityMapSnapshotTest {
+
+    private static BucketedNumericPriorityMap<String, String> newMap(boolean reverseEviction) {
+        BucketedNumericPriorityMap<String, String> map = new BucketedNumericPriorityMap<String, String>(0, 100, 10, -1,
+                new Function1<String, Double>() {
+                    @Override
+                    public Double run(String v) {
+                        return (double) v.length();
+                    }
+                }, reverseEviction);
+        map.put("b", "bb", 50);
+        map.put("a", "a", 5);
+        map.put("c", "ccc", 95);
+        return map;
+    }
+
+    private static List<String> keys(NumericPriorityMapSnapshot<String> snapshot) {
+        List<String> result = new ArrayList<String>();
+        for (NumericPriorityMapSnapshot.Element<String> e : snapshot) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        System.out.println("WriteRead");
+        NumericPriorityMapSnapshot<String> snapshot = NumericPriorityMapSnapshot.of(newMap(false));
+        assertEquals("[c, b, a]", keys(snapshot).toString());
+        assertEquals(6, snapshot.getTotalCost(), 0);
+        assertEquals("[a, b, c]", keys(NumericPriorityMapSnapshot.of(newMap(true))).toString());
+
+        File file = File.createTempFile("npm", ".snapshot");
+        try {
+            snapshot.writeTo(file, NumericPriorityMapSnapshot.STRING_KEYS);
+            assertEquals(12 + 3 * (3 + 16), file.length());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+            NumericPriorityMapSnapshot<String> read = NumericPriorityMapSnapshot.readFrom(file, NumericPriorityMapSnapshot.STRING_KEYS);
+            assertEquals(3, read.size());
+            for (int i = 0; i < 3; i++) {
+                NumericPriorityMapSnapshot.Element<String> expected = snapshot.getElements().get(i);
+                NumericPriorityMapSnapshot.Element<String> actual = read.getElements().get(i);
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getPriority(), actual.getPriority(), 0);
+                assertEquals(expected.getCost(), actual.getCost(), 0);
+            }
+
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(42);
+            out.close();
+            try {
+                NumericPriorityMapSnapshot.readFrom(file, NumericPriorityMapSnapshot.STRING_KEYS);
+                fail("exception expected");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+        System.out.println("FailedWrite");
+        NumericPriorityMapSnapshot<String> snapshot = NumericPriorityMapSnapshot.of(newMap(false));
+        File file = File.createTempFile("npm", ".snapshot");
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            // replacing an existing snapshot
+            snapshot.writeTo(file, NumericPriorityMapSnapshot.STRING_KEYS);
+            snapshot.writeTo(file, NumericPriorityMapSnapshot.STRING_KEYS);
+            assertEquals(12 + 3 * (3 + 16), file.length());
+            assertFalse(tmp.exists());
+
+            try {
+                snapshot.writeTo(file, new NumericPriorityMapSnapshot.KeyCodec<String>() {
+                    @Override
+                    public void write(String k, DataOutput out) throws IOException {
+                        throw new IOException("disk full");
+                    }
+
+                    @Override
+                    public String read(DataInput in) throws IOException {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+                fail("exception expected");
+            } catch (IOException e) {
+                assertEquals("disk full", e.getMessage());
+            }
+            assertFalse(tmp.exists());
+            assertEquals(3, NumericPriorityMapSnapshot.readFrom(file, NumericPriorityMapSnapshot.STRING_KEYS).size());
+        } finally {
+            file.delete();
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testStoredCosts() {
+        System.out.println("StoredCosts");
+        final AtomicInteger nCostCalls = new AtomicInteger();
+        Function1<String, Double> costFunction = new Function1<String, Double>() {
+            @Override
+            public Double run(String v) {
+                nCostCalls.incrementAndGet();
+                return (double) v.length();
+            }
+        };
+        List<NumericPriorityMap<String, String>> maps = new ArrayList<NumericPriorityMap<String, String>>();
+        maps.add(new BucketedNumericPriorityMap<String, String>(0, 100, 10, -1, costFunction));
+        maps.add(new ConcurrentBucketedNumericPriorityMap<String, String>(0, 100, 10, -1, costFunction));
+        maps.add(new ShardedNumericPriorityMap<String, String>(4, 0, 100, 10, -1, costFunction));
+        for (NumericPriorityMap<String, String> map : maps) {
+            for (int i = 1; i <= 20; i++) {
+                map.put("k" + i, "xxxxxxxxxxxxxxxxxxxx".substring(0, i), i * 5);
+            }
+            int before = nCostCalls.get();
+            NumericPriorityMapSnapshot<String> snapshot = NumericPriorityMapSnapshot.of(map);
+            assertEquals(before, nCostCalls.get());
+            assertEquals(20, snapshot.size());
+            assertEquals(210, snapshot.getTotalCost(), 0);
+            assertEquals("k20", snapshot.getElements().get(0).getKey());
+            assertEquals(20, snapshot.getElements().get(0).getCost(), 0);
+        }
+    }
+
+    @Test
+    public void testConsistentSnapshots() throws Exception {
+        System.out.println("ConsistentSnapshots");
+        List<NumericPriorityMap<Integer, String>> maps = new ArrayList<NumericPriorityMap<Integer, String>>();
+        maps.add(new ConcurrentBucketedNumericPriorityMap<Integer, String>(0, 100, 10, -1, null));
+        maps.add(new ShardedNumericPriorityMap<Integer, String>(4, 0, 100, 10, -1, null));
+        for (final NumericPriorityMap<Integer, String> map : maps) {
+            for (int k = 0; k < 200; k++) {
+                map.put(k, "", 5);
+            }
+            // elements keep moving between buckets; a weakly consistent
+            // iteration would return some of them twice or not at all
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; !done.get(); i++) {
+                        map.setPriority(i % 200, i % 2 == 0 ? 95 : 5);
+                    }
+                }
+            };
+            writer.start();
+            try {
+                for (int round = 0; round < 200; round++) {
+                    NumericPriorityMapSnapshot<Integer> snapshot = NumericPriorityMapSnapshot.of(map);
+                    Set<Integer> keys = new HashSet<Integer>();
+                    for (NumericPriorityMapSnapshot.Element<Integer> e : snapshot) {
+                        keys.add(e.getKey());
+                    }
+                    assertEquals(200, snapshot.size());
+                    assertEquals(200, keys.size());
+                }
+            } finally {
+                done.set(true);
+                writer.join();
+            }
+        }
+    }
+
+}
@@ -3,7 +3,12 @@ package de.sofd.util;
 import de.sofd.lang.Function1;
 import static de.sofd.util.MoreCollections.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -33,9 +38,13 @@ public class NumericPriorityMapTest {
         public double getCost() {
             return cost;
         }
+
+        public void setCost(double cost) {
+            this.cost = cost;
+        }
     }
 
-    private static Function1<EltValue, Double> costFunction = new Function1<EltValue, Double>() {
+    protected static Function1<EltValue, Double> costFunction = new Function1<EltValue, Double>() {
 
         @Override
         public Double run(EltValue p0) {
@@ -47,6 +56,15 @@ public class NumericPriorityMapTest {
     public NumericPriorityMapTest() {
     }
 
+    /**
+     * Creates the map instance under test. Override in subclasses to run
+     * these tests against other NumericPriorityMap implementations.
+     */
+    protected NumericPriorityMap<String, EltValue> newMap(double lowPrio, double highPrio, int nBuckets,
+            double maxTotalCost, Function1<EltValue, Double> elementCostFunction) {
+        return new BucketedNumericPriorityMap<String, EltValue>(lowPrio, highPrio, nBuckets, maxTotalCost, elementCostFunction);
+    }
+
     @BeforeClass
     public static void setUpClass() throws Exception {
     }
@@ -66,7 +84,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testSimpleMapping() {
         System.out.println("SimpleMapping");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 10, 1000, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 1000, costFunction);
         assertTrue(pc.isEmpty());
         pc.put("foo", new EltValue("foo", 1), 0);
         pc.put("bar", new EltValue("bar", 1), 0);
@@ -90,7 +108,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testSimpleIteration() {
         System.out.println("SimpleIteration");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 10, 1000, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 1000, costFunction);
         assertTrue(pc.isEmpty());
         pc.put("1", new EltValue("foo", 10), 30);
         pc.put("2", new EltValue("bar", 50), 90);
@@ -145,7 +163,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testTotalCost() {
         System.out.println("TotalCost");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 10, 1000, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 1000, costFunction);
         assertTrue(pc.isEmpty());
         assertEquals(0, pc.getCurrentTotalCost(), 0.001);
         pc.put("foo", new EltValue("foo", 10), 0);
@@ -162,7 +180,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testPriorities() {
         System.out.println("Priorities");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 10, 500, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 500, costFunction);
         assertTrue(pc.isEmpty());
         assertEquals(0, pc.getCurrentTotalCost(), 0.001);
         pc.put("c100-p50", new EltValue("1", 100), 50);
@@ -183,7 +201,7 @@ public class NumericPriorityMapTest {
         assertEquals(5, pc.size());
         assertEquals(490, pc.getCurrentTotalCost(), 0.001);
         assertIterationValues(pc, false, "6", "1", "4", "5", "3");
-        assertIterationValues(pc, true, "3", "4", "5", "1", "6");
+        assertIterationValues(pc, true, "3", "5", "4", "1", "6");
 
         pc.put("c200-p70", new EltValue("7", 200), 70); // should evict c50-p40, c100-p50, c110-p60 (NOT c150-p60 b/c of insertion-ordered eviction for equal-prio elts.)
         assertEquals(3, pc.size());
@@ -209,6 +227,7 @@ public class NumericPriorityMapTest {
         assertEquals(4, pc.size());
         assertNull(pc.get("c80-p100"));
         assertIterationValues(pc, false, "8", "10", "9", "11");
+        assertIterationValues(pc, true, "11", "9", "10", "8");
         //assertion for access-ordered iteration -- not implemented atm.
         //assertEquals(40, pc.get("c40-p40").getCost(), 0.001);
         //assertIterationValues(pc, "10", "8", "9", "11");
@@ -233,10 +252,199 @@ public class NumericPriorityMapTest {
         }).toArray());
     }
 
+    @Test
+    public void testSetPriority() {
+        System.out.println("SetPriority");
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 1000, costFunction);
+        pc.put("a", new EltValue("a", 1), 40);
+        pc.put("b", new EltValue("b", 1), 42);
+        pc.put("c", new EltValue("c", 1), 70);
+        pc.put("d", new EltValue("d", 1), 10);
+        assertIterationValues(pc, false, "d", "a", "b", "c");
+        assertIterationValues(pc, true, "c", "b", "a", "d");
+        pc.setPriority("a", 45);  // same bucket, but moves to its end
+        assertIterationValues(pc, false, "d", "b", "a", "c");
+        assertIterationValues(pc, true, "c", "a", "b", "d");
+        pc.setPriority("c", 5);
+        pc.setPriority("quux", 5);  // not there => no-op
+        assertIterationValues(pc, false, "c", "d", "b", "a");
+        assertIterationValues(pc, true, "a", "b", "d", "c");
+        Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.reverseEntryIterator();
+        assertEquals(45, it.next().getPriority(), 0.001);
+        assertEquals(42, it.next().getPriority(), 0.001);
+        assertEquals(10, it.next().getPriority(), 0.001);
+        assertEquals(5, it.next().getPriority(), 0.001);
+        assertEquals(4, pc.size());
+        assertEquals(4, pc.getCurrentTotalCost(), 0.001);
+    }
+
+    @Test
+    public void testSetPriorities() {
+        System.out.println("SetPriorities");
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 1000, costFunction);
+        pc.put("a", new EltValue("a", 1), 40);
+        pc.put("b", new EltValue("b", 1), 42);
+        pc.put("c", new EltValue("c", 1), 70);
+        pc.put("d", new EltValue("d", 1), 10);
+        Map<String, Double> priorities = new LinkedHashMap<String, Double>();
+        priorities.put("a", 45.0);
+        priorities.put("c", 5.0);
+        priorities.put("quux", 5.0);  // not there => ignored
+        pc.setPriorities(priorities);
+        assertIterationValues(pc, false, "c", "d", "b", "a");  // same as the setPriority() calls in testSetPriority
+        assertEquals(4, pc.size());
+
+        pc.reprioritize(new Function1<String, Double>() {
+            @Override
+            public Double run(String k) {
+                if (k.equals("b")) {
+                    return 95.0;
+                } else if (k.equals("c")) {
+                    return 5.0;  // unchanged => stays in place
+                } else {
+                    return null;
+                }
+            }
+        });
+        assertIterationValues(pc, false, "c", "d", "a", "b");
+
+        final Map<String, Double> newPriorities = new HashMap<String, Double>();
+        newPriorities.put("a", 10.0);
+        newPriorities.put("b", 20.0);
+        newPriorities.put("c", 30.0);
+        newPriorities.put("d", 40.0);
+        pc.reprioritize(new Function1<String, Double>() {
+            @Override
+            public Double run(String k) {
+                return newPriorities.get(k);
+            }
+        });
+        assertIterationValues(pc, false, "a", "b", "c", "d");
+        assertIterationValues(pc, true, "d", "c", "b", "a");
+        Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator();
+        assertEquals(10, it.next().getPriority(), 0);
+        assertEquals(20, it.next().getPriority(), 0);
+        assertEquals(4, pc.getCurrentTotalCost(), 0.001);
+    }
+
+    @Test
+    public void testUpdateCost() {
+        System.out.println("UpdateCost");
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 100, costFunction);
+        EltValue foo = new EltValue("foo", 10);
+        pc.put("foo", foo, 50);
+        pc.put("bar", new EltValue("bar", 20), 10);
+        pc.put("baz", new EltValue("baz", 30), 20);
+        assertEquals(60, pc.getCurrentTotalCost(), 0.001);
+        foo.setCost(40);
+        assertEquals(60, pc.getCurrentTotalCost(), 0.001);  // not noticed yet
+        pc.updateCost("foo");
+        assertEquals(90, pc.getCurrentTotalCost(), 0.001);
+        assertEquals(3, pc.size());
+        foo.setCost(60);
+        pc.updateCost("foo");  // 110 > 100 => lowest-prio element (bar) evicted
+        assertEquals(90, pc.getCurrentTotalCost(), 0.001);
+        assertEquals(2, pc.size());
+        assertFalse(pc.contains("bar"));
+        pc.updateCost("quux");
+        assertEquals(90, pc.getCurrentTotalCost(), 0.001);
+        // the memoized cost is what's subtracted on removal
+        foo.setCost(1);
+        pc.remove("foo");
+        assertEquals(30, pc.getCurrentTotalCost(), 0.001);
+    }
+
+    @Test
+    public void testCostFunctionCalledOncePerPut() {
+        System.out.println("CostFunctionCalledOncePerPut");
+        final int[] nCalls = new int[1];
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 50, new Function1<EltValue, Double>() {
+            @Override
+            public Double run(EltValue v) {
+                nCalls[0]++;
+                return v.getCost();
+            }
+        });
+        pc.put("a", new EltValue("a", 10), 10);
+        pc.put("b", new EltValue("b", 10), 20);
+        pc.put("c", new EltValue("c", 10), 30);
+        pc.put("a", new EltValue("a", 20), 10);
+        pc.setPriority("b", 40);
+        pc.put("d", new EltValue("d", 20), 50);  // evicts a
+        pc.remove("c");
+        Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator();
+        it.next();
+        it.remove();
+        assertEquals(5, nCalls[0]);
+        assertEquals(20, pc.getCurrentTotalCost(), 0.001);
+    }
+
+    @Test
+    public void testRemovalListener() {
+        System.out.println("RemovalListener");
+        final NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, 100, costFunction);
+        final List<String> log = new ArrayList<String>();
+        NumericPriorityMap.RemovalListener<String, EltValue> syncListener = new NumericPriorityMap.RemovalListener<String, EltValue>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<String, EltValue> entry, NumericPriorityMap.RemovalReason reason) {
+                assertFalse(Thread.holdsLock(pc));
+                log.add(entry.getKey() + "/" + entry.getValue().getId() + "/" + (int) entry.getPriority() + ":" + reason);
+            }
+        };
+        final List<Runnable> executorTasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executorTasks.add(command);
+            }
+        };
+        final List<String> asyncLog = new ArrayList<String>();
+        pc.addRemovalListener(syncListener);
+        pc.addRemovalListener(new NumericPriorityMap.RemovalListener<String, EltValue>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<String, EltValue> entry, NumericPriorityMap.RemovalReason reason) {
+                asyncLog.add(entry.getKey() + ":" + reason);
+            }
+        }, executor);
+
+        pc.put("a", new EltValue("a1", 20), 10);
+        pc.put("b", new EltValue("b", 20), 20);
+        pc.put("c", new EltValue("c", 20), 30);
+        pc.put("d", new EltValue("d", 20), 40);
+        assertTrue(log.isEmpty());
+        pc.put("a", new EltValue("a2", 20), 15);
+        pc.remove("d");
+        pc.remove("quux");
+        assertArrayEquals(new Object[]{"a/a1/10:REPLACED", "d/d/40:REMOVED"}, log.toArray());
+        assertEquals(2, executorTasks.size());
+
+        log.clear();
+        pc.put("e", new EltValue("e", 90), 90);  // evicts a, b, c
+        assertArrayEquals(new Object[]{"a/a2/15:EVICTED", "b/b/20:EVICTED", "c/c/30:EVICTED"}, log.toArray());
+        assertEquals("one batch per operation", 3, executorTasks.size());
+        assertTrue(asyncLog.isEmpty());
+        for (Runnable r : executorTasks) {
+            r.run();
+        }
+        assertArrayEquals(new Object[]{"a:REPLACED", "d:REMOVED", "a:EVICTED", "b:EVICTED", "c:EVICTED"}, asyncLog.toArray());
+
+        log.clear();
+        Iterator<NumericPriorityMap.Entry<String, EltValue>> it = pc.entryIterator();
+        it.next();
+        it.remove();
+        assertArrayEquals(new Object[]{"e/e/90:REMOVED"}, log.toArray());
+
+        log.clear();
+        pc.removeRemovalListener(syncListener);
+        pc.put("f", new EltValue("f", 1), 1);
+        pc.remove("f");
+        assertTrue(log.isEmpty());
+    }
+
     @Test
     public void testPriorities2() {
         System.out.println("Priorities2");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 30, 500, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 30, 500, costFunction);
         assertTrue(pc.isEmpty());
         assertEquals(0, pc.getCurrentTotalCost(), 0.001);
         pc.put("c30-p50", new EltValue("1", 30), 50);
@@ -256,7 +464,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testReversePriorities2() {
         System.out.println("ReversePriorities2");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 30, 500, costFunction);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 30, 500, costFunction);
         pc.setReverseEviction(true);
         assertTrue(pc.isEmpty());
         assertEquals(0, pc.getCurrentTotalCost(), 0.001);
@@ -277,7 +485,7 @@ public class NumericPriorityMapTest {
     @Test
     public void testDefaultUnlimitedCost() {
         System.out.println("DefaultUnlimitedCost");
-        NumericPriorityMap<String, EltValue> pc = new BucketedNumericPriorityMap<String, EltValue>(0, 100, 10, -1, null);
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, -1, null);
         assertTrue(pc.isEmpty());
         assertEquals(0, pc.getCurrentTotalCost(), 0.001);
         pc.put("foo", new EltValue("foo", 3000), 0);
@@ -291,4 +499,41 @@ public class NumericPriorityMapTest {
         assertEquals(2, pc.getCurrentTotalCost(), 0.001);
     }
 
-}
\ No newline at end of file
+    private static void assertEntryValues(List<NumericPriorityMap.Entry<String, EltValue>> entries, String... values) {
+        assertEquals(values.length, entries.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], entries.get(i).getValue().getId());
+        }
+    }
+
+    @Test
+    public void testRangeAndTopK() {
+        System.out.println("RangeAndTopK");
+        NumericPriorityMap<String, EltValue> pc = newMap(0, 100, 10, -1, null);
+        pc.put("a", new EltValue("a", 1), 5);
+        pc.put("b", new EltValue("b", 1), 15);
+        pc.put("c", new EltValue("c", 1), 17);
+        pc.put("d", new EltValue("d", 1), 35);
+        pc.put("e", new EltValue("e", 1), 55);
+        pc.put("f", new EltValue("f", 1), 57);
+        pc.put("g", new EltValue("g", 1), 95);
+        pc.put("h", new EltValue("h", 1), 55);
+        assertEntryValues(pc.entriesInPriorityRange(15, 55), "b", "c", "d", "e", "h");
+        assertEntryValues(pc.entriesInPriorityRange(16, 56), "c", "d", "e", "h");
+        assertEntryValues(pc.entriesInPriorityRange(60, 90));
+        assertEntryValues(pc.entriesInPriorityRange(60, 50));
+        assertEquals(8, pc.entriesInPriorityRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY).size());
+
+        assertEntryValues(pc.topK(0));
+        assertEntryValues(pc.topK(3), "g", "f", "h");
+        assertEntryValues(pc.topK(4), "g", "f", "h", "e");
+        assertEntryValues(pc.topK(100), "g", "f", "h", "e", "d", "c", "b", "a");
+        try {
+            pc.topK(-1);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package de.sofd.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class OffHeapNumericPriorityMapTest {
+
+    private static ByteBuffer slice(int nShorts, int fill) {
+        ByteBuffer b = ByteBuffer.allocate(2 * nShorts).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < nShorts; i++) {
+            b.putShort((short) (fill + i));
+        }
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void testSizeClasses() {
+        System.out.println("SizeClasses");
+        SlabAllocator a = new SlabAllocator(64 * 1024, 1024);
+        assertEquals(1024, a.chunkSizeFor(1));
+        assertEquals(1024, a.chunkSizeFor(1024));
+        assertEquals(1536, a.chunkSizeFor(1025));
+        assertEquals(2048, a.chunkSizeFor(2000));
+        assertEquals(3072, a.chunkSizeFor(2049));
+        assertEquals(64 * 1024, a.chunkSizeFor(64 * 1024));
+        assertEquals(100000, a.chunkSizeFor(100000));  // oversized
+    }
+
+    @Test
+    public void testPutGet() {
+        System.out.println("PutGet");
+        OffHeapNumericPriorityMap<String> m = new OffHeapNumericPriorityMap<String>(0, 100, 10, -1);
+        ByteBuffer src = slice(1000, 7);
+        m.put("a", src, 50);
+        assertEquals(0, src.position());
+        m.put("b", slice(10, 100), 20);
+        assertEquals(2, m.size());
+        ShortBuffer a = m.get("a").asShortBuffer();
+        assertEquals(1000, a.remaining());
+        assertEquals(7, a.get(0));
+        assertEquals(1006, a.get(999));
+        assertEquals(100, m.get("b").asShortBuffer().get(0));
+        assertNull(m.get("c"));
+        try {
+            m.get("a").put(0, (byte) 1);
+            fail("view should be read-only");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        assertEquals(2048 + 1024, m.getCurrentTotalCost(), 0);
+
+        ByteBuffer dst = ByteBuffer.allocate(20).order(ByteOrder.nativeOrder());
+        assertTrue(m.get("b", dst));
+        assertEquals(20, dst.position());
+        assertEquals(109, dst.getShort(18));
+        assertFalse(m.get("c", dst));
+
+        // the previous values are returned as heap copies
+        ByteBuffer previous = m.put("b", slice(10, 200), 20);
+        assertFalse(previous.isDirect());
+        assertEquals(20, previous.remaining());
+        assertEquals(100, previous.asShortBuffer().get(0));
+        assertEquals(200, m.get("b").asShortBuffer().get(0));
+        assertNull(m.put("c", slice(10, 300), 20));
+        assertEquals(7, m.remove("a").asShortBuffer().get(0));
+        assertNull(m.remove("a"));
+        assertEquals(300, m.remove("c").asShortBuffer().get(0));
+        assertEquals(1024, m.getCurrentTotalCost(), 0);
+        assertEquals(1024, m.getAllocator().getAllocatedBytes());
+    }
+
+    @Test
+    public void testFailingListener() {
+        System.out.println("FailingListener");
+        OffHeapNumericPriorityMap<Integer> m = new OffHeapNumericPriorityMap<Integer>(0, 100, 10, 4 * 1024,
+                false, 4 * 1024, 1024, ByteOrder.nativeOrder());
+        m.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, ByteBuffer>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, ByteBuffer> entry, NumericPriorityMap.RemovalReason reason) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            m.put(i, slice(512, i), 50);
+        }
+        // the memory of all removed elements is freed even though the listener throws
+        try {
+            m.setMaxTotalCost(1024);
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            assertEquals("listener failed", e.getMessage());
+        }
+        assertEquals(1, m.size());
+        assertEquals(1024, m.getAllocator().getAllocatedBytes());
+        try {
+            m.put(3, slice(512, 42), 50);
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            assertEquals("listener failed", e.getMessage());
+        }
+        assertEquals(42, m.get(3).asShortBuffer().get(0));
+        assertEquals(1024, m.getAllocator().getAllocatedBytes());
+    }
+
+    @Test
+    public void testEvictionRecyclesSlabs() {
+        System.out.println("EvictionRecyclesSlabs");
+        // 4 KB slabs, 8 KB budget => at most 2 slabs' worth of live 1 KB values
+        OffHeapNumericPriorityMap<Integer> m = new OffHeapNumericPriorityMap<Integer>(0, 100, 10, 8 * 1024,
+                false, 4 * 1024, 1024, ByteOrder.nativeOrder());
+        final List<Integer> evicted = new ArrayList<Integer>();
+        m.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, ByteBuffer>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, ByteBuffer> entry, NumericPriorityMap.RemovalReason reason) {
+                // value must still be readable during synchronous delivery
+                assertEquals(entry.getKey().shortValue(), entry.getValue().asShortBuffer().get(0));
+                evicted.add(entry.getKey());
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            m.put(i, slice(512, i), i % 100);
+            assertTrue(m.getCurrentTotalCost() <= 8 * 1024);
+        }
+        assertEquals(8, m.size());
+        assertEquals(992, evicted.size());
+        // the new value is allocated before the eviction for it happens => 1 extra slab at most
+        assertTrue(m.getAllocator().getSlabMemory() <= 3 * 4 * 1024);
+        for (NumericPriorityMap.Entry<Integer, ByteBuffer> e : MoreCollections.iterableContaining(m.entryIterator())) {
+            assertEquals(e.getKey().shortValue(), e.getValue().asShortBuffer().get(0));
+            assertEquals(e.getKey().shortValue() + 511, e.getValue().asShortBuffer().get(511));
+        }
+
+        // slabs freed by one size class get reused by another
+        m.setMaxTotalCost(-1);
+        for (int i = 0; i < 1000; i++) {
+            m.remove(i);
+        }
+        assertEquals(0, m.getAllocator().getAllocatedBytes());
+        long slabMemory = m.getAllocator().getSlabMemory();
+        m.put(5000, slice(1024, 1), 1);   // 2 KB class
+        m.put(5001, slice(1024, 2), 1);
+        assertEquals(slabMemory, m.getAllocator().getSlabMemory());
+        m.getAllocator().trimEmptySlabs();
+        assertEquals(4 * 1024, m.getAllocator().getSlabMemory());
+    }
+
+    @Test
+    public void testConcurrentRemovalListeners() throws Exception {
+        System.out.println("ConcurrentRemovalListeners");
+        final OffHeapNumericPriorityMap<String> m = new OffHeapNumericPriorityMap<String>(0, 100, 10, -1,
+                false, 4 * 1024, 1024, ByteOrder.nativeOrder());
+        m.put("a", slice(512, 7), 50);
+        m.put("b", slice(512, 8), 50);
+        final CountDownLatch entered = new CountDownLatch(1), proceed = new CountDownLatch(1);
+        final AtomicInteger seen = new AtomicInteger();
+        m.addRemovalListener(new NumericPriorityMap.RemovalListener<String, ByteBuffer>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<String, ByteBuffer> entry, NumericPriorityMap.RemovalReason reason) {
+                if (entry.getKey().equals("a")) {
+                    entered.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    seen.set(entry.getValue().asShortBuffer().get(0));
+                }
+            }
+        });
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                m.remove("a");
+            }
+        };
+        remover.start();
+        entered.await();
+        // another thread's removals must not recycle a's chunk while its
+        // listener still reads it
+        m.remove("b");
+        m.put("c", slice(512, 100), 50);
+        m.put("d", slice(512, 200), 50);
+        proceed.countDown();
+        remover.join();
+        assertEquals(7, seen.get());
+        assertEquals(2, m.size());
+        assertEquals(2 * 1024, m.getAllocator().getAllocatedBytes());
+    }
+
+}
@@ -0,0 +1,211 @@
+package de.sofd.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class ShardedNumericPriorityMapTest {
+
+    private static List<Integer> keys(Iterator<NumericPriorityMap.Entry<Integer, String>> it) {
+        List<Integer> result = new ArrayList<Integer>();
+        while (it.hasNext()) {
+            result.add(it.next().getKey());
+        }
+        return result;
+    }
+
+    /**
+     * @return n keys that belong to shard
+     */
+    private static List<Integer> keysOf(ShardedNumericPriorityMap<Integer, String> map, BucketedNumericPriorityMap<Integer, String> shard, int n) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int k = 0; result.size() < n; k++) {
+            if (map.getShardFor(k) == shard) {
+                result.add(k);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testMapping() {
+        System.out.println("Mapping");
+        ShardedNumericPriorityMap<Integer, String> map = new ShardedNumericPriorityMap<Integer, String>(4, 0, 100, 100, -1, null);
+        assertEquals(4, map.getShardCount());
+        assertTrue(map.isEmpty());
+        for (int k = 0; k < 100; k++) {
+            map.put(k, "v" + k, 99 - k);
+        }
+        assertEquals(100, map.size());
+        assertEquals(100, map.getCurrentTotalCost(), 0);
+        for (BucketedNumericPriorityMap<Integer, String> shard : map.getShards()) {
+            assertTrue(shard.size() > 10);
+        }
+        assertEquals("v42", map.get(42));
+        assertTrue(map.contains(42));
+        assertEquals("v42", map.remove(42));
+        assertFalse(map.contains(42));
+        assertNull(map.get(42));
+
+        // merged iteration in priority order
+        List<Integer> keys = keys(map.entryIterator());
+        assertEquals(99, keys.size());
+        assertEquals(99, (int) keys.get(0));
+        assertEquals(0, (int) keys.get(98));
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i) < keys.get(i - 1));
+        }
+        assertEquals(0, (int) map.reverseEntryIterator().next().getKey());
+        Iterator<NumericPriorityMap.Entry<Integer, String>> it = map.entryIterator();
+        it.next();
+        it.remove();
+        assertFalse(map.contains(99));
+
+        Map<Integer, Double> priorities = new HashMap<Integer, Double>();
+        priorities.put(0, 0.0);
+        priorities.put(1, 0.5);
+        map.setPriorities(priorities);
+        assertEquals(0.5, map.getShardFor(1).getPriority(1), 0);
+        assertEquals("[0, 1]", keys(map.entriesInPriorityRange(0, 0.5).iterator()).toString());
+        assertEquals("[2, 3, 4]", keys(map.topK(3).iterator()).toString());
+    }
+
+    @Test
+    public void testBudget() {
+        System.out.println("Budget");
+        ShardedNumericPriorityMap<Integer, String> map = new ShardedNumericPriorityMap<Integer, String>(4, 0, 100, 100, 100, null);
+        for (BucketedNumericPriorityMap<Integer, String> shard : map.getShards()) {
+            assertEquals(25, shard.getMaxTotalCost(), 0);
+        }
+        for (int k = 0; k < 1000; k++) {
+            map.put(k, "", k % 100);
+        }
+        assertEquals(100, map.getCurrentTotalCost(), 0);
+        map.setMaxTotalCost(40);
+        assertEquals(40, map.getCurrentTotalCost(), 0);
+        for (BucketedNumericPriorityMap<Integer, String> shard : map.getShards()) {
+            assertEquals(10, shard.getMaxTotalCost(), 0);
+        }
+        map.setMaxTotalCost(-1);
+        assertEquals(-1, map.getShards().get(0).getMaxTotalCost(), 0);
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        System.out.println("Rebalance");
+        ShardedNumericPriorityMap<Integer, String> map = new ShardedNumericPriorityMap<Integer, String>(2, 0, 100, 100, 200, null);
+        BucketedNumericPriorityMap<Integer, String> hot = map.getShards().get(0), cold = map.getShards().get(1);
+        List<Integer> hotKeys = keysOf(map, hot, 300), coldKeys = keysOf(map, cold, 300);
+        for (int i = 0; i < 300; i++) {
+            map.put(hotKeys.get(i), "", 90);
+            map.put(coldKeys.get(i), "", 10);
+        }
+        map.rebalance();
+        assertEquals(1, map.getRebalanceCount());
+        assertEquals(110, hot.getMaxTotalCost(), 1e-9);
+        assertEquals(90, cold.getMaxTotalCost(), 1e-9);
+        assertEquals(90, cold.getCurrentTotalCost(), 0);
+
+        // no new evictions, no change
+        map.rebalance();
+        assertEquals(1, map.getRebalanceCount());
+
+        // the cold shard keeps a minimum slice
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 300; i++) {
+                map.put(hotKeys.get(i), "", 90);
+                map.put(coldKeys.get(i), "", 10);
+            }
+            map.rebalance();
+        }
+        assertEquals(25, cold.getMaxTotalCost(), 1e-9);
+        assertEquals(175, hot.getMaxTotalCost(), 1e-9);
+        assertEquals(200, map.getCurrentTotalCost(), 0);
+
+        // a new total keeps the proportions
+        map.setMaxTotalCost(100);
+        assertEquals(12.5, cold.getMaxTotalCost(), 1e-9);
+
+        map.startRebalancing(10, TimeUnit.MILLISECONDS);
+        assertTrue(map.isRebalancing());
+        map.stopRebalancing();
+        assertFalse(map.isRebalancing());
+    }
+
+    @Test
+    public void testListenersOutsideMapLock() {
+        System.out.println("ListenersOutsideMapLock");
+        final ShardedNumericPriorityMap<Integer, String> map = new ShardedNumericPriorityMap<Integer, String>(2, 0, 100, 100, 200, null);
+        final List<Boolean> mapLocked = new ArrayList<Boolean>();
+        map.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, String>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, String> entry, NumericPriorityMap.RemovalReason reason) {
+                mapLocked.add(Thread.holdsLock(map));
+            }
+        });
+        BucketedNumericPriorityMap<Integer, String> hot = map.getShards().get(0), cold = map.getShards().get(1);
+        List<Integer> hotKeys = keysOf(map, hot, 300), coldKeys = keysOf(map, cold, 100);
+        for (int i = 0; i < 300; i++) {
+            map.put(hotKeys.get(i), "", 90);
+        }
+        for (int i = 0; i < 100; i++) {
+            map.put(coldKeys.get(i), "", 10);
+        }
+        mapLocked.clear();
+        map.rebalance();
+        assertEquals(10, mapLocked.size());
+        map.setMaxTotalCost(100);
+        assertEquals(10 + 45 + 45, mapLocked.size());
+        assertFalse(mapLocked.contains(true));
+
+        // the shrinking isn't mistaken for eviction pressure
+        map.rebalance();
+        assertEquals(1, map.getRebalanceCount());
+    }
+
+    private static Set<Thread> rebalancerThreads() {
+        Set<Thread> result = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("ShardedNumericPriorityMap rebalancer")) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testRebalancingUnreachableMap() throws Exception {
+        System.out.println("RebalancingUnreachableMap");
+        Set<Thread> before = rebalancerThreads();
+        ShardedNumericPriorityMap<Integer, String> map = new ShardedNumericPriorityMap<Integer, String>(2, 0, 100, 100, 200, null);
+        map.startRebalancing(10, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+        Set<Thread> rebalancers = rebalancerThreads();
+        rebalancers.removeAll(before);
+        assertEquals(1, rebalancers.size());
+        Thread rebalancer = rebalancers.iterator().next();
+        WeakReference<?> ref = new WeakReference<Object>(map);
+        map = null;
+        // the rebalancer doesn't keep the map alive, and terminates after it's gone
+        long deadline = System.currentTimeMillis() + 20000;
+        while ((ref.get() != null || rebalancer.isAlive()) && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertNull(ref.get());
+        assertFalse(rebalancer.isAlive());
+    }
+
+}
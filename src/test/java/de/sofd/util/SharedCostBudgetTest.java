@@ -0,0 +1,132 @@
+package de.sofd.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class SharedCostBudgetTest {
+
+    private static BucketedNumericPriorityMap<Integer, String> newMap() {
+        return new BucketedNumericPriorityMap<Integer, String>(0, 100, 100, -1, null);
+    }
+
+    @Test
+    public void testGlobalEviction() {
+        System.out.println("GlobalEviction");
+        BucketedNumericPriorityMap<Integer, String> tab1 = newMap(), tab2 = newMap();
+        final List<Integer> evicted = new ArrayList<Integer>();
+        tab1.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, String>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, String> entry, NumericPriorityMap.RemovalReason reason) {
+                assertEquals(NumericPriorityMap.RemovalReason.EVICTED, reason);
+                evicted.add(entry.getKey());
+            }
+        });
+        SharedCostBudget budget = new SharedCostBudget(100);
+        budget.register(tab1);
+        budget.register(tab2);
+        assertSame(budget, tab1.getSharedCostBudget());
+
+        // the active tab fills the whole budget
+        for (int i = 0; i < 100; i++) {
+            tab1.put(i, "", 10 + i % 50);
+        }
+        assertEquals(100, tab1.size());
+        assertEquals(0, budget.getEvictionCount());
+
+        // the other tab takes memory away from tab1's least valuable elements
+        for (int i = 0; i < 30; i++) {
+            tab2.put(i, "", 40);
+        }
+        assertEquals(100, budget.getCurrentTotalCost(), 0);
+        assertEquals(30, tab2.size());
+        assertEquals(70, tab1.size());
+        assertEquals(30, evicted.size());
+        for (int k : evicted) {
+            assertTrue(10 + k % 50 < 40);
+        }
+
+        // with tab1 favored, a new tab2 element loses against tab1's lower-priority ones
+        budget.register(tab1, 2);
+        assertEquals(2, budget.getWeight(tab1), 0);
+        evicted.clear();
+        tab2.put(1000, "", 30);
+        assertEquals(30, tab2.size());
+        assertFalse(tab2.contains(1000));
+        assertTrue(evicted.isEmpty());
+
+        // lowering the budget evicts right away; the maps' own limits still apply
+        budget.setMaxTotalCost(50);
+        assertEquals(50, tab1.size() + tab2.size());
+        tab1.setMaxTotalCost(10);
+        assertEquals(10, tab1.size());
+
+        budget.unregister(tab2);
+        assertNull(tab2.getSharedCostBudget());
+        for (int i = 0; i < 100; i++) {
+            tab2.put(2000 + i, "", 1);
+        }
+        assertEquals(10, tab1.size());
+        assertEquals(1, budget.getMembers().size());
+    }
+
+    @Test
+    public void testRegistrationErrors() {
+        System.out.println("RegistrationErrors");
+        BucketedNumericPriorityMap<Integer, String> map = newMap();
+        new SharedCostBudget(10).register(map);
+        try {
+            new SharedCostBudget(10).register(map);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        SharedCostBudget budget = new SharedCostBudget(10);
+        budget.register(newMap());
+        BucketedNumericPriorityMap<Integer, String> reverse = newMap();
+        reverse.setReverseEviction(true);
+        try {
+            budget.register(reverse);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            budget.register(newMap(), 0);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testListenersOutsideBudgetLock() {
+        System.out.println("ListenersOutsideBudgetLock");
+        BucketedNumericPriorityMap<Integer, String> tab1 = newMap(), tab2 = newMap();
+        final SharedCostBudget budget = new SharedCostBudget(10);
+        final List<Boolean> budgetLocked = new ArrayList<Boolean>();
+        tab1.addRemovalListener(new NumericPriorityMap.RemovalListener<Integer, String>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<Integer, String> entry, NumericPriorityMap.RemovalReason reason) {
+                budgetLocked.add(Thread.holdsLock(budget));
+            }
+        });
+        budget.register(tab1);
+        budget.register(tab2);
+        for (int i = 0; i < 10; i++) {
+            tab1.put(i, "", 10);
+        }
+        for (int i = 0; i < 5; i++) {
+            tab2.put(i, "", 50);
+        }
+        assertEquals(5, budgetLocked.size());
+        assertFalse(budgetLocked.contains(true));
+        assertEquals(5, budget.getEvictionCount());
+    }
+
+}
@@ -0,0 +1,113 @@
+package de.sofd.util;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class TwoTierNumericPriorityMapTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final TwoTierNumericPriorityMap.Codec<String> stringCodec = new TwoTierNumericPriorityMap.Codec<String>() {
+        @Override
+        public ByteBuffer encode(String v) {
+            return ByteBuffer.wrap(v.getBytes(UTF8));
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            return UTF8.decode(bytes).toString();
+        }
+    };
+
+    private MappedFileSlabAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception {
+        File f = File.createTempFile("spill", ".bin");
+        allocator = new MappedFileSlabAllocator(f, 4096, 16, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        allocator.close();
+        assertFalse(allocator.getFile().exists());
+    }
+
+    private TwoTierNumericPriorityMap<String, String> newMap(int heapSize, long spillBytes) {
+        return new TwoTierNumericPriorityMap<String, String>(
+                new BucketedNumericPriorityMap<String, String>(0, 100, 10, heapSize, null),
+                new OffHeapNumericPriorityMap<String>(0, 100, 10, spillBytes, false, allocator, ByteOrder.nativeOrder()),
+                stringCodec);
+    }
+
+    @Test
+    public void testSpillAndPromote() {
+        System.out.println("SpillAndPromote");
+        TwoTierNumericPriorityMap<String, String> m = newMap(2, -1);
+        m.put("a", "value a", 10);
+        m.put("b", "value b", 50);
+        m.put("c", "value c", 60);  // spills a
+        assertEquals(3, m.size());
+        assertEquals(2, m.getHeapTier().size());
+        assertEquals(1, m.getSpillTier().size());
+        assertFalse(m.getHeapTier().contains("a"));
+        assertTrue(m.contains("a"));
+        assertEquals(1, m.getSpillCount());
+        assertTrue(allocator.getSlabMemory() > 0);
+
+        assertEquals("value a", m.get("a"));  // promotes a (priority 10), spills it again right away
+        assertEquals(1, m.getPromotionCount());
+        assertEquals(3, m.size());
+        m.setPriority("a", 90);
+        assertEquals("value a", m.get("a"));  // promotes a (priority 90), spills b
+        assertTrue(m.getHeapTier().contains("a"));
+        assertFalse(m.getHeapTier().contains("b"));
+        assertEquals(90, ((BucketedNumericPriorityMap<String, String>) m.getHeapTier()).getPriority("a"), 0);
+
+        assertEquals("value b", m.put("b", "new b", 80));  // replaces spilled b
+        assertEquals(m.size() - 2, m.getSpillTier().size());
+        assertEquals("new b", m.get("b"));
+        assertEquals("value c", m.remove("c"));
+        assertNull(m.remove("c"));
+        assertNull(m.get("nonexistent"));
+        assertEquals(2, m.size());
+    }
+
+    @Test
+    public void testRemovalListener() {
+        System.out.println("RemovalListener");
+        TwoTierNumericPriorityMap<String, String> m = newMap(1, 32);  // spill tier holds 2 16-byte chunks
+        final List<String> removed = new ArrayList<String>();
+        m.addRemovalListener(new NumericPriorityMap.RemovalListener<String, String>() {
+            @Override
+            public void entryRemoved(NumericPriorityMap.Entry<String, String> entry, NumericPriorityMap.RemovalReason reason) {
+                removed.add(reason + " " + entry.getKey() + "=" + entry.getValue());
+            }
+        });
+        m.put("a", "1", 10);
+        m.put("b", "2", 20);  // spills a
+        m.put("c", "3", 30);  // spills b
+        assertTrue(removed.isEmpty());
+        m.put("d", "4", 40);  // spills c, which evicts a from the spill tier
+        assertEquals(3, m.size());
+        assertEquals("[EVICTED a=1]", removed.toString());
+        removed.clear();
+        m.put("b", "5", 50);
+        m.remove("c");
+        m.put("d", "6", 60);
+        assertEquals("[REPLACED b=2, REMOVED c=3, REPLACED d=4]", removed.toString());
+    }
+
+}
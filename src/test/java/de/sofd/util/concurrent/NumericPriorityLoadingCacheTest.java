@@ -0,0 +1,264 @@
+package de.sofd.util.concurrent;
+
+import de.sofd.lang.Function1;
+import de.sofd.util.BucketedNumericPriorityMap;
+import de.sofd.util.NumericPriorityMapSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class NumericPriorityLoadingCacheTest {
+
+    private static BucketedNumericPriorityMap<String, String> newMap() {
+        return new BucketedNumericPriorityMap<String, String>(0, 100, 10, -1, null);
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        System.out.println("SingleFlight");
+        final BucketedNumericPriorityMap<String, String> map = newMap();
+        final NumericPriorityLoadingCache<String, String> cache = new NumericPriorityLoadingCache<String, String>(map);
+        final AtomicInteger nLoads = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+        final NumericPriorityLoadingCache.Loader<String, String> loader = new NumericPriorityLoadingCache.Loader<String, String>() {
+            @Override
+            public String load(String k) throws Exception {
+                nLoads.incrementAndGet();
+                loadStarted.countDown();
+                releaseLoad.await();
+                return "loaded " + k;
+            }
+        };
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            final double prio = 10 * i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(cache.getOrLoad("a", prio, loader));
+                    } catch (Exception e) {
+                        results.add(e.toString());
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+            if (i == 0) {
+                loadStarted.await();
+            }
+        }
+        while (countWaiting(threads) < 5) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getInFlightCount());
+        releaseLoad.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, nLoads.get());
+        assertEquals(5, results.size());
+        for (String r : results) {
+            assertEquals("loaded a", r);
+        }
+        assertEquals(0, cache.getInFlightCount());
+        assertEquals("loaded a", map.get("a"));
+        assertEquals(40, map.getPriority("a"), 0);  // highest requested priority
+
+        assertEquals("loaded a", cache.getOrLoad("a", 0, loader));
+        assertEquals(1, nLoads.get());
+    }
+
+    private static int countWaiting(List<Thread> threads) {
+        int n = 0;
+        for (Thread t : threads) {
+            if (t.getState() == Thread.State.WAITING) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testFailedLoad() throws Exception {
+        System.out.println("FailedLoad");
+        BucketedNumericPriorityMap<String, String> map = newMap();
+        NumericPriorityLoadingCache<String, String> cache = new NumericPriorityLoadingCache<String, String>(map);
+        try {
+            cache.getOrLoad("a", 10, new NumericPriorityLoadingCache.Loader<String, String>() {
+                @Override
+                public String load(String k) throws Exception {
+                    throw new java.io.IOException("broken file");
+                }
+            });
+            fail("exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+        assertFalse(map.contains("a"));
+        assertEquals(0, cache.getInFlightCount());
+        // next call retries
+        assertEquals("ok", cache.getOrLoad("a", 10, new NumericPriorityLoadingCache.Loader<String, String>() {
+            @Override
+            public String load(String k) {
+                return "ok";
+            }
+        }));
+        assertNull(cache.getOrLoad("b", 10, new NumericPriorityLoadingCache.Loader<String, String>() {
+            @Override
+            public String load(String k) {
+                return null;
+            }
+        }));
+        assertFalse(map.contains("b"));
+    }
+
+    @Test
+    public void testLoadPriorities() throws Exception {
+        System.out.println("LoadPriorities");
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 0, 100, 10);
+        try {
+            BucketedNumericPriorityMap<String, String> map = newMap();
+            NumericPriorityLoadingCache<String, String> cache = new NumericPriorityLoadingCache<String, String>(map, executor,
+                    new Function1<Double, Double>() {
+                        @Override
+                        public Double run(Double p) {
+                            return 100 - p;
+                        }
+                    });
+            final CountDownLatch gate = new CountDownLatch(1);
+            executor.submitWithPriority(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, 0);
+            final List<String> loadOrder = Collections.synchronizedList(new ArrayList<String>());
+            NumericPriorityLoadingCache.Loader<String, String> loader = new NumericPriorityLoadingCache.Loader<String, String>() {
+                @Override
+                public String load(String k) {
+                    loadOrder.add(k);
+                    return k;
+                }
+            };
+            Future<String> fLow = cache.getOrLoadAsync("low", 5, loader);
+            Future<String> fMid = cache.getOrLoadAsync("mid", 50, loader);
+            Future<String> fHigh = cache.getOrLoadAsync("high", 95, loader);
+            Future<String> fBoosted = cache.getOrLoadAsync("boosted", 1, loader);
+            assertSame(fBoosted, cache.getOrLoadAsync("boosted", 70, loader));
+            assertEquals(4, cache.getInFlightCount());
+            gate.countDown();
+            assertEquals("low", fLow.get());
+            assertEquals("mid", fMid.get());
+            assertEquals("high", fHigh.get());
+            assertEquals("boosted", fBoosted.get());
+            assertEquals("[high, boosted, mid, low]", loadOrder.toString());
+            assertEquals(70, map.getPriority("boosted"), 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectedLoad() throws Exception {
+        System.out.println("RejectedLoad");
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 0, 100, 10);
+        executor.shutdown();
+        BucketedNumericPriorityMap<String, String> map = newMap();
+        NumericPriorityLoadingCache<String, String> cache = new NumericPriorityLoadingCache<String, String>(map, executor, null);
+        NumericPriorityLoadingCache.Loader<String, String> loader = new NumericPriorityLoadingCache.Loader<String, String>() {
+            @Override
+            public String load(String k) {
+                return k;
+            }
+        };
+        try {
+            cache.getOrLoad("a", 10, loader);
+            fail("exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, cache.getInFlightCount());
+        // the next caller doesn't join the failed load
+        Future<String> f = cache.getOrLoadAsync("a", 10, loader);
+        assertTrue(f.isDone());
+        assertEquals(0, cache.getInFlightCount());
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        System.out.println("Preload");
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 0, 100, 10);
+        try {
+            BucketedNumericPriorityMap<String, String> before = newMap();
+            for (int i = 0; i < 5; i++) {
+                before.put("k" + i, "v" + i, 20 * i);
+            }
+            NumericPriorityMapSnapshot<String> snapshot = NumericPriorityMapSnapshot.of(before);
+
+            BucketedNumericPriorityMap<String, String> map = new BucketedNumericPriorityMap<String, String>(0, 100, 10, 3, null);
+            map.put("k3", "v3", 60);
+            NumericPriorityLoadingCache<String, String> cache = new NumericPriorityLoadingCache<String, String>(map, executor,
+                    new Function1<Double, Double>() {
+                        @Override
+                        public Double run(Double p) {
+                            return 100 - p;
+                        }
+                    });
+            final CountDownLatch gate = new CountDownLatch(1);
+            executor.submitWithPriority(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, 0);
+            final List<String> loadOrder = Collections.synchronizedList(new ArrayList<String>());
+            NumericPriorityLoadingCache.Loader<String, String> loader = new NumericPriorityLoadingCache.Loader<String, String>() {
+                @Override
+                public String load(String k) {
+                    loadOrder.add(k);
+                    return "v" + k.substring(1);
+                }
+            };
+            // only k4, k3, k2 fit into the budget; k3 is there already
+            List<Future<String>> futures = cache.preload(snapshot, loader);
+            assertEquals(2, futures.size());
+            // doesn't block, and regular loads with higher priorities overtake the preload
+            Future<String> urgent = cache.getOrLoadAsync("x9", 99, loader);
+            map.setMaxTotalCost(4);  // room for x9, which would evict k2 otherwise
+            gate.countDown();
+            for (Future<String> f : futures) {
+                f.get();
+            }
+            urgent.get();
+            assertEquals("[x9, k4, k2]", loadOrder.toString());
+            assertEquals(80, map.getPriority("k4"), 0);
+            assertEquals(40, map.getPriority("k2"), 0);
+            assertTrue(map.contains("x9"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package de.sofd.util.concurrent;
+
+import de.sofd.lang.Function1;
+import de.sofd.util.BucketedNumericPriorityMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author olaf
+ */
+public class PrefetchCoordinatorTest {
+
+    private static final int N_SLICES = 100;
+
+    private static final Function1<Integer, Long> ORDINALS = new Function1<Integer, Long>() {
+        @Override
+        public Long run(Integer k) {
+            return (long) k;
+        }
+    };
+
+    private static final Function1<Long, Integer> KEYS = new Function1<Long, Integer>() {
+        @Override
+        public Integer run(Long o) {
+            return o >= 0 && o < N_SLICES ? (int) (long) o : null;
+        }
+    };
+
+    private static final Function1<Double, Double> INVERSE = new Function1<Double, Double>() {
+        @Override
+        public Double run(Double p) {
+            return 100 - p;
+        }
+    };
+
+    private static Runnable await(final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // terminate
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        System.out.println("Prefetch");
+        BucketedNumericPriorityMap<Integer, String> map = new BucketedNumericPriorityMap<Integer, String>(0, 100, 10, -1, null);
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 100);
+        NumericPriorityLoadingCache<Integer, String> cache = new NumericPriorityLoadingCache<Integer, String>(map, executor, INVERSE);
+        final List<Integer> loaded = Collections.synchronizedList(new ArrayList<Integer>());
+        NumericPriorityLoadingCache.Loader<Integer, String> loader = new NumericPriorityLoadingCache.Loader<Integer, String>() {
+            @Override
+            public String load(Integer k) throws Exception {
+                loaded.add(k);
+                return "slice " + k;
+            }
+        };
+        PrefetchCoordinator<Integer, String> pc = new PrefetchCoordinator<Integer, String>(cache, loader, ORDINALS, KEYS);
+
+        // keep the loads queued
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submitWithPriority(await(release), -1);
+
+        pc.recordAccess(10, 50);
+        pc.recordAccess(11, 50);
+        assertEquals(0, pc.getStride());
+        assertEquals(0, cache.getInFlightCount());
+        pc.recordAccess(12, 50);
+        assertEquals(1, pc.getStride());
+        assertEquals(4, pc.getPrefetchCount());
+        assertEquals(4, cache.getInFlightCount());
+        pc.recordAccess(13, 50);  // reaches a prefetched key, adds one more
+        assertEquals(5, pc.getPrefetchCount());
+        assertEquals(0, pc.getCancelCount());
+
+        // reversal cancels the prefetches ahead
+        pc.recordAccess(12, 50);
+        assertEquals(0, pc.getStride());
+        assertEquals(4, pc.getCancelCount());
+        assertEquals(1, cache.getInFlightCount());  // 13, which has been reached
+        cache.cancelPrefetch(13);
+
+        // strided; a prefetch that a regular request waits for isn't cancelled
+        pc.recordAccess(20, 50);
+        pc.recordAccess(22, 50);
+        pc.recordAccess(24, 50);
+        assertEquals(2, pc.getStride());
+        assertEquals(4, cache.getInFlightCount());
+        Future<String> f28 = cache.getOrLoadAsync(28, 50, loader);
+        pc.recordAccess(22, 50);
+        assertEquals(7, pc.getCancelCount());
+        assertEquals(1, cache.getInFlightCount());
+
+        // nothing beyond the end
+        pc.recordAccess(97, 50);
+        pc.recordAccess(98, 50);
+        pc.recordAccess(99, 50);
+        assertEquals(1, pc.getStride());
+        assertEquals(1, cache.getInFlightCount());
+
+        release.countDown();
+        assertEquals("slice 28", f28.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals("[28]", loaded.toString());
+        assertTrue(map.contains(28));
+    }
+
+    @Test
+    public void testRegularRequests() throws Exception {
+        System.out.println("RegularRequests");
+        BucketedNumericPriorityMap<Integer, String> map = new BucketedNumericPriorityMap<Integer, String>(0, 100, 10, -1, null);
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 100);
+        NumericPriorityLoadingCache<Integer, String> cache = new NumericPriorityLoadingCache<Integer, String>(map, executor, INVERSE);
+        final List<Integer> loaded = Collections.synchronizedList(new ArrayList<Integer>());
+        NumericPriorityLoadingCache.Loader<Integer, String> loader = new NumericPriorityLoadingCache.Loader<Integer, String>() {
+            @Override
+            public String load(Integer k) throws Exception {
+                loaded.add(k);
+                return "slice " + k;
+            }
+        };
+        PrefetchCoordinator<Integer, String> pc = new PrefetchCoordinator<Integer, String>(cache, loader, ORDINALS, KEYS);
+
+        // a regular request is queued before the prefetches it triggers
+        pc.setDistanceFalloff(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submitWithPriority(await(release), -1);
+        pc.getOrLoadAsync(0, 80);
+        pc.getOrLoadAsync(1, 80);
+        Future<String> f2 = pc.getOrLoadAsync(2, 80);
+        release.countDown();
+        assertEquals("slice 2", f2.get());
+        assertEquals("[0, 1, 2]", loaded.subList(0, 3).toString());
+
+        // a regular request for a prefetched key raises its priority
+        pc.setDistanceFalloff(0.5);
+        pc.getOrLoad(10, 80);
+        pc.getOrLoad(11, 80);
+        pc.getOrLoad(12, 80);
+        while (cache.getInFlightCount() > 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(40, map.getPriority(13), 0);
+        assertEquals(20, map.getPriority(14), 0);
+        assertEquals("slice 13", pc.getOrLoad(13, 80));
+        assertEquals(80, map.getPriority(13), 0);
+        assertEquals(20, map.getPriority(14), 0);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // prefetching in the requesting thread would only slow it down
+        try {
+            new PrefetchCoordinator<Integer, String>(new NumericPriorityLoadingCache<Integer, String>(map), loader, ORDINALS, KEYS);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNegativePriorities() throws Exception {
+        System.out.println("NegativePriorities");
+        BucketedNumericPriorityMap<Integer, String> map = new BucketedNumericPriorityMap<Integer, String>(-100, 0, 10, -1, null);
+        NumericPriorityThreadPoolExecutor executor = NumericPriorityThreadPoolExecutor.newFixedThreadPool(1, 100);
+        NumericPriorityLoadingCache<Integer, String> cache = new NumericPriorityLoadingCache<Integer, String>(map, executor, new Function1<Double, Double>() {
+            @Override
+            public Double run(Double p) {
+                return -p;
+            }
+        });
+        NumericPriorityLoadingCache.Loader<Integer, String> loader = new NumericPriorityLoadingCache.Loader<Integer, String>() {
+            @Override
+            public String load(Integer k) throws Exception {
+                return "slice " + k;
+            }
+        };
+        PrefetchCoordinator<Integer, String> pc = new PrefetchCoordinator<Integer, String>(cache, loader, ORDINALS, KEYS);
+        pc.setDistanceFalloff(0.5);
+        for (int k = 10; k <= 12; k++) {
+            pc.getOrLoad(k, -10);
+        }
+        assertEquals(4, pc.getPrefetchCount());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // near keys rank above far ones
+        assertEquals(-15, map.getPriority(13), 1e-9);
+        assertEquals(-17.5, map.getPriority(14), 1e-9);
+        assertEquals(-18.75, map.getPriority(15), 1e-9);
+        assertEquals(-19.375, map.getPriority(16), 1e-9);
+    }
+
+}